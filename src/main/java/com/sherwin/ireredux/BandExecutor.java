@@ -0,0 +1,221 @@
+package com.sherwin.ireredux;
+
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Splits the per-pixel loops of a render into bands of rows and runs them on
+ * a dedicated, bounded ForkJoin pool. Small jobs stay on the calling thread,
+ * and no job is split into more bands than the per-request cap, so one large
+ * scene cannot take over the pool. A view of the executor bound to a render's
+ * deadline, see {@link #withDeadline}, checks the deadline between chunks of
+ * every band.
+ */
+@Component
+@Slf4j
+public class BandExecutor {
+    /**
+     * Runs everything on the calling thread
+     */
+    public static final BandExecutor SEQUENTIAL = new BandExecutor(1, Integer.MAX_VALUE, 1);
+
+    /**
+     * One band of a split loop. A band may be run as several consecutive
+     * ranges with the same index, see {@link #withDeadline}.
+     */
+    @FunctionalInterface
+    public interface Band {
+        /**
+         * @param band index of the band, 0 - bands - 1
+         * @param from first item of the band
+         * @param to item after the last item of the band
+         */
+        void run(int band, int from, int to);
+    }
+
+    // pixels a band runs between two checks of the deadline, well under a millisecond of work
+    private static final int DEADLINE_CHECK_PIXELS = 65536;
+
+    private final ForkJoinPool pool;
+    private final int thresholdPixels;
+    private final int maxBands;
+    private final RenderDeadline deadline;
+
+    @Autowired
+    public BandExecutor(@Value("${ire.parallel.pool-size:0}") int poolSize,
+                        @Value("${ire.parallel.threshold-pixels:262144}") int thresholdPixels,
+                        @Value("${ire.parallel.max-bands-per-request:4}") int maxBands) {
+        int parallelism = poolSize > 0 ? poolSize : Runtime.getRuntime().availableProcessors();
+        this.pool = parallelism > 1 && maxBands > 1 ? new ForkJoinPool(parallelism) : null;
+        this.thresholdPixels = Math.max(1, thresholdPixels);
+        this.maxBands = pool != null ? maxBands : 1;
+        this.deadline = null;
+        if (pool != null) {
+            log.info("Render pool parallelism: " + parallelism + ", at most " + maxBands
+                    + " bands per request from " + thresholdPixels + " pixels");
+        }
+    }
+
+    private BandExecutor(BandExecutor executor, RenderDeadline deadline) {
+        this.pool = executor.pool;
+        this.thresholdPixels = executor.thresholdPixels;
+        this.maxBands = executor.maxBands;
+        this.deadline = deadline;
+    }
+
+    /**
+     * @param deadline the deadline of a render
+     * @return this executor, for the loops of that render: every band checks
+     * the deadline before each chunk of rows it runs and the loop fails with a
+     * {@link RenderAbandonedException} once it has passed
+     */
+    public BandExecutor withDeadline(RenderDeadline deadline) {
+        return new BandExecutor(this, deadline);
+    }
+
+    /**
+     * Stop the render between two loops if its deadline has passed, see {@link #withDeadline}.
+     */
+    public void checkDeadline() {
+        if (deadline != null) {
+            deadline.check();
+        }
+    }
+
+    /**
+     * @param pixels the number of pixels the loop touches
+     * @return how many bands a loop over that many pixels is split into
+     */
+    public int bands(int pixels) {
+        return (int) Math.max(1, Math.min(maxBands, (long) pixels / thresholdPixels));
+    }
+
+    /**
+     * Run a loop over items 0 - size - 1 in bands(pixels) bands of about equal
+     * size. The calling thread runs the first band itself and returns once all
+     * bands are done.
+     *
+     * @param size the number of items, e.g. rows, spans or pixels
+     * @param pixels the number of pixels the loop touches
+     * @param band the loop body
+     */
+    public void forEach(int size, int pixels, Band band) {
+        run(size, pixels, checked(band, size, pixels));
+    }
+
+    private void run(int size, int pixels, Band band) {
+        int bands = Math.min(size, bands(pixels));
+        if (bands <= 1) {
+            band.run(0, 0, size);
+            return;
+        }
+
+        List<ForkJoinTask<?>> tasks = new ArrayList<>(bands - 1);
+        for (int i = 1; i < bands; i++) {
+            int index = i;
+            tasks.add(pool.submit(() -> band.run(index, bandStart(index, bands, size),
+                    bandStart(index + 1, bands, size))));
+        }
+        try {
+            band.run(0, 0, bandStart(1, bands, size));
+        } finally {
+            for (ForkJoinTask<?> task : tasks) {
+                task.join();
+            }
+        }
+    }
+
+    /**
+     * Split a loop over the spans of a mask into bands holding about the same
+     * number of pixels. Spans are ordered by row, so each band is a band of rows.
+     * From and to are span indexes; {@link #pixelOffsets} tells where the pixels
+     * of a span start.
+     *
+     * @param mask the mask
+     * @param band the loop body, from and to are span indexes
+     */
+    public void forEachSpan(MaskBitmap mask, Band band) {
+        Band checked = checked(band, mask.spanCount(), mask.pixelCount());
+        int bands = Math.min(mask.spanCount(), bands(mask.pixelCount()));
+        if (bands <= 1) {
+            checked.run(0, 0, mask.spanCount());
+            return;
+        }
+
+        int[] starts = spanBands(mask, bands);
+        run(bands, mask.pixelCount(), (ignored, from, to) -> {
+            for (int i = from; i < to; i++) {
+                checked.run(i, starts[ i ], starts[ i + 1 ]);
+            }
+        });
+    }
+
+    /**
+     * @param mask the mask
+     * @return for every span, the index of its first pixel counted along the spans
+     */
+    public static int[] pixelOffsets(MaskBitmap mask) {
+        int[] offsets = new int[ mask.spanCount() + 1 ];
+        for (int span = 0; span < mask.spanCount(); span++) {
+            offsets[ span + 1 ] = offsets[ span ] + mask.spanLength(span);
+        }
+        return offsets;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (pool != null) {
+            pool.shutdown();
+        }
+    }
+
+    private static int bandStart(int band, int bands, int size) {
+        return (int) ((long) band * size / bands);
+    }
+
+    /*
+     * The loop body, run in chunks of about DEADLINE_CHECK_PIXELS pixels with
+     * a check of the deadline before each; a band may run its body several
+     * times, over consecutive ranges
+     */
+    private Band checked(Band band, int size, int pixels) {
+        if (deadline == null) {
+            return band;
+        }
+        int chunk = (int) Math.max(1, (long) size * DEADLINE_CHECK_PIXELS / Math.max(1, pixels));
+        return (index, from, to) -> {
+            for (int start = from; start < to; start += Math.min(chunk, to - start)) {
+                deadline.check();
+                band.run(index, start, start + Math.min(chunk, to - start));
+            }
+        };
+    }
+
+    /*
+     * The first span of every band, plus the span count, cutting after whole
+     * spans once a band holds its share of the pixels
+     */
+    private static int[] spanBands(MaskBitmap mask, int bands) {
+        int[] starts = new int[ bands + 1 ];
+        long pixels = 0;
+        int band = 1;
+        for (int span = 0; span < mask.spanCount() && band < bands; span++) {
+            pixels += mask.spanLength(span);
+            while (band < bands && pixels * bands >= (long) band * mask.pixelCount()) {
+                starts[ band++ ] = span + 1;
+            }
+        }
+        while (band <= bands) {
+            starts[ band++ ] = mask.spanCount();
+        }
+        return starts;
+    }
+}
@@ -0,0 +1,243 @@
+package com.sherwin.ireredux;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.imgscalr.Scalr;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Iterator;
+
+/**
+ * Bounded cache of decoded base images. Entries are keyed by path,
+ * modification time and length, so replacing a scene's .jpg on disk
+ * simply stops matching the old entry. Scenes with an up to date
+ * {@link SceneBundle} are loaded from it rather than decoded.
+ */
+@Component
+@Slf4j
+public class BaseImageCache {
+    private final ByteBudgetCache<String, DecodedImage> cache;
+    private final ByteBudgetCache<String, LuminancePlane> luminancePlanes;
+    private final SingleFlight<String, DecodedImage> imageLoads = new SingleFlight<>("base-image");
+    private final BandExecutor bandExecutor;
+    private final boolean jpegLuminance;
+    private final boolean bundles;
+    private final boolean pyramid;
+    private final OffHeapStore offHeapStore;
+
+    public BaseImageCache(@Value("${ire.cache.base-image.max-bytes:1073741824}") long maxBytes,
+                          @Value("${ire.cache.base-image.expected-entries:512}") int expectedEntries,
+                          @Value("${ire.cache.luminance.max-bytes:268435456}") long maxLuminanceBytes,
+                          @Value("${ire.cache.luminance.expected-entries:1024}") int expectedLuminancePlanes,
+                          @Value("${ire.decode.jpeg-luminance:false}") boolean jpegLuminance,
+                          @Value("${ire.scene.bundles:true}") boolean bundles,
+                          @Value("${ire.scene.pyramid:false}") boolean pyramid,
+                          MeterRegistry meterRegistry, BandExecutor bandExecutor, OffHeapStore offHeapStore) {
+        cache = new ByteBudgetCache<>("base-image", maxBytes, expectedEntries, DecodedImage::sizeInBytes);
+        cache.bindTo(meterRegistry);
+        luminancePlanes = new ByteBudgetCache<>("luminance", maxLuminanceBytes, expectedLuminancePlanes,
+                LuminancePlane::sizeInBytes);
+        luminancePlanes.bindTo(meterRegistry);
+        imageLoads.bindTo(meterRegistry);
+        this.bandExecutor = bandExecutor;
+        this.jpegLuminance = jpegLuminance;
+        this.bundles = bundles;
+        this.pyramid = pyramid;
+        this.offHeapStore = offHeapStore;
+        log.info("Base image cache budget: " + maxBytes + " bytes, luminance cache budget: "
+                + maxLuminanceBytes + " bytes");
+    }
+
+    /**
+     * Return the decoded pixels of the image file, decoding it only if this
+     * version of the file is not cached yet. Concurrent requests for an image
+     * that is not cached yet decode it once.
+     *
+     * @param sourceFile the base .jpg
+     * @return the decoded image
+     * @throws IOException if the file cannot be read or decoded
+     */
+    public DecodedImage read(File sourceFile) throws IOException {
+        String key = key(sourceFile);
+        DecodedImage image = cache.get(key);
+        if (image != null) {
+            return image;
+        }
+        return imageLoads.run(key, () -> decode(key, sourceFile));
+    }
+
+    /**
+     * @param sourceFile the base .jpg
+     * @return the size of the image if this version of the file is cached, null otherwise
+     */
+    public Dimension cachedSize(File sourceFile) {
+        DecodedImage image = cache.peek(key(sourceFile));
+        return image != null ? new Dimension(image.getWidth(), image.getHeight()) : null;
+    }
+
+    /**
+     * Read the size of an image from its header, without decoding it.
+     *
+     * @param sourceFile the base .jpg
+     * @return the size of the image
+     * @throws IOException if the file cannot be read or is not an image
+     */
+    public static Dimension readSize(File sourceFile) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(sourceFile)) {
+            Iterator<ImageReader> readers = in != null ? ImageIO.getImageReaders(in) : Collections.emptyIterator();
+            if (!readers.hasNext()) {
+                throw new IOException("No image reader for " + sourceFile);
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                return new Dimension(reader.getWidth(0), reader.getHeight(0));
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    private static String key(File sourceFile) {
+        return sourceFile.getAbsolutePath() + '|' + sourceFile.lastModified() + '|' + sourceFile.length();
+    }
+
+    private DecodedImage decode(String key, File sourceFile) throws IOException {
+        DecodedImage image = null;
+        long imageTime = System.currentTimeMillis();
+        if (bundles) {
+            image = readBundle(key, sourceFile);
+        }
+        if (image == null && jpegLuminance) {
+            image = YCbCrJpegReader.read(key, sourceFile, bandExecutor);
+        }
+        if (image == null) {
+            BufferedImage decoded = ImageIO.read(sourceFile);
+            if (decoded == null) {
+                throw new IOException("No image reader for " + sourceFile);
+            }
+            image = DecodedImage.of(key, decoded);
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Time to read image: " + (System.currentTimeMillis() - imageTime) + " ms");
+        }
+
+        image = image.toOffHeap(offHeapStore);
+        cache.put(key, image);
+        return image;
+    }
+
+    private static DecodedImage readBundle(String key, File sourceFile) {
+        try {
+            SceneBundle bundle = SceneBundle.open(sourceFile);
+            return bundle != null ? bundle.image(key) : null;
+        } catch (IOException e) {
+            log.error("Error reading the bundle of " + sourceFile + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Resize a decoded image to the size being rendered. With the pyramid
+     * enabled, sizes of at most half the source size are resized from a level
+     * of the pyramid, see {@link ScenePyramid}; the size of the result is the
+     * same either way.
+     *
+     * @param image the decoded image
+     * @param width the requested width, 0 to fit the height
+     * @param height the requested height, 0 to fit the width
+     * @return a new TYPE_INT_RGB image at the size being rendered, or null if that is the size of the image
+     */
+    public BufferedImage resize(DecodedImage image, int width, int height) {
+        if (!pyramid) {
+            BufferedImage sharedImage = image.sharedImage();
+            BufferedImage resizedImage = ImageUtil.resizeImage(sharedImage, width, height);
+            return resizedImage != sharedImage ? ImageUtil.toPackedRgb(resizedImage) : null;
+        }
+
+        Dimension size = ImageUtil.resizedSize(image.getWidth(), image.getHeight(), width, height);
+        if (size.width == image.getWidth() && size.height == image.getHeight()) {
+            return null;
+        }
+        DecodedImage level = getLevel(image, ScenePyramid.level(image.getWidth(), image.getHeight(),
+                size.width, size.height));
+        if (level.getWidth() == size.width && level.getHeight() == size.height) {
+            return level.toBufferedImage();
+        }
+        return ImageUtil.toPackedRgb(ImageUtil.resizeRegion(level.sharedImage(), size.width, size.height,
+                size.width, size.height));
+    }
+
+    /*
+     * Each level is halved from the level above it with the same bicubic step
+     * imgscalr takes when it scales an image down in quality mode
+     */
+    private DecodedImage getLevel(DecodedImage image, int level) {
+        if (level == 0) {
+            return image;
+        }
+        String key = image.getKey() + "|level" + level;
+        DecodedImage levelImage = cache.get(key);
+        if (levelImage != null) {
+            return levelImage;
+        }
+        return imageLoads.run(key, () -> buildLevel(key, image, level));
+    }
+
+    private DecodedImage buildLevel(String key, DecodedImage image, int level) {
+        long levelTime = System.currentTimeMillis();
+        DecodedImage above = getLevel(image, level - 1);
+        BufferedImage scaled = Scalr.resize(above.sharedImage(), Scalr.Method.QUALITY, Scalr.Mode.FIT_EXACT,
+                ScenePyramid.size(image.getWidth(), level), ScenePyramid.size(image.getHeight(), level));
+        DecodedImage levelImage = DecodedImage.of(key, scaled).toOffHeap(offHeapStore);
+        if (log.isDebugEnabled()) {
+            log.debug("Time to build pyramid level " + level + ": " + (System.currentTimeMillis() - levelTime) + " ms");
+        }
+
+        cache.put(key, levelImage);
+        return levelImage;
+    }
+
+    /**
+     * Return the luminance plane of a decoded image at the size being rendered,
+     * computing it only on the first request for that size. The luminance
+     * decoded with the image is used as it is when there is one; it is only
+     * resized if it was taken from the JPEG, otherwise it is computed from the
+     * resized image like any other.
+     *
+     * @param image the decoded image
+     * @param baseImage the image at the size being rendered, before anything is painted on it
+     * @return the luminance plane
+     */
+    public LuminancePlane getLuminance(DecodedImage image, BufferedImage baseImage) {
+        String key = image.getKey() + '|' + baseImage.getWidth() + 'x' + baseImage.getHeight();
+        LuminancePlane luminance = luminancePlanes.get(key);
+        if (luminance != null) {
+            return luminance;
+        }
+
+        LuminancePlane decoded = image.getLuminance();
+        if (decoded != null && decoded.getWidth() == baseImage.getWidth()
+                && decoded.getHeight() == baseImage.getHeight()) {
+            // already held by the base image cache
+            return decoded;
+        }
+        if (decoded != null && image.hasEncodedLuminance()) {
+            luminance = decoded.resize(baseImage.getWidth(), baseImage.getHeight(), bandExecutor);
+        } else {
+            luminance = LuminancePlane.of(baseImage, bandExecutor);
+        }
+        luminance = luminance.toOffHeap(offHeapStore);
+        luminancePlanes.put(key, luminance);
+        return luminance;
+    }
+}
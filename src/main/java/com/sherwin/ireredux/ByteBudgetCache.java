@@ -0,0 +1,278 @@
+package com.sherwin.ireredux;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
+
+/**
+ * A cache bounded by the total weight (in bytes) of its values rather than by
+ * entry count. Entries are kept in least-recently-used order, and a frequency
+ * sketch of recent lookups decides admission: when the cache is full, a new
+ * entry only displaces the LRU victims if it has been asked for more often than
+ * they have. One-off keys therefore never flush the popular ones.
+ *
+ * @param <K> key type
+ * @param <V> value type
+ */
+public class ByteBudgetCache<K, V> {
+    private final String name;
+    private final long maxWeight;
+    private final ToLongFunction<V> weigher;
+    private final FrequencySketch sketch;
+
+    // access-ordered, guarded by this
+    private final LinkedHashMap<K, Weighted<V>> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long weight;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder rejections = new LongAdder();
+
+    /**
+     * @param name name used for logging and metric tags
+     * @param maxWeight total weight budget in bytes, 0 disables the cache
+     * @param expectedEntries rough number of entries the budget holds, used to size the frequency sketch
+     * @param weigher returns the weight in bytes of a value
+     */
+    public ByteBudgetCache(String name, long maxWeight, int expectedEntries, ToLongFunction<V> weigher) {
+        this.name = name;
+        this.maxWeight = Math.max(0, maxWeight);
+        this.weigher = weigher;
+        this.sketch = new FrequencySketch(Math.max(expectedEntries, 16));
+    }
+
+    /**
+     * Return the cached value for the key, or null on a miss. Every lookup is
+     * recorded in the frequency sketch whether it hits or not.
+     */
+    public V get(K key) {
+        synchronized (this) {
+            sketch.increment(key.hashCode());
+            Weighted<V> entry = entries.get(key);
+            if (entry != null) {
+                hits.increment();
+                return entry.value;
+            }
+        }
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * Return the cached value for the key, or null, without counting the
+     * lookup as a hit or miss or recording it in the frequency sketch. For
+     * callers that only want to know whether a later get will hit.
+     */
+    public V peek(K key) {
+        synchronized (this) {
+            Weighted<V> entry = entries.get(key);
+            return entry != null ? entry.value : null;
+        }
+    }
+
+    /**
+     * Offer a value to the cache. The value is dropped if it is heavier than the
+     * whole budget, or if making room for it would evict an entry that has been
+     * used more often than this key.
+     *
+     * @return true if the value was stored
+     */
+    public boolean put(K key, V value) {
+        long valueWeight = weigher.applyAsLong(value);
+        if (valueWeight > maxWeight) {
+            rejections.increment();
+            return false;
+        }
+
+        synchronized (this) {
+            Weighted<V> previous = entries.remove(key);
+            if (previous != null) {
+                weight -= previous.weight;
+            }
+
+            long excess = weight + valueWeight - maxWeight;
+            if (excess > 0 && previous == null) {
+                // find enough LRU victims, but give up if any of them is more popular than the candidate
+                int candidateFrequency = sketch.frequency(key.hashCode());
+                List<K> victims = new ArrayList<>();
+                long freed = 0;
+                Iterator<Map.Entry<K, Weighted<V>>> lru = entries.entrySet().iterator();
+                while (freed < excess && lru.hasNext()) {
+                    Map.Entry<K, Weighted<V>> victim = lru.next();
+                    if (sketch.frequency(victim.getKey().hashCode()) >= candidateFrequency) {
+                        rejections.increment();
+                        return false;
+                    }
+                    victims.add(victim.getKey());
+                    freed += victim.getValue().weight;
+                }
+                for (K victim : victims) {
+                    weight -= entries.remove(victim).weight;
+                    evictions.increment();
+                }
+            } else if (excess > 0) {
+                // replacing a resident key, which has already earned its place
+                evictUntil(maxWeight - valueWeight);
+            }
+
+            entries.put(key, new Weighted<>(value, valueWeight));
+            weight += valueWeight;
+        }
+        return true;
+    }
+
+    /**
+     * Remove the entry for the key, if any.
+     */
+    public synchronized void invalidate(K key) {
+        Weighted<V> entry = entries.remove(key);
+        if (entry != null) {
+            weight -= entry.weight;
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        weight = 0;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long weight() {
+        return weight;
+    }
+
+    public long maxWeight() {
+        return maxWeight;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long hitCount() {
+        return hits.sum();
+    }
+
+    public long missCount() {
+        return misses.sum();
+    }
+
+    public long evictionCount() {
+        return evictions.sum();
+    }
+
+    public long rejectionCount() {
+        return rejections.sum();
+    }
+
+    /**
+     * Register hit/miss/eviction/rejection counters and size gauges, tagged with
+     * the cache name.
+     */
+    public void bindTo(MeterRegistry registry) {
+        FunctionCounter.builder("ire.cache.gets", this, ByteBudgetCache::hitCount)
+                .tag("cache", name).tag("result", "hit").register(registry);
+        FunctionCounter.builder("ire.cache.gets", this, ByteBudgetCache::missCount)
+                .tag("cache", name).tag("result", "miss").register(registry);
+        FunctionCounter.builder("ire.cache.evictions", this, ByteBudgetCache::evictionCount)
+                .tag("cache", name).register(registry);
+        FunctionCounter.builder("ire.cache.rejections", this, ByteBudgetCache::rejectionCount)
+                .tag("cache", name).description("entries refused by the admission policy").register(registry);
+        Gauge.builder("ire.cache.weight", this, ByteBudgetCache::weight)
+                .tag("cache", name).baseUnit("bytes").register(registry);
+        Gauge.builder("ire.cache.max.weight", this, ByteBudgetCache::maxWeight)
+                .tag("cache", name).baseUnit("bytes").register(registry);
+        Gauge.builder("ire.cache.size", this, ByteBudgetCache::size)
+                .tag("cache", name).register(registry);
+    }
+
+    private void evictUntil(long targetWeight) {
+        Iterator<Map.Entry<K, Weighted<V>>> lru = entries.entrySet().iterator();
+        while (weight > targetWeight && lru.hasNext()) {
+            weight -= lru.next().getValue().weight;
+            lru.remove();
+            evictions.increment();
+        }
+    }
+
+    private static final class Weighted<V> {
+        final V value;
+        final long weight;
+
+        Weighted(V value, long weight) {
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    /*
+     * Count-min sketch of 4-bit counters. Counters are halved once the number of
+     * recorded lookups reaches ten times the table width so that old popularity
+     * fades out.
+     */
+    private static final class FrequencySketch {
+        private static final int DEPTH = 4;
+        private static final int[] SEEDS = { 0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F };
+
+        private final byte[][] table;
+        private final int mask;
+        private final int sampleSize;
+        private int additions;
+
+        FrequencySketch(int expectedEntries) {
+            int width = Integer.highestOneBit(Math.min(expectedEntries, 1 << 24) * 2 - 1) << 1;
+            table = new byte[ DEPTH ][ width ];
+            mask = width - 1;
+            sampleSize = width * 10;
+        }
+
+        void increment(int hash) {
+            boolean added = false;
+            for (int row = 0; row < DEPTH; row++) {
+                int index = index(hash, row);
+                if (table[ row ][ index ] < 15) {
+                    table[ row ][ index ]++;
+                    added = true;
+                }
+            }
+            if (added && ++additions >= sampleSize) {
+                reset();
+            }
+        }
+
+        int frequency(int hash) {
+            int frequency = 15;
+            for (int row = 0; row < DEPTH; row++) {
+                frequency = Math.min(frequency, table[ row ][ index(hash, row) ]);
+            }
+            return frequency;
+        }
+
+        private int index(int hash, int row) {
+            int h = hash * SEEDS[ row ];
+            h ^= h >>> 16;
+            return h & mask;
+        }
+
+        private void reset() {
+            for (byte[] row : table) {
+                for (int i = 0; i < row.length; i++) {
+                    row[ i ] = (byte) (row[ i ] >> 1);
+                }
+            }
+            additions /= 2;
+        }
+    }
+}
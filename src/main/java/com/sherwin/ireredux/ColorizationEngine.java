@@ -0,0 +1,157 @@
+package com.sherwin.ireredux;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+
+/**
+ * Selects the implementation of the colorization stages, set with the
+ * ire.colorization.engine property. COMPARE renders with both engines and
+ * logs a warning whenever the fused output differs from the legacy one.
+ * Both engines share the histogram statistics, the mask spans and the
+ * overlay tables, so COMPARE checks the two implementations against each
+ * other; it is not a check against the colorization of the original code.
+ */
+@Slf4j
+public enum ColorizationEngine
+{
+    /**
+     * One pass per stage, see {@link ImageColorization}. It keeps the stages of
+     * the original code, but not its pixel loops.
+     */
+    LEGACY
+    {
+        @Override
+        ShadingLayer paint( LuminancePlane luminance, BufferedImage baseImage, MaskBitmap mask,
+                            OverlayTable overlay, BandExecutor bands ) throws Exception
+        {
+            ShadingLayer shading = ImageColorization.shade( luminance, mask, bands );
+            ImageColorization.applyColor( baseImage, shading, overlay, bands );
+            return shading;
+        }
+
+        @Override
+        void applyColor( BufferedImage baseImage, ShadingLayer shading, OverlayTable overlay,
+                         BandExecutor bands ) throws Exception
+        {
+            ImageColorization.applyColor( baseImage, shading, overlay, bands );
+        }
+    },
+
+    /**
+     * Two passes over the mask writing straight into the raster, see {@link FusedColorization}
+     */
+    FUSED
+    {
+        @Override
+        ShadingLayer paint( LuminancePlane luminance, BufferedImage baseImage, MaskBitmap mask,
+                            OverlayTable overlay, BandExecutor bands ) throws Exception
+        {
+            return FusedColorization.paint( luminance, baseImage, mask, overlay, bands );
+        }
+
+        @Override
+        void applyColor( BufferedImage baseImage, ShadingLayer shading, OverlayTable overlay,
+                         BandExecutor bands )
+        {
+            FusedColorization.applyColor( baseImage, shading, overlay, bands );
+        }
+    },
+
+    /**
+     * Paint with the fused engine, check the result against the legacy engine.
+     * A difference means the two engines disagree, not that either changed the
+     * output of the original code.
+     */
+    COMPARE
+    {
+        @Override
+        ShadingLayer paint( LuminancePlane luminance, BufferedImage baseImage, MaskBitmap mask,
+                            OverlayTable overlay, BandExecutor bands ) throws Exception
+        {
+            BufferedImage expected = copy( baseImage );
+            LEGACY.paint( luminance, expected, mask, overlay, bands );
+            ShadingLayer shading = FUSED.paint( luminance, baseImage, mask, overlay, bands );
+            compare( expected, baseImage );
+            return shading;
+        }
+
+        @Override
+        void applyColor( BufferedImage baseImage, ShadingLayer shading, OverlayTable overlay,
+                         BandExecutor bands ) throws Exception
+        {
+            BufferedImage expected = copy( baseImage );
+            LEGACY.applyColor( expected, shading, overlay, bands );
+            FUSED.applyColor( baseImage, shading, overlay, bands );
+            compare( expected, baseImage );
+        }
+    };
+
+    /**
+     * Compute the shading layer of the mask and blend the surface color onto the
+     * base image with it.
+     *
+     * @param luminance the desaturated, unpainted base image
+     * @param baseImage the image to paint
+     * @param mask
+     * @param overlay the blend of the surface color onto every gray level
+     * @param bands splits the per-pixel loops into bands of rows
+     * @return the shading layer, for reuse with other colors
+     * @throws Exception
+     */
+    abstract ShadingLayer paint( LuminancePlane luminance, BufferedImage baseImage, MaskBitmap mask,
+                                 OverlayTable overlay, BandExecutor bands ) throws Exception;
+
+    /**
+     * Blend the surface color onto the base image with a shading layer computed earlier.
+     *
+     * @param baseImage the image to paint
+     * @param shading
+     * @param overlay the blend of the surface color onto every gray level
+     * @param bands splits the per-pixel loops into bands of rows
+     * @throws Exception
+     */
+    abstract void applyColor( BufferedImage baseImage, ShadingLayer shading, OverlayTable overlay,
+                              BandExecutor bands ) throws Exception;
+
+    private static BufferedImage copy( BufferedImage image )
+    {
+        return new BufferedImage( image.getColorModel(), image.copyData( null ),
+                image.isAlphaPremultiplied(), null );
+    }
+
+    private static void compare( BufferedImage expected, BufferedImage actual )
+    {
+        int width = expected.getWidth();
+        int height = expected.getHeight();
+        int[] expectedPixels = PixelBuffer.readRGB( expected, new Rectangle( width, height ) );
+        int[] actualPixels = PixelBuffer.readRGB( actual, new Rectangle( width, height ) );
+
+        int mismatches = 0;
+        int first = -1;
+        for( int i = 0; i < expectedPixels.length; i++ )
+        {
+            if( expectedPixels[ i ] != actualPixels[ i ] )
+            {
+                mismatches++ ;
+                if( first < 0 )
+                {
+                    first = i;
+                }
+            }
+        }
+
+        if( mismatches > 0 )
+        {
+            log.warn( "Fused colorization differs from legacy in " + mismatches + " pixels, first at ("
+                    + (first % width) + "," + (first / width) + "): expected "
+                    + Integer.toHexString( expectedPixels[ first ] ) + " but was "
+                    + Integer.toHexString( actualPixels[ first ] ) );
+        }
+        else if( log.isDebugEnabled() )
+        {
+            log.debug( "Fused colorization matches legacy" );
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package com.sherwin.ireredux;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * A decoded base image held as packed RGB pixels, on the heap or, once
+ * cached, in an {@link OffHeapStore}. Instances are immutable and shared
+ * read-only between requests; callers that need to draw on the image get
+ * their own copy from {@link #toBufferedImage()}.
+ */
+public final class DecodedImage {
+    private static final int[] RGB_MASKS = { 0xFF0000, 0xFF00, 0xFF };
+    private static final DirectColorModel RGB_MODEL = new DirectColorModel(24, RGB_MASKS[ 0 ], RGB_MASKS[ 1 ], RGB_MASKS[ 2 ]);
+
+    private final String key;
+    private final int width;
+    private final int height;
+    private final IntBuffer pixels;
+    private final LuminancePlane luminance;
+    private final boolean encodedLuminance;
+
+    private DecodedImage(String key, int width, int height, IntBuffer pixels, LuminancePlane luminance,
+                         boolean encodedLuminance) {
+        this.key = key;
+        this.width = width;
+        this.height = height;
+        this.pixels = pixels;
+        this.luminance = luminance;
+        this.encodedLuminance = encodedLuminance;
+    }
+
+    /**
+     * Capture the pixels of a freshly decoded image.
+     *
+     * @param key identifies the version of the file the image was decoded from
+     * @param image the decoded image
+     */
+    public static DecodedImage of(String key, BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] pixels = PixelBuffer.readRGB(image, new Rectangle(width, height));
+        return new DecodedImage(key, width, height, IntBuffer.wrap(pixels), null, false);
+    }
+
+    /**
+     * Wrap pixels decoded together with their luminance.
+     *
+     * @param key identifies the version of the file the image was decoded from
+     * @param width
+     * @param height
+     * @param pixels the RGB pixels row by row
+     * @param luminance the luminance of the pixels
+     * @param encodedLuminance true if the luminance is the one the file was
+     * encoded with, e.g. the Y channel of a JPEG, false if it was computed
+     * from the pixels
+     */
+    static DecodedImage of(String key, int width, int height, int[] pixels, LuminancePlane luminance,
+                           boolean encodedLuminance) {
+        return new DecodedImage(key, width, height, IntBuffer.wrap(pixels), luminance, encodedLuminance);
+    }
+
+    /**
+     * @param store
+     * @return the image with its pixels, and its luminance if it has one,
+     * moved to the store; this image if they already are off the heap or the
+     * store is full
+     */
+    public DecodedImage toOffHeap(OffHeapStore store) {
+        LuminancePlane storedLuminance = luminance != null ? luminance.toOffHeap(store) : null;
+        IntBuffer storedPixels = pixels;
+        if (!pixels.isDirect()) {
+            ByteBuffer buffer = store.allocate((long) pixels.capacity() * Integer.BYTES);
+            if (buffer != null) {
+                storedPixels = buffer.asIntBuffer().put(0, pixels, 0, pixels.capacity());
+            }
+        }
+        if (storedPixels == pixels && storedLuminance == luminance) {
+            return this;
+        }
+        return new DecodedImage(key, width, height, storedPixels, storedLuminance, encodedLuminance);
+    }
+
+    /**
+     * @return true if the pixels are held in an {@link OffHeapStore}
+     */
+    public boolean isOffHeap() {
+        return pixels.isDirect();
+    }
+
+    /**
+     * @return the cache key of the image, unique per image file version
+     */
+    public String getKey() {
+        return key;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return the luminance decoded from the file, e.g. the Y channel of a JPEG,
+     * or null if only the RGB pixels were decoded
+     */
+    public LuminancePlane getLuminance() {
+        return luminance;
+    }
+
+    /**
+     * @return true if the luminance is the one the file was encoded with,
+     * e.g. the Y channel of a JPEG, rather than computed from the pixels
+     */
+    public boolean hasEncodedLuminance() {
+        return encodedLuminance;
+    }
+
+    /**
+     * @return the number of bytes held by this image
+     */
+    public long sizeInBytes() {
+        return (long) pixels.capacity() * Integer.BYTES + (luminance != null ? luminance.sizeInBytes() : 0);
+    }
+
+    /**
+     * @return a new, writable TYPE_INT_RGB copy of the image
+     */
+    public BufferedImage toBufferedImage() {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        int[] target = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        pixels.get(0, target);
+        return image;
+    }
+
+    /**
+     * @return an image backed directly by the shared pixel array. Only for
+     * consumers that read from it, such as the resize step; it must never be
+     * drawn on. Pixels held off the heap are copied into a new array first.
+     */
+    BufferedImage sharedImage() {
+        int[] data = pixels.hasArray() ? pixels.array() : new int[ pixels.capacity() ];
+        if (!pixels.hasArray()) {
+            pixels.get(0, data);
+        }
+        WritableRaster raster = Raster.createPackedRaster(new DataBufferInt(data, data.length),
+                width, height, width, RGB_MASKS, null);
+        return new BufferedImage(RGB_MODEL, raster, false, null);
+    }
+}
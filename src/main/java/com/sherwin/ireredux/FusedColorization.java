@@ -0,0 +1,184 @@
+package com.sherwin.ireredux;
+
+import lombok.extern.slf4j.Slf4j;
+
+import static com.sherwin.ireredux.ImageRenderingConstants.MITIGATED_MAX;
+import static com.sherwin.ireredux.ImageRenderingConstants.MITIGATED_MIN;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Colorization engine that produces the same pixels as {@link ImageColorization}
+ * in two passes over the mask instead of one pass per stage:
+ *
+ * 1. gather the luminance of the masked pixels and their intensity statistics,
+ * 2. mitigate, overlay blend and write each masked pixel straight into the
+ *    base image's raster.
+ *
+ * No full-size int arrays are grabbed or allocated along the way, and the
+ * mitigation matrix is evaluated once per gray level instead of once per pixel.
+ * The blend runs on {@link PixelKernels}.
+ */
+@Slf4j
+public class FusedColorization
+{
+    private static final PixelKernels KERNELS = PixelKernels.get();
+
+    /**
+     * Desaturate, mitigate and overlay blend the surface color onto the masked
+     * section of the base image.
+     *
+     * @param luminance the desaturated, unpainted base image
+     * @param baseImage the image to paint
+     * @param mask
+     * @param overlay the blend of the surface color onto every gray level
+     * @param bands splits both passes into bands of rows
+     * @return the shading layer that was blended, for reuse with other colors
+     * @throws Exception
+     */
+    protected static ShadingLayer paint( LuminancePlane luminance, BufferedImage baseImage, MaskBitmap mask,
+                                         OverlayTable overlay, BandExecutor bands )
+            throws Exception
+    {
+        long startTime = System.currentTimeMillis();
+
+        // DE6714 - a mask without any pixels has no effect on the rendered image
+        if( mask.isEmpty() )
+        {
+            return ShadingLayer.empty( mask );
+        }
+
+        int width = mask.getWidth();
+        int[] pixelOffsets = BandExecutor.pixelOffsets( mask );
+
+        // pass 1: gather the luminance of the masked pixels and build the intensity histogram of each band
+        byte[] shades = new byte[ mask.pixelCount() ];
+        IntensityHistogram[] bandHistograms = new IntensityHistogram[ bands.bands( mask.pixelCount() ) ];
+        bands.forEachSpan( mask, ( band, fromSpan, toSpan ) ->
+        {
+            // a band may run in several chunks, see BandExecutor.withDeadline
+            IntensityHistogram histogram = bandHistograms[ band ];
+            if( histogram == null )
+            {
+                histogram = new IntensityHistogram();
+                bandHistograms[ band ] = histogram;
+            }
+            for( int span = fromSpan; span < toSpan; span++ )
+            {
+                luminance.copyTo( mask.spanRow( span ) * width + mask.spanStart( span ), shades,
+                        pixelOffsets[ span ], mask.spanLength( span ) );
+            }
+            for( int pixel = pixelOffsets[ fromSpan ]; pixel < pixelOffsets[ toSpan ]; pixel++ )
+            {
+                histogram.add( shades[ pixel ] & 0xFF );
+            }
+        } );
+
+        IntensityHistogram histogram = new IntensityHistogram();
+        for( IntensityHistogram bandHistogram : bandHistograms )
+        {
+            if( bandHistogram != null )
+            {
+                histogram.add( bandHistogram );
+            }
+        }
+
+        int[] mitigated = mitigationTable( ImageColorization.mitigationMatrix( histogram.min(), histogram.max(),
+                histogram.median(), MITIGATED_MIN, MITIGATED_MAX ) );
+
+        // pass 2: mitigate, blend and write the masked pixels
+        PixelBuffer target = PixelBuffer.of( baseImage );
+        bands.forEachSpan( mask, ( band, fromSpan, toSpan ) ->
+        {
+            for( int pixel = pixelOffsets[ fromSpan ]; pixel < pixelOffsets[ toSpan ]; pixel++ )
+            {
+                shades[ pixel ] = (byte) mitigated[ shades[ pixel ] & 0xFF ];
+            }
+            blend( target, mask, shades, pixelOffsets, overlay, fromSpan, toSpan );
+        } );
+
+        if( log.isDebugEnabled() )
+        {
+            log.debug( "Time to paint: " + (System.currentTimeMillis() - startTime) + " ms" );
+        }
+
+        return ShadingLayer.of( mask, shades );
+    }
+
+    /**
+     * Overlay blend the surface color onto the base image through an already
+     * computed shading layer.
+     *
+     * @param baseImage the image to paint
+     * @param shading
+     * @param overlay the blend of the surface color onto every gray level
+     * @param bands splits the blend into bands of rows
+     */
+    protected static void applyColor( BufferedImage baseImage, ShadingLayer shading, OverlayTable overlay,
+                                      BandExecutor bands )
+    {
+        if( shading.isEmpty() )
+        {
+            return;
+        }
+
+        long startTime = System.currentTimeMillis();
+
+        MaskBitmap mask = shading.getMask();
+        PixelBuffer target = PixelBuffer.of( baseImage );
+        int[] pixelOffsets = BandExecutor.pixelOffsets( mask );
+        byte[] shades = shading.shades();
+        bands.forEachSpan( mask, ( band, fromSpan, toSpan ) ->
+                blend( target, mask, shades, pixelOffsets, overlay, fromSpan, toSpan ) );
+
+        if( log.isDebugEnabled() )
+        {
+            log.debug( "Time to blend: " + (System.currentTimeMillis() - startTime) + " ms" );
+        }
+    }
+
+    /*
+     * Evaluate the color matrix for every gray level exactly the way
+     * ImageColorization.colorMatrixFilter evaluates it per pixel. The matrix only
+     * carries alpha through, so the alpha term contributes nothing to the color.
+     */
+    private static int[] mitigationTable( double[] m )
+    {
+        int[] table = new int[ 256 ];
+        for( int lum = 0; lum < table.length; lum++ )
+        {
+            table[ lum ] = ((int) ((m[ 0 ] * lum) + (m[ 1 ] * lum) + (m[ 2 ] * lum) + (m[ 3 ] * 0) + m[ 4 ]))
+                    & 0xFF;
+        }
+        return table;
+    }
+
+    /*
+     * Overlay blend the color onto the shades of a band of spans, straight into
+     * the raster array when it is plain TYPE_INT_RGB
+     */
+    private static void blend( PixelBuffer target, MaskBitmap mask, byte[] shades, int[] pixelOffsets,
+                               OverlayTable overlay, int fromSpan, int toSpan )
+    {
+        int width = mask.getWidth();
+        int[] rgbArray = target.rgbArray();
+        for( int span = fromSpan; span < toSpan; span++ )
+        {
+            int y = mask.spanRow( span );
+            int startX = mask.spanStart( span );
+            if( rgbArray != null )
+            {
+                KERNELS.overlay( shades, pixelOffsets[ span ], overlay.table(), rgbArray, y * width + startX,
+                        mask.spanLength( span ) );
+                continue;
+            }
+
+            int alpha = mask.spanCoverage( span ) << 24;
+            int pixel = pixelOffsets[ span ];
+            for( int x = startX; x < startX + mask.spanLength( span ); x++, pixel++ )
+            {
+                target.setRGB( x, y, alpha | overlay.blend( shades[ pixel ] & 0xFF ) );
+            }
+        }
+    }
+}
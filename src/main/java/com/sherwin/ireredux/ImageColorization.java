@@ -27,12 +27,7 @@ import lombok.extern.slf4j.Slf4j;
 import static com.sherwin.ireredux.ImageRenderingConstants.MITIGATED_MAX;
 import static com.sherwin.ireredux.ImageRenderingConstants.MITIGATED_MIN;
 
-import java.awt.Color;
 import java.awt.image.BufferedImage;
-import java.awt.image.PixelGrabber;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collections;
 import java.util.List;
 
 /**
@@ -41,27 +36,29 @@ import java.util.List;
 @Slf4j
 public class ImageColorization
 {
-    private static int red = 0;
-    private static int green = 1;
-    private static int blue = 2;
-    private static int alpha = 3;
-
     /**
      * Apply the surface color using the appropriate color algorithm to the base
-     * image where the masking image overlays it
+     * image where the shading layer overlays it
      *
      * @param baseImage
-     * @param maskImage
-     * @param surfaceColor the color to apply to masked section of the image
+     * @param shading the mitigated, desaturated masked section of the image
+     * @param overlay the blend of the color to apply to masked section of the image
+     * @param bands splits the blend into bands of rows
      * @throws Exception
      */
-    protected static void applyColor( BufferedImage origImage, BufferedImage baseImage,
-                                      BufferedImage maskImage, Color surfaceColor )
+    protected static void applyColor( BufferedImage baseImage, ShadingLayer shading, OverlayTable overlay,
+                                      BandExecutor bands )
             throws Exception
     {
         long startTime = System.currentTimeMillis();
 
-        paintProcess( origImage, baseImage, maskImage, surfaceColor );
+        // use overlay blend mode to blend color back onto image
+        // DE6714 - Rendering failing for some custom scenes, 400 response
+        //          if mitigationProcess() returns a zero length maskPixel collection, do not apply this mask
+        if( !shading.isEmpty() )
+        {
+            blendOverlayWithMask( baseImage, shading, overlay, bands );
+        }
 
         long endTime = System.currentTimeMillis();
 
@@ -73,83 +70,76 @@ public class ImageColorization
 
     /**
      * Paint the pixels onto the mask from the base image. Desaturate the masked
-     * portion of the base image. Mitigate the image to reduce intensity extremes.
-     * Overlay blend the color onto the mask and composite the mask onto the base
-     * image.
+     * portion of the base image and mitigate it to reduce intensity extremes.
+     * None of this depends on the surface color, so the resulting shading layer
+     * can be reused for every color the surface is painted with.
      *
-     * @param baseImage
-     * @param maskImage
-     * @param surfaceColor
+     * @param luminance the desaturated, unpainted base image
+     * @param mask
+     * @param bands splits the per-pixel stages into bands of rows
+     * @return the shading layer of the masked section
      * @throws Exception
      */
-    private static void paintProcess( BufferedImage origImage, BufferedImage baseImage,
-                                      BufferedImage maskImage, Color surfaceColor )
+    protected static ShadingLayer shade( LuminancePlane luminance, MaskBitmap mask, BandExecutor bands )
             throws Exception
     {
-        int width = baseImage.getWidth();
-        int height = baseImage.getHeight();
-
-        // Getting the pixels once, since this is a fairly expensive process.
-        // Also using PixelGrabber instead of getRGB() seems to be quicker.
-        PixelGrabber pixelGrabber = new PixelGrabber( origImage, 0, 0, width, height, false );
-        pixelGrabber.grabPixels();
-        int[] imagePixels = (int[]) pixelGrabber.getPixels();
-
-        PixelGrabber maskPixelGrabber = new PixelGrabber( maskImage, 0, 0, width, height, false );
-        maskPixelGrabber.grabPixels();
-        int[] maskPixels = (int[]) maskPixelGrabber.getPixels();
+        // DE6714 - a mask without any pixels has no effect on the rendered image
+        if( mask.isEmpty() )
+        {
+            return ShadingLayer.empty( mask );
+        }
 
-        // copy baseImage pixels into masked region and run analysis on bitmap data
-        maskPixels = copyDesaturatedPixelsToMask( imagePixels, maskPixels, maskImage );
+        // copy the base image luminance into masked region and run analysis on bitmap data
+        int[] maskPixels = copyDesaturatedPixelsToMask( luminance, mask, bands );
 
         // mitigate de-saturated region to reduce intensity extremes
-        maskPixels = mitigationProcess( maskPixels, MITIGATED_MIN, MITIGATED_MAX );
-        //maskImage.setRGB( 0, 0, width, height, maskPixels, 0, width );
+        maskPixels = mitigationProcess( maskPixels, MITIGATED_MIN, MITIGATED_MAX, bands );
 
-        // use overlay blend mode to blend color back onto image
-        // DE6714 - Rendering failing for some custom scenes, 400 response
-        //          if mitigationProcess() returns a zero length maskPixel collection, do not apply this mask
-        if ( maskPixels.length != 0 ) {
-            blendOverlayWithMask( baseImage, maskPixels, surfaceColor );
-        }
+        return ShadingLayer.of( mask, maskPixels );
     }
 
     /**
      * Copy pixels from baseImage to maskImage in the masked region
-     * only and de-saturate with same values as CVT
+     * only, already de-saturated with same values as CVT
      * (red at 0.3, green at 0.6 and blue at 0.1).
      *
-     * @param imagePixels - The image being analyzed
-     * @param maskPixels - The mask of the image
+     * @param luminance - The de-saturated base image
+     * @param mask - The mask of the image
+     * @param bands - Splits the work into bands of rows
+     * @return the de-saturated pixels of the masked region, in the order of the mask spans
      * @throws Exception
      */
-    protected static int[] copyDesaturatedPixelsToMask( int[] imagePixels, int[] maskPixels,
-                                                        BufferedImage maskImage )
+    protected static int[] copyDesaturatedPixelsToMask( LuminancePlane luminance, MaskBitmap mask,
+                                                        BandExecutor bands )
             throws Exception
     {
         long startTime = System.currentTimeMillis();
 
-        for( int i = 0; i < imagePixels.length; i++ )
+        int[] maskPixels = new int[ mask.pixelCount() ];
+        int[] pixelOffsets = BandExecutor.pixelOffsets( mask );
+        bands.forEachSpan( mask, ( band, fromSpan, toSpan ) ->
         {
-            // get RGB pixels
-            int rgb = imagePixels[ i ];
-            int blue = (rgb) & 0x000000FF;
-            int green = (rgb >> 8) & 0x000000FF;
-            int red = (rgb >> 16) & 0x000000FF;
-            int mask = (maskPixels[ i ] >> 8) & 0x000000FF; // integer is in ABGR format rather than ARGB
-
-            // de-saturate pixel
-            int lum = (int) Math.round( 0.299 * red + 0.587 * green + 0.114 * blue );
-            imagePixels[ i ] = (mask << 24) | (lum << 16) | (lum << 8) | lum;
-
-        }
+            int pixel = pixelOffsets[ fromSpan ];
+            for( int span = fromSpan; span < toSpan; span++ )
+            {
+                int coverage = mask.spanCoverage( span );
+                int y = mask.spanRow( span );
+                int startX = mask.spanStart( span );
+                int endX = startX + mask.spanLength( span );
+                for( int x = startX; x < endX; x++ )
+                {
+                    int lum = luminance.get( x, y );
+                    maskPixels[ pixel++ ] = (coverage << 24) | (lum << 16) | (lum << 8) | lum;
+                }
+            }
+        } );
 
         if( log.isDebugEnabled() )
         {
             log.debug( "Time to destaurate: " + (System.currentTimeMillis() - startTime) + " ms" );
         }
 
-        return imagePixels;
+        return maskPixels;
     }
 
     /**
@@ -158,10 +148,12 @@ public class ImageColorization
      * @param imagePixels
      * @param mitigatedMin
      * @param mitigatedMax
+     * @param bands splits the color matrix pass into bands
      * @return
      * @throws Exception
      */
-    protected static int[] mitigationProcess( int[] imagePixels, int mitigatedMin, int mitigatedMax )
+    protected static int[] mitigationProcess( int[] imagePixels, int mitigatedMin, int mitigatedMax,
+                                              BandExecutor bands )
             throws Exception
     {
 
@@ -171,30 +163,59 @@ public class ImageColorization
          *  Calculate min/max/median intensities. Since we already have a grayscale image,
          *  the rgb value is just the intensity of one of the colors of that pixel
          */
-        ArrayList<Integer> redValues = new ArrayList<Integer>();// new int[ imagePixels.length ];
+        IntensityHistogram histogram = new IntensityHistogram();
         for( int pixel : imagePixels )
         {
             // check that pixel's alpha value is not 0 (not transparent)
             if( ((pixel >> 24) & 0x000000FF) != 0 )
             {
-                // add the pixel's red value to the collection
-                redValues.add( ((pixel >> 16) & 0x000000FF) );
+                // count the pixel's red value
+                histogram.add( (pixel >> 16) & 0x000000FF );
             }
         }
 
         // DE6714 - Rendering failing for some custom scenes, 400 response
-        //          if no red values were populated in the collection, this indicates the surface mask contains no pixels
+        //          if no red values were counted, this indicates the surface mask contains no pixels
         //          with any transparency. The mask will have no effect on the rendered image, thus processing of this
         //          specific mask can be aborted at this point and processing of additional masks (if they exist) can proceed
-        if ( redValues.size() == 0 ) {
+        if ( histogram.count() == 0 ) {
             return new int[] {};
         }
 
-        Collections.sort( redValues );
-        float avgIntensity = median( redValues );
-        int minIntensity = redValues.get( 0 );
-        int maxIntensity = redValues.get( redValues.size() - 1 );
+        float avgIntensity = histogram.median();
+        int minIntensity = histogram.min();
+        int maxIntensity = histogram.max();
+
+        double matrix[] = mitigationMatrix( minIntensity, maxIntensity, avgIntensity, mitigatedMin,
+                mitigatedMax );
+
+        // apply the color matrix adjustment
+        imagePixels = colorMatrixFilter( imagePixels, matrix, bands );
+
+        if( log.isDebugEnabled() )
+        {
+            log.debug( "Time to mitigate: " + (System.currentTimeMillis() - startTime) + " ms" );
+        }
 
+        return imagePixels;
+    }
+
+    /**
+     * Calculate the color matrix that mitigates the intensities of a masked region
+     * with the given intensity statistics.
+     *
+     * @param minIntensity lowest intensity in the region
+     * @param maxIntensity highest intensity in the region
+     * @param avgIntensity median intensity of the region
+     * @param mitigatedMin
+     * @param mitigatedMax
+     * @return the 4 x 5 RGBA adjustment matrix
+     * @throws Exception
+     */
+    protected static double[] mitigationMatrix( int minIntensity, int maxIntensity, float avgIntensity,
+                                                int mitigatedMin, int mitigatedMax )
+            throws Exception
+    {
         if( minIntensity == maxIntensity )
         {
             /*
@@ -271,16 +292,7 @@ public class ImageColorization
         double matrix[] = {
                 factor, 0, 0, 0, offset, 0, factor, 0, 0, offset, 0, 0, factor, 0, offset, 0, 0, 0, 1,
                 0 };
-
-        // apply the color matrix adjustment
-        imagePixels = colorMatrixFilter( imagePixels, matrix );
-
-        if( log.isDebugEnabled() )
-        {
-            log.debug( "Time to mitigate: " + (System.currentTimeMillis() - startTime) + " ms" );
-        }
-
-        return imagePixels;
+        return matrix;
     }
 
     /**
@@ -311,43 +323,47 @@ public class ImageColorization
      *
      * @param imagePixels
      * @param m
+     * @param bands splits the pixels into bands
      * @return
      * @throws InterruptedException
      */
-    protected static int[] colorMatrixFilter( int[] imagePixels, double[] m )
+    protected static int[] colorMatrixFilter( int[] imagePixels, double[] m, BandExecutor bands )
             throws InterruptedException
     {
         long startTime = System.currentTimeMillis();
 
-        for( int i = 0; i < imagePixels.length; i++ )
+        bands.forEach( imagePixels.length, imagePixels.length, ( band, from, to ) ->
         {
-            // get RGBA values
-            int rgb = imagePixels[ i ];
-            int srcR = (rgb >> 16) & 0x000000FF;
-            int srcG = (rgb >> 8) & 0x000000FF;
-            int srcB = (rgb) & 0x000000FF;
-            int srcA = ((rgb >> 24) & 0x000000FF);
-
-            // skip calculations to save some cycles if the alpha of the pixel is 0
-            if( srcA == 0 )
+            for( int i = from; i < to; i++ )
             {
-                continue;
+                // get RGBA values
+                int rgb = imagePixels[ i ];
+                int srcR = (rgb >> 16) & 0x000000FF;
+                int srcG = (rgb >> 8) & 0x000000FF;
+                int srcB = (rgb) & 0x000000FF;
+                int srcA = ((rgb >> 24) & 0x000000FF);
+
+                // skip calculations to save some cycles if the alpha of the pixel is 0
+                if( srcA == 0 )
+                {
+                    continue;
+                }
+
+                // apply matrix
+                int redResult = (int) ((m[ 0 ] * srcR) + (m[ 1 ] * srcG) + (m[ 2 ] * srcB)
+                        + (m[ 3 ] * srcA) + m[ 4 ]);
+                int greenResult = (int) ((m[ 5 ] * srcR) + (m[ 6 ] * srcG) + (m[ 7 ] * srcB)
+                        + (m[ 8 ] * srcA) + m[ 9 ]);
+                int blueResult = (int) ((m[ 10 ] * srcR) + (m[ 11 ] * srcG) + (m[ 12 ] * srcB)
+                        + (m[ 13 ] * srcA) + m[ 14 ]);
+                int alphaResult = (int) ((m[ 15 ] * srcR) + (m[ 16 ] * srcG) + (m[ 17 ] * srcB)
+                        + (m[ 18 ] * srcA) + m[ 19 ]);
+
+                // set value to array of pixels
+                imagePixels[ i ] = ((alphaResult & 0xFF) << 24) | ((redResult & 0xFF) << 16)
+                        | ((greenResult & 0xFF) << 8) | (blueResult & 0xFF);
             }
-
-            // apply matrix
-            int redResult = (int) ((m[ 0 ] * srcR) + (m[ 1 ] * srcG) + (m[ 2 ] * srcB)
-                    + (m[ 3 ] * srcA) + m[ 4 ]);
-            int greenResult = (int) ((m[ 5 ] * srcR) + (m[ 6 ] * srcG) + (m[ 7 ] * srcB)
-                    + (m[ 8 ] * srcA) + m[ 9 ]);
-            int blueResult = (int) ((m[ 10 ] * srcR) + (m[ 11 ] * srcG) + (m[ 12 ] * srcB)
-                    + (m[ 13 ] * srcA) + m[ 14 ]);
-            int alphaResult = (int) ((m[ 15 ] * srcR) + (m[ 16 ] * srcG) + (m[ 17 ] * srcB)
-                    + (m[ 18 ] * srcA) + m[ 19 ]);
-
-            // set value to array of pixels
-            imagePixels[ i ] = ((alphaResult & 0xFF) << 24) | ((redResult & 0xFF) << 16)
-                    | ((greenResult & 0xFF) << 8) | (blueResult & 0xFF);
-        }
+        } );
 
         if( log.isDebugEnabled() )
         {
@@ -364,22 +380,19 @@ public class ImageColorization
      * image onto baseImage.
      *
      * @param baseImage The image to be blended onto
-     * @param maskImage Masked shape to blend the color with
-     * @param surfaceColor Color to be blended
+     * @param shading Masked shape to blend the color with
+     * @param overlay The blend of the color onto every gray level
+     * @param bands Splits the blend into bands of rows
      * @throws Exception
      */
-    protected static void blendOverlayWithMask( BufferedImage baseImage, int maskPixels[],
-                                                Color surfaceColor )
+    protected static void blendOverlayWithMask( BufferedImage baseImage, ShadingLayer shading,
+                                                OverlayTable overlay, BandExecutor bands )
             throws Exception
     {
         long startTime = System.currentTimeMillis();
 
-        // create surface color pixel array
-        int[] coloredPixels = new int[ maskPixels.length ];
-        Arrays.fill( coloredPixels, surfaceColor.getRGB() );
-
         // perform the overlay blend
-        blendOverlay( coloredPixels, maskPixels, baseImage );
+        blendOverlay( overlay, shading, baseImage, bands );
 
         if( log.isDebugEnabled() )
         {
@@ -389,9 +402,8 @@ public class ImageColorization
     }
 
     /**
-     * Takes an array of pixels and overlay blends them onto a destination
-     * set of pixels. These overlay blended pixels are then written onto
-     * baseImage.
+     * Overlay blends a solid color onto a destination set of pixels. These
+     * overlay blended pixels are then written onto baseImage.
      *
      * Definition of overlay blend:
      * Adjusts the color of each pixel based on the darkness of the background.
@@ -400,60 +412,38 @@ public class ImageColorization
      * the background is darker than 50% gray, the colors are multiplied,
      * which results in a darker color. Alpha is just passed through.
      *
-     * @param src Source image pixels
+     * The background is gray, so for one color the result only depends on the
+     * gray level; the overlay table holds it for all 256 of them.
+     *
+     * @param src The blend of the source color onto every gray level
      * @param dst Destination image pixels
      * @param baseImage Image to write pixels to
+     * @param bands Splits the blend into bands of rows, each writing its own pixels
      * @return
      */
-    protected static void blendOverlay( int[] src, int[] dst, BufferedImage baseImage )
+    protected static void blendOverlay( OverlayTable src, ShadingLayer dst, BufferedImage baseImage,
+                                        BandExecutor bands )
     {
-        int[] result = new int[ 4 ];
-        int[] srcPixel = new int[ 4 ];
-        int[] dstPixel = new int[ 4 ];
-
-        float alphaValue = 1;
-
-        for( int i = 0; i < src.length; i++ )
+        MaskBitmap mask = dst.getMask();
+        PixelBuffer target = PixelBuffer.of( baseImage );
+        int[] pixelOffsets = BandExecutor.pixelOffsets( mask );
+        bands.forEachSpan( mask, ( band, fromSpan, toSpan ) ->
         {
-            // pixels are stored as INT_ARGB
-            // our arrays are [R, G, B, A]
-            int pixel = src[ i ];
-            srcPixel[ red ] = (pixel >> 16) & 0xFF;
-            srcPixel[ green ] = (pixel >> 8) & 0xFF;
-            srcPixel[ blue ] = (pixel) & 0xFF;
-            srcPixel[ alpha ] = (pixel >> 24) & 0xFF;
-
-            pixel = dst[ i ];
-            dstPixel[ red ] = (pixel >> 16) & 0xFF;
-            dstPixel[ green ] = (pixel >> 8) & 0xFF;
-            dstPixel[ blue ] = (pixel) & 0xFF;
-            dstPixel[ alpha ] = (pixel >> 24) & 0xFF;
-
-            // skip calculations and writing of pixels to save some cycles
-            // if the alpha of the pixel is 0
-            if( dstPixel[ alpha ] == 0 )
+            int i = pixelOffsets[ fromSpan ];
+            for( int span = fromSpan; span < toSpan; span++ )
             {
-                continue;
+                // the mask coverage is passed through as alpha
+                int alphaBits = mask.spanCoverage( span ) << 24;
+                int y = mask.spanRow( span );
+                int startX = mask.spanStart( span );
+                int endX = startX + mask.spanLength( span );
+                for( int x = startX; x < endX; x++, i++ )
+                {
+                    // write pixel on to base image as this is our final step
+                    target.setRGB( x, y, alphaBits | src.blend( dst.shade( i ) ) );
+                }
             }
-
-            // overlay calculation
-            result[ red ] = dstPixel[ red ] < 128 ? dstPixel[ red ] * srcPixel[ red ] >> 7
-                    : 255 - ((255 - dstPixel[ red ]) * (255 - srcPixel[ red ]) >> 7);
-            result[ green ] = dstPixel[ green ] < 128 ? dstPixel[ green ] * srcPixel[ green ] >> 7
-                    : 255 - ((255 - dstPixel[ green ]) * (255 - srcPixel[ green ]) >> 7);
-            result[ blue ] = dstPixel[ blue ] < 128 ? dstPixel[ blue ] * srcPixel[ blue ] >> 7
-                    : 255 - ((255 - dstPixel[ blue ]) * (255 - srcPixel[ blue ]) >> 7);
-            result[ alpha ] = dstPixel[ alpha ];
-
-            // mixes the result with the opacity
-            pixel = ((int) (dstPixel[ 3 ] + (result[ 3 ] - dstPixel[ 3 ]) * alphaValue) & 0xFF) << 24
-                    | ((int) (dstPixel[ 0 ] + (result[ 0 ] - dstPixel[ 0 ]) * alphaValue) & 0xFF) << 16
-                    | ((int) (dstPixel[ 1 ] + (result[ 1 ] - dstPixel[ 1 ]) * alphaValue) & 0xFF) << 8
-                    | (int) (dstPixel[ 2 ] + (result[ 2 ] - dstPixel[ 2 ]) * alphaValue) & 0xFF;
-
-            // write pixel on to base image as this is our final step
-            baseImage.setRGB( (i % baseImage.getWidth()), (i / baseImage.getWidth()), pixel );
-        }
+        } );
     }
 
 
@@ -36,6 +36,8 @@ public class ImageRenderingConstants
     public static final String RENDERED_IMAGE_HEIGHT = "h";
     public static final String RENDERED_IMAGE_WIDTH = "w";
     public static final String SURFACE_DATA_DELIMITER = "~";
+    // milliseconds the client will wait for the render, shortens the configured deadline
+    public static final String RENDER_TIMEOUT_PARAMETER = "timeout";
 
     /*
      * Response type - if set to 'text' then an image will not be returned in
@@ -1,18 +1,27 @@
 package com.sherwin.ireredux;
 
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseBody;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.async.DeferredResult;
 
 import javax.imageio.ImageIO;
+import java.awt.Dimension;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 import static com.sherwin.ireredux.ImageRenderingConstants.*;
 
@@ -20,10 +29,43 @@ import static com.sherwin.ireredux.ImageRenderingConstants.*;
 @RestController
 @Slf4j
 public class ImageRenderingController {
-    @GetMapping(value = "**", produces = MediaType.IMAGE_JPEG_VALUE)
-    public @ResponseBody byte[] getImage(@RequestParam Map<String, String> params) throws IOException {
-        byte[] payload = new byte[0];
+    private final RenderedImageCache renderedImageCache;
+    private final BaseImageCache baseImageCache;
+    private final SceneCache sceneCache;
+    private final ColorizationEngine colorizationEngine;
+    private final OverlayTableCache overlayTableCache;
+    private final BandExecutor bandExecutor;
+    private final RenderExecutor renderExecutor;
+    private final RenderMemoryBudget memoryBudget;
+    private final StageExecutor stageExecutor;
+
+    public ImageRenderingController(RenderedImageCache renderedImageCache, BaseImageCache baseImageCache,
+                                    SceneCache sceneCache,
+                                    @Value("${ire.colorization.engine:FUSED}") ColorizationEngine colorizationEngine,
+                                    OverlayTableCache overlayTableCache, BandExecutor bandExecutor,
+                                    RenderExecutor renderExecutor, RenderMemoryBudget memoryBudget,
+                                    StageExecutor stageExecutor) {
+        this.renderedImageCache = renderedImageCache;
+        this.baseImageCache = baseImageCache;
+        this.sceneCache = sceneCache;
+        this.colorizationEngine = colorizationEngine;
+        this.overlayTableCache = overlayTableCache;
+        this.bandExecutor = bandExecutor;
+        this.renderExecutor = renderExecutor;
+        this.memoryBudget = memoryBudget;
+        this.stageExecutor = stageExecutor;
+    }
 
+    /**
+     * Render a scene. Renders run on the {@link RenderExecutor}; the request
+     * thread is released while the render is queued and running. The render
+     * has until the configured timeout, see {@link RenderDeadline}. A client
+     * may ask for a shorter timeout, which ends only its own wait: identical
+     * requests share one render, and it is stopped once every one of them
+     * has timed out or failed.
+     */
+    @GetMapping(value = "**", produces = MediaType.IMAGE_JPEG_VALUE)
+    public @ResponseBody DeferredResult<byte[]> getImage(@RequestParam Map<String, String> params) {
         String baseImageLocation = params.get(BASE_IMAGE_LOCATION_PARAMETER);
         int lastIndex = baseImageLocation.lastIndexOf("/");
         String sourceDir = baseImageLocation.substring( 0, lastIndex );
@@ -35,37 +77,199 @@ public class ImageRenderingController {
 
         int width = params.get(RENDERED_IMAGE_WIDTH) != null ? Integer.parseInt(params.get(RENDERED_IMAGE_WIDTH)) : 0;
         int height = params.get(RENDERED_IMAGE_HEIGHT) != null ? Integer.parseInt(params.get(RENDERED_IMAGE_HEIGHT)) : 0;
+        long timeout = params.get(RENDER_TIMEOUT_PARAMETER) != null
+                ? Long.parseLong(params.get(RENDER_TIMEOUT_PARAMETER)) : 0;
 
+        File xmlFile = new File( baseImageLocation + ".xml" );
 
-        try {
-            long imageTime = System.currentTimeMillis();
-            BufferedImage baseImage = ImageIO.read( sourceFile );
-            if (log.isDebugEnabled()) {
-                log.debug("Time to read image: " + (System.currentTimeMillis() - imageTime) + " ms");
+        // the same scene/size/colorway is requested over and over, serve it from memory when we can
+        String renderKey = RenderedImageCache.renderKey(params, sourceFile.lastModified(), xmlFile.lastModified());
+        byte[] cachedPayload = renderedImageCache.get(renderKey);
+        if (cachedPayload != null) {
+            DeferredResult<byte[]> response = new DeferredResult<>();
+            response.setResult(cachedPayload);
+            return response;
+        }
+
+        // identical requests arriving while this one renders wait for it instead of rendering again
+        RenderDeadline deadline = renderExecutor.deadline(0);
+        CompletableFuture<byte[]> rendered = renderedImageCache.render(renderKey,
+                () -> startRender(sourceFile, xmlFile, width, height, params, deadline),
+                () -> deadline.abandon(RenderDeadline.DISCONNECT));
+
+        // nobody reads the response once it timed out or failed, stop waiting for the render
+        RenderDeadline clientDeadline = renderExecutor.deadline(timeout);
+        DeferredResult<byte[]> response = new DeferredResult<>(clientDeadline.remainingMillis());
+        response.onTimeout(() -> {
+            rendered.cancel(false);
+            response.setErrorResult(new RenderAbandonedException(RenderDeadline.TIMEOUT,
+                    clientDeadline.getRetryAfterSeconds()));
+        });
+        response.onError(e -> rendered.cancel(false));
+
+        rendered.whenComplete((payload, e) -> {
+            if (e == null) {
+                response.setResult(payload);
+                return;
             }
+            if (e instanceof CancellationException) {
+                // the response has already timed out or failed
+                return;
+            }
+            Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+            if (cause instanceof RenderRejectedException) {
+                response.setErrorResult(cause);
+                return;
+            }
+            log.error("Could not get image: " + cause.getMessage());
+            response.setResult(new byte[0]);
+        });
+        return response;
+    }
+
+    /**
+     * Shed load: tell the client when to come back instead of queueing it.
+     */
+    @ExceptionHandler(RenderRejectedException.class)
+    public ResponseEntity<byte[]> renderRejected(RenderRejectedException e) {
+        if (log.isDebugEnabled()) {
+            log.debug("Render rejected: " + e.getMessage());
+        }
+        return ResponseEntity.status(e.getStatus())
+                .header(HttpHeaders.RETRY_AFTER, Long.toString(e.getRetryAfterSeconds())).build();
+    }
+
+    /*
+     * Reserve the working memory of the render before it takes a render thread, so that no render
+     * thread is held while it waits for memory, and give it back once the render is done
+     */
+    private CompletableFuture<byte[]> startRender(File sourceFile, File xmlFile, int width, int height,
+                                                  Map<String, String> params, RenderDeadline deadline) {
+        Dimension cachedSize = baseImageCache.cachedSize(sourceFile);
+        Dimension sourceSize;
+        try {
+            sourceSize = cachedSize != null ? cachedSize : BaseImageCache.readSize(sourceFile);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        long workingSet = RenderMemoryBudget.estimate(sourceSize, cachedSize == null, width, height, params,
+                stageExecutor.parallelism());
+        return memoryBudget.reserve(workingSet).thenCompose(reservation -> {
+            CompletableFuture<byte[]> rendered = renderExecutor.submit(
+                    () -> render(sourceFile, xmlFile, sourceSize, width, height, params, deadline), deadline);
+            rendered.whenComplete((payload, e) -> reservation.close());
+            return rendered;
+        });
+    }
+
+    private byte[] render(File sourceFile, File xmlFile, Dimension sourceSize, int width, int height,
+                          Map<String, String> params, RenderDeadline deadline) throws Exception {
+        // the memory reserved for the render is only given back once no stage of it is running any more
+        try (StageExecutor.Group stages = stageExecutor.group()) {
+            // the loops of this render check its deadline as they go, the steps in between are checked here
+            BandExecutor bands = bandExecutor.withDeadline(deadline);
+            deadline.check();
 
-            File xmlFile = new File( baseImageLocation + ".xml" );
-            Map<String, String> surfaceMaskMap = SourceXmlFileParser.parse(xmlFile);
+            /*
+             * The base image is read while the scene is parsed, and resized as soon as it is read. Once
+             * both are there every mask whose shading is not cached yet is decoded, each on its own. The
+             * masks are decoded for the size the base image will be resized to, which is known from the
+             * size of the source image, so they are only decoded ahead if the image read has that size.
+             * Whatever is still running when the render ends, because it failed or ran out of time, is
+             * waited for before the render returns.
+             */
+            CompletableFuture<DecodedImage> decoded = stages.supply(() -> {
+                deadline.check();
+                return baseImageCache.read( sourceFile );
+            });
+            CompletableFuture<BufferedImage> resized = decoded.thenCompose(decodedImage -> stages.supply(() -> {
+                deadline.check();
+                return resize(decodedImage, width, height);
+            }));
+            CompletableFuture<Scene> parsed = stages.supply(() -> readScene(xmlFile));
+            CompletableFuture<Map<UniqueSurfaceMask, String>> surfaceColors = parsed.thenApply(
+                    scene -> scene != null ? SurfaceMasking.surfaceColors(scene, params) : Map.of());
+            Dimension targetSize = width > 0 || height > 0
+                    ? ImageUtil.resizedSize(sourceSize.width, sourceSize.height, width, height) : sourceSize;
+            CompletableFuture<Map<UniqueSurfaceMask, CompletableFuture<MaskBitmap>>> preparedMasks =
+                    surfaceColors.thenCombine(decoded, (colors, decodedImage) -> hasSize(decodedImage, sourceSize)
+                            ? SurfaceMasking.prepareMasks(parsed.join(), decodedImage, sceneCache, colors.keySet(),
+                                    targetSize.width, targetSize.height, stages, deadline)
+                            : Map.of());
 
-            // resize if we have at least one dimension
-            if (width > 0 || height > 0) {
-                int baseImageWidth = baseImage.getWidth();
-                int baseImageHeight = baseImage.getHeight();
-                baseImage = ImageUtil.resizeImage( baseImage, width, height );
+            // only the painting is sequential, in the order of the surfaces
+            DecodedImage decodedImage = await(decoded);
+            BufferedImage baseImage = await(resized);
+            Scene scene = await(parsed);
+            deadline.check();
+            // apply surface masking data to the image, the masks are drawn on the full size image
+            if (scene != null) {
+                LuminancePlane luminance = baseImageCache.getLuminance(decodedImage, baseImage);
+                SurfaceMasking.maskSurfaceData( baseImage, luminance, decodedImage, scene, sceneCache,
+                        await(surfaceColors), hasSize(baseImage, targetSize) ? await(preparedMasks) : Map.of(),
+                        colorizationEngine, overlayTableCache, bands );
             }
-            // do we actually do this? -RS
-            // apply surface masking data to the image
-            SurfaceMasking.maskSurfaceData( baseImage, surfaceMaskMap, params );
+            deadline.check();
 
             ByteArrayOutputStream bytesOut = new ByteArrayOutputStream();
             ImageIO.write(baseImage, "jpg", bytesOut);
 
-            payload = bytesOut.toByteArray();
+            return bytesOut.toByteArray();
+        }
+    }
+
+    /*
+     * Resize if we have at least one dimension, otherwise work on a private copy of the shared pixels
+     */
+    private BufferedImage resize(DecodedImage decodedImage, int width, int height) {
+        BufferedImage baseImage = null;
+        if (width > 0 || height > 0) {
+            baseImage = baseImageCache.resize(decodedImage, width, height);
+        }
+        if (baseImage == null) {
+            baseImage = decodedImage.toBufferedImage();
+        }
+        return baseImage;
+    }
+
+    /*
+     * The masks prepared ahead only fit a render whose images have the size they were decoded for
+     */
+    private static boolean hasSize(DecodedImage image, Dimension size) {
+        return image.getWidth() == size.width && image.getHeight() == size.height;
+    }
+
+    private static boolean hasSize(BufferedImage image, Dimension size) {
+        return image.getWidth() == size.width && image.getHeight() == size.height;
+    }
 
-        } catch (Exception e) {
-            log.error("Could not get image: " + e.getMessage());
+    /*
+     * The scene of the render, null if it cannot be parsed; the base image is rendered as it is then
+     */
+    private Scene readScene(File xmlFile) {
+        try {
+            return sceneCache.getScene(xmlFile);
+        } catch (IOException e) {
+            log.error("Error parsing " + xmlFile + ": " + e.getMessage());
+            return null;
         }
+    }
 
-        return payload;
+    /*
+     * Wait for a stage of the render, failing with what the stage failed with
+     */
+    private static <V> V await(CompletableFuture<V> stage) throws Exception {
+        try {
+            return stage.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        }
     }
 }
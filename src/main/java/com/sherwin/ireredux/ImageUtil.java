@@ -21,7 +21,12 @@
  */
 package com.sherwin.ireredux;
 
+import java.awt.Dimension;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.ArrayList;
+import java.util.List;
 import org.imgscalr.Scalr;
 
 /**
@@ -120,5 +125,228 @@ public class ImageUtil
         return resizedImage;
     }
 
-}
+    /**
+     * Return the size {@link #resizeImage} resizes an image of the given size
+     * to, without resizing anything. imgscalr keeps the proportions of the
+     * image by fitting it to one of the dimensions and rounding the other.
+     *
+     * @param imageWidth - The width of the user's image
+     * @param imageHeight - The height of the user's image
+     * @param targetWidth - The resize width
+     * @param targetHeight - The resize height
+     * @return the size of the resized image, the image size if it is returned as-is
+     */
+    public static Dimension resizedSize( int imageWidth, int imageHeight, int targetWidth, int targetHeight )
+    {
+        if( (targetWidth == 0 && targetHeight == 0)
+                || (imageWidth == targetWidth && imageHeight == targetHeight) )
+        {
+            return new Dimension( imageWidth, imageHeight );
+        }
+
+        // the same calculations as resizeImage, see there
+        boolean fitToWidth;
+        if( targetWidth > 0 && targetHeight > 0 )
+        {
+            double Mr = Math.min( targetWidth / (double) imageWidth, targetHeight / (double) imageHeight );
+            double Wd = Math.abs( Mr * imageWidth - targetWidth );
+            double Hd = Math.abs( Mr * imageHeight - targetHeight );
+            fitToWidth = Hd == Wd ? targetHeight >= targetWidth : Hd > Wd;
+        }
+        else
+        {
+            // Scalr.Mode.AUTOMATIC fits landscape images to the width and portrait ones to the height
+            targetWidth = targetHeight = Math.max( targetWidth, targetHeight );
+            fitToWidth = imageHeight <= imageWidth;
+        }
+
+        // as Scalr.resize does it
+        float ratio = (float) imageHeight / (float) imageWidth;
+        if( fitToWidth )
+        {
+            return targetWidth == imageWidth ? new Dimension( imageWidth, imageHeight )
+                    : new Dimension( targetWidth, Math.round( targetWidth * ratio ) );
+        }
+        return targetHeight == imageHeight ? new Dimension( imageWidth, imageHeight )
+                : new Dimension( Math.round( targetHeight / ratio ), targetHeight );
+    }
 
+    /**
+     * Resize a region cut out of a larger image to exactly the given size, with
+     * the scaling method imgscalr would pick for resizing the whole image.
+     *
+     * @param region - The cut out region
+     * @param targetWidth - The resize width of the region
+     * @param targetHeight - The resize height of the region
+     * @param imageWidth - The resize width of the whole image
+     * @param imageHeight - The resize height of the whole image
+     * @return a resized {@link BufferedImage}
+     */
+    public static BufferedImage resizeRegion( BufferedImage region, int targetWidth, int targetHeight,
+                                              int imageWidth, int imageHeight )
+    {
+        if( region.getWidth() == targetWidth && region.getHeight() == targetHeight )
+        {
+            return region;
+        }
+        return Scalr.resize( region, scalingMethod( imageWidth, imageHeight ), Scalr.Mode.FIT_EXACT, targetWidth,
+                targetHeight );
+    }
+
+    /**
+     * Resize a region cut out of an image to the size it has in the resized
+     * image, with the same result as resizing the whole image and cutting the
+     * region out of that. The region is taken through every intermediate size
+     * imgscalr takes the whole image through, see {@link #resizeSteps}, so its
+     * box has to lie on whole pixels at each of them, see {@link #regionUnit}.
+     * Pixels within the resampling filter's reach of the box edges differ from
+     * the whole image unless the image is empty there.
+     *
+     * @param region - The cut out region
+     * @param box - Where the region lies in the image
+     * @param imageWidth - The width of the whole image
+     * @param imageHeight - The height of the whole image
+     * @param targetWidth - The resize width of the whole image
+     * @param targetHeight - The resize height of the whole image
+     * @return the resized region
+     */
+    public static BufferedImage resizeRegion( BufferedImage region, Rectangle box, int imageWidth,
+                                              int imageHeight, int targetWidth, int targetHeight )
+    {
+        Scalr.Method method = scalingMethod( targetWidth, targetHeight );
+        for( Dimension step : resizeSteps( imageWidth, imageHeight, targetWidth, targetHeight ) )
+        {
+            int width = scale( box.x + box.width, step.width, imageWidth ) - scale( box.x, step.width, imageWidth );
+            int height = scale( box.y + box.height, step.height, imageHeight )
+                    - scale( box.y, step.height, imageHeight );
+            // each step is a single scaling operation for imgscalr too, the steps at most halve the region
+            if( region.getWidth() != width || region.getHeight() != height )
+            {
+                region = Scalr.resize( region, method, Scalr.Mode.FIT_EXACT, width, height );
+            }
+        }
+        return region;
+    }
+
+    /**
+     * Return the sizes {@link #resizeRegion} takes an image through when
+     * resizing it. The quality method scales down in steps that halve the
+     * image until the next one would make it smaller than the target size,
+     * every other resize is a single step.
+     *
+     * @param imageWidth - The width of the image
+     * @param imageHeight - The height of the image
+     * @param targetWidth - The resize width
+     * @param targetHeight - The resize height
+     * @return the sizes after each step, the last one being the target size
+     */
+    public static List<Dimension> resizeSteps( int imageWidth, int imageHeight, int targetWidth, int targetHeight )
+    {
+        List<Dimension> steps = new ArrayList<Dimension>();
+        if( scalingMethod( targetWidth, targetHeight ) != Scalr.Method.QUALITY || targetWidth > imageWidth
+                || targetHeight > imageHeight )
+        {
+            steps.add( new Dimension( targetWidth, targetHeight ) );
+            return steps;
+        }
+
+        // as Scalr.scaleImageIncrementally does it
+        int width = imageWidth;
+        int height = imageHeight;
+        while( width > targetWidth || height > targetHeight )
+        {
+            if( width > targetWidth )
+            {
+                width = Math.max( targetWidth, width - width / 2 );
+            }
+            if( height > targetHeight )
+            {
+                height = Math.max( targetHeight, height - height / 2 );
+            }
+            steps.add( new Dimension( width, height ) );
+        }
+        return steps;
+    }
+
+    /**
+     * Return the spacing of the pixels of an image that lie on whole pixels
+     * at every size {@link #resizeRegion} takes it through. A region whose box
+     * starts and ends on these pixels, or at the edges of the image, resizes
+     * the same as the whole image; a spacing as large as the image means only
+     * the whole image does.
+     *
+     * @param imageWidth - The width of the image
+     * @param imageHeight - The height of the image
+     * @param targetWidth - The resize width
+     * @param targetHeight - The resize height
+     * @return the horizontal and vertical spacing, at most the image size
+     */
+    public static Dimension regionUnit( int imageWidth, int imageHeight, int targetWidth, int targetHeight )
+    {
+        long unitX = 1;
+        long unitY = 1;
+        for( Dimension step : resizeSteps( imageWidth, imageHeight, targetWidth, targetHeight ) )
+        {
+            unitX = Math.min( imageWidth, lcm( unitX, imageWidth / gcd( imageWidth, step.width ) ) );
+            unitY = Math.min( imageHeight, lcm( unitY, imageHeight / gcd( imageHeight, step.height ) ) );
+        }
+        return new Dimension( (int) unitX, (int) unitY );
+    }
+
+    /*
+     * Same thresholds as Scalr.Method.AUTOMATIC, for an image resized to the given size
+     */
+    private static Scalr.Method scalingMethod( int targetWidth, int targetHeight )
+    {
+        int length = Math.max( targetWidth, targetHeight );
+        if( length <= Scalr.THRESHOLD_QUALITY_BALANCED )
+        {
+            return Scalr.Method.QUALITY;
+        }
+        if( length <= Scalr.THRESHOLD_BALANCED_SPEED )
+        {
+            return Scalr.Method.BALANCED;
+        }
+        return Scalr.Method.SPEED;
+    }
+
+    /*
+     * A position of the image at another size, whole for positions on the region unit
+     */
+    private static int scale( int position, int size, int imageSize )
+    {
+        return (int) ((long) position * size / imageSize);
+    }
+
+    private static long gcd( long a, long b )
+    {
+        return b == 0 ? a : gcd( b, a % b );
+    }
+
+    private static long lcm( long a, long b )
+    {
+        return a / gcd( a, b ) * b;
+    }
+
+    /**
+     * Return the image as TYPE_INT_RGB, the packed format the colorization
+     * stages work on. The image itself is returned when it already is one.
+     *
+     * @param image - The image to convert
+     * @return a TYPE_INT_RGB {@link BufferedImage}
+     */
+    public static BufferedImage toPackedRgb( BufferedImage image )
+    {
+        if( image.getType() == BufferedImage.TYPE_INT_RGB )
+        {
+            return image;
+        }
+        BufferedImage rgbImage = new BufferedImage( image.getWidth(), image.getHeight(),
+                BufferedImage.TYPE_INT_RGB );
+        int[] pixels = PixelBuffer.readRGB( image, new Rectangle( image.getWidth(), image.getHeight() ) );
+        System.arraycopy( pixels, 0, ((DataBufferInt) rgbImage.getRaster().getDataBuffer()).getData(), 0,
+                pixels.length );
+        return rgbImage;
+    }
+
+}
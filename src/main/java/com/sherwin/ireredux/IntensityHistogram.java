@@ -0,0 +1,101 @@
+package com.sherwin.ireredux;
+
+/**
+ * Counts of the 8 bit intensities of a masked region. Gives the same min, max
+ * and median as sorting the intensities, without boxing or sorting them.
+ */
+public class IntensityHistogram
+{
+    private final int[] counts = new int[ 256 ];
+    private int count;
+
+    /**
+     * Count one intensity.
+     *
+     * @param intensity 0 - 255
+     */
+    public void add( int intensity )
+    {
+        counts[ intensity ]++ ;
+        count++ ;
+    }
+
+    /**
+     * Count all the intensities of another histogram, e.g. one of another band
+     * of the same region.
+     *
+     * @param other
+     */
+    public void add( IntensityHistogram other )
+    {
+        for( int value = 0; value < counts.length; value++ )
+        {
+            counts[ value ] += other.counts[ value ];
+        }
+        count += other.count;
+    }
+
+    /**
+     * @return how many intensities were counted
+     */
+    public int count()
+    {
+        return count;
+    }
+
+    /**
+     * @return the lowest intensity counted
+     */
+    public int min()
+    {
+        return valueAt( 0 );
+    }
+
+    /**
+     * @return the highest intensity counted
+     */
+    public int max()
+    {
+        return valueAt( count - 1 );
+    }
+
+    /**
+     * Same semantics as {@link ImageColorization#median(java.util.List)}: the
+     * average of the two middle values, rounded down, when the count is even.
+     *
+     * @return the median intensity
+     */
+    public int median()
+    {
+        if( count % 2 == 0 )
+        {
+            return (valueAt( count / 2 ) + valueAt( count / 2 - 1 )) / 2;
+        }
+        return valueAt( count / 2 );
+    }
+
+    /**
+     * The value at the given position of the sorted intensities
+     *
+     * @param position 0 - count() - 1
+     * @return the intensity
+     */
+    public int valueAt( int position )
+    {
+        if( position < 0 || position >= count )
+        {
+            throw new IllegalArgumentException( "position " + position + " is out of range" );
+        }
+
+        int seen = 0;
+        for( int value = 0; value < counts.length; value++ )
+        {
+            seen += counts[ value ];
+            if( seen > position )
+            {
+                return value;
+            }
+        }
+        throw new IllegalStateException( "histogram holds fewer than " + count + " values" );
+    }
+}
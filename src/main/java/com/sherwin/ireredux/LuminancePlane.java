@@ -0,0 +1,141 @@
+package com.sherwin.ireredux;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+
+/**
+ * The desaturated base image at the size being rendered, one byte per pixel.
+ * It is all the colorization stages read from the unpainted image, so it takes
+ * the place of a full ARGB copy of it, at a quarter of the size. The values are
+ * on the heap or, once cached, in an {@link OffHeapStore}. Instances are
+ * immutable and shared between requests, see {@link BaseImageCache}.
+ */
+public final class LuminancePlane {
+    private final int width;
+    private final int height;
+    private final ByteBuffer values;
+
+    private LuminancePlane(int width, int height, ByteBuffer values) {
+        this.width = width;
+        this.height = height;
+        this.values = values;
+    }
+
+    /**
+     * Desaturate an image with the weights and rounding of
+     * {@link PixelKernels#luminance(int)}.
+     *
+     * @param image the unpainted base image
+     * @param bands splits the rows into bands
+     * @return the luminance of every pixel
+     */
+    public static LuminancePlane of(BufferedImage image, BandExecutor bands) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        byte[] values = new byte[ width * height ];
+        int[] rgbArray = PixelBuffer.supports(image) ? PixelBuffer.of(image).rgbArray() : null;
+        PixelKernels kernels = PixelKernels.get();
+        bands.forEach(height, width * height, (band, fromRow, toRow) -> {
+            int[] pixels = rgbArray != null ? rgbArray
+                    : PixelBuffer.readRGB(image, new Rectangle(0, fromRow, width, toRow - fromRow));
+            int pixelOffset = rgbArray != null ? fromRow * width : 0;
+            kernels.luminance(pixels, pixelOffset, values, fromRow * width, (toRow - fromRow) * width);
+        });
+        return new LuminancePlane(width, height, ByteBuffer.wrap(values));
+    }
+
+    /**
+     * @param width
+     * @param height
+     * @param values the gray levels row by row, e.g. the Y channel of a JPEG
+     * @return the plane wrapping the values
+     */
+    static LuminancePlane of(int width, int height, byte[] values) {
+        return new LuminancePlane(width, height, ByteBuffer.wrap(values));
+    }
+
+    /**
+     * @param store
+     * @return the plane with its values moved to the store, or this plane if
+     * they already are off the heap or the store is full
+     */
+    public LuminancePlane toOffHeap(OffHeapStore store) {
+        if (values.isDirect()) {
+            return this;
+        }
+        ByteBuffer buffer = store.allocate(values.capacity());
+        if (buffer == null) {
+            return this;
+        }
+        buffer.put(0, values, 0, values.capacity());
+        return new LuminancePlane(width, height, buffer);
+    }
+
+    /**
+     * Resize the plane the way the base image is resized. Resizing is linear
+     * per channel, so this is the luminance of the resized image, up to rounding.
+     *
+     * @param targetWidth
+     * @param targetHeight
+     * @param bands splits the rows into bands
+     * @return the resized plane
+     */
+    public LuminancePlane resize(int targetWidth, int targetHeight, BandExecutor bands) {
+        BufferedImage gray = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        int[] pixels = PixelBuffer.of(gray).rgbArray();
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[ i ] = (values.get(i) & 0xFF) * 0x010101;
+        }
+        return of(ImageUtil.resizeRegion(gray, targetWidth, targetHeight, targetWidth, targetHeight), bands);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @param x
+     * @param y
+     * @return the gray level of the pixel
+     */
+    public int get(int x, int y) {
+        return values.get(y * width + x) & 0xFF;
+    }
+
+    /**
+     * Copy a run of gray levels, row by row from the top left pixel.
+     *
+     * @param index the index of the first pixel, y * width + x
+     * @param target
+     * @param targetOffset
+     * @param length the number of pixels
+     */
+    public void copyTo(int index, byte[] target, int targetOffset, int length) {
+        values.get(index, target, targetOffset, length);
+    }
+
+    /**
+     * @return a copy of the gray levels row by row
+     */
+    byte[] toArray() {
+        byte[] copy = new byte[ values.capacity() ];
+        copyTo(0, copy, 0, copy.length);
+        return copy;
+    }
+
+    /**
+     * @return true if the values are held in an {@link OffHeapStore}
+     */
+    public boolean isOffHeap() {
+        return values.isDirect();
+    }
+
+    public long sizeInBytes() {
+        return values.capacity();
+    }
+}
@@ -0,0 +1,253 @@
+package com.sherwin.ireredux;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * A finished surface mask at the size of the image being rendered, stored as
+ * horizontal spans of covered pixels (row, start x, length and coverage)
+ * instead of the four bytes per pixel of the mask image it was built from.
+ * The colorization kernels walk the spans, so their work is proportional to
+ * the masked area rather than to the image. Spans are ordered by row, then by
+ * x. The spans are packed into one buffer, on the heap or, once cached, in an
+ * {@link OffHeapStore}. Instances are immutable so they can be cached and
+ * shared between concurrent requests.
+ */
+public final class MaskBitmap {
+    // row, start x, length, coverage - 13 bytes per span
+    private static final int BYTES_PER_SPAN = 13;
+
+    private final int width;
+    private final int height;
+    private final int spanCount;
+    // the rows, starts and lengths of all spans as ints, then their coverages
+    private final ByteBuffer spans;
+    private final int startsOffset;
+    private final int lengthsOffset;
+    private final int coveragesOffset;
+    private final int pixelCount;
+
+    private MaskBitmap(int width, int height, int spanCount, ByteBuffer spans, int pixelCount) {
+        this.width = width;
+        this.height = height;
+        this.spanCount = spanCount;
+        this.spans = spans;
+        this.startsOffset = spanCount * Integer.BYTES;
+        this.lengthsOffset = startsOffset * 2;
+        this.coveragesOffset = startsOffset * 3;
+        this.pixelCount = pixelCount;
+    }
+
+    /**
+     * Capture the coverage of a mask image. The coverage of a pixel is the
+     * green channel of the mask image; pixels outside the mask image are not
+     * covered.
+     *
+     * @param maskImage the decoded (and resized) mask image
+     * @param width width of the image being rendered
+     * @param height height of the image being rendered
+     * @return the mask
+     */
+    public static MaskBitmap of(BufferedImage maskImage, int width, int height) {
+        return of(maskImage, 0, 0, width, height);
+    }
+
+    /**
+     * Capture the coverage of a mask image that only spans part of the image
+     * being rendered.
+     *
+     * @param maskImage the decoded (and resized) mask image
+     * @param x where the left edge of the mask image lies in the image being rendered
+     * @param y where the top edge of the mask image lies in the image being rendered
+     * @param width width of the image being rendered
+     * @param height height of the image being rendered
+     * @return the mask
+     */
+    public static MaskBitmap of(BufferedImage maskImage, int x, int y, int width, int height) {
+        int maskWidth = Math.min(width - x, maskImage.getWidth());
+        int maskHeight = Math.min(height - y, maskImage.getHeight());
+        Builder builder = new Builder(width, height);
+        if (maskWidth <= 0 || maskHeight <= 0) {
+            return builder.build();
+        }
+
+        int[] maskPixels = PixelBuffer.readRGB(maskImage, new Rectangle(maskWidth, maskHeight));
+
+        for (int row = 0; row < maskHeight; row++) {
+            for (int column = 0; column < maskWidth; column++) {
+                builder.add(y + row, x + column, (maskPixels[ row * maskWidth + column ] >> 8) & 0xFF);
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * @param width width of the image being rendered
+     * @param height height of the image being rendered
+     * @return a mask that covers nothing
+     */
+    public static MaskBitmap empty(int width, int height) {
+        return new Builder(width, height).build();
+    }
+
+    /**
+     * @param store
+     * @return the mask with its spans moved to the store, or this mask if
+     * they already are off the heap or the store is full
+     */
+    public MaskBitmap toOffHeap(OffHeapStore store) {
+        if (spans.isDirect() || spanCount == 0) {
+            return this;
+        }
+        ByteBuffer buffer = store.allocate(spans.capacity());
+        if (buffer == null) {
+            return this;
+        }
+        buffer.put(0, spans, 0, spans.capacity());
+        return new MaskBitmap(width, height, spanCount, buffer, pixelCount);
+    }
+
+    /**
+     * @return true if the spans are held in an {@link OffHeapStore}
+     */
+    public boolean isOffHeap() {
+        return spans.isDirect();
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return true if the mask covers no pixels
+     */
+    public boolean isEmpty() {
+        return spanCount == 0;
+    }
+
+    /**
+     * @return the number of covered pixels
+     */
+    public int pixelCount() {
+        return pixelCount;
+    }
+
+    public int spanCount() {
+        return spanCount;
+    }
+
+    /**
+     * @param span 0 - spanCount() - 1
+     * @return the y of the span
+     */
+    public int spanRow(int span) {
+        return spans.getInt(span * Integer.BYTES);
+    }
+
+    /**
+     * @param span 0 - spanCount() - 1
+     * @return the x of the first pixel of the span
+     */
+    public int spanStart(int span) {
+        return spans.getInt(startsOffset + span * Integer.BYTES);
+    }
+
+    /**
+     * @param span 0 - spanCount() - 1
+     * @return the number of pixels in the span
+     */
+    public int spanLength(int span) {
+        return spans.getInt(lengthsOffset + span * Integer.BYTES);
+    }
+
+    /**
+     * @param span 0 - spanCount() - 1
+     * @return the coverage shared by every pixel of the span, never 0
+     */
+    public int spanCoverage(int span) {
+        return spans.get(coveragesOffset + span) & 0xFF;
+    }
+
+    /**
+     * @return the smallest rectangle holding every covered pixel, empty if the mask covers nothing
+     */
+    public Rectangle getBounds() {
+        if (spanCount == 0) {
+            return new Rectangle();
+        }
+        int minX = width;
+        int maxX = 0;
+        for (int span = 0; span < spanCount; span++) {
+            minX = Math.min(minX, spanStart(span));
+            maxX = Math.max(maxX, spanStart(span) + spanLength(span));
+        }
+        return new Rectangle(minX, spanRow(0), maxX - minX, spanRow(spanCount - 1) - spanRow(0) + 1);
+    }
+
+    public long sizeInBytes() {
+        return (long) spanCount * BYTES_PER_SPAN;
+    }
+
+    /**
+     * Collects spans pixel by pixel. Pixels must be added row by row, left to
+     * right; a span ends where the coverage changes or a pixel is skipped.
+     */
+    static final class Builder {
+        private final int width;
+        private final int height;
+        private int spanCount;
+        private int[] rows = new int[ 16 ];
+        private int[] starts = new int[ 16 ];
+        private int[] lengths = new int[ 16 ];
+        private byte[] coverages = new byte[ 16 ];
+        private int pixelCount;
+
+        Builder(int width, int height) {
+            this.width = width;
+            this.height = height;
+        }
+
+        void add(int y, int x, int coverage) {
+            if (coverage == 0) {
+                return;
+            }
+            pixelCount++;
+
+            if (spanCount > 0) {
+                int last = spanCount - 1;
+                if (rows[ last ] == y && starts[ last ] + lengths[ last ] == x
+                        && (coverages[ last ] & 0xFF) == coverage) {
+                    lengths[ last ]++;
+                    return;
+                }
+            }
+
+            if (spanCount == rows.length) {
+                int capacity = spanCount * 2;
+                rows = Arrays.copyOf(rows, capacity);
+                starts = Arrays.copyOf(starts, capacity);
+                lengths = Arrays.copyOf(lengths, capacity);
+                coverages = Arrays.copyOf(coverages, capacity);
+            }
+            rows[ spanCount ] = y;
+            starts[ spanCount ] = x;
+            lengths[ spanCount ] = 1;
+            coverages[ spanCount ] = (byte) coverage;
+            spanCount++;
+        }
+
+        MaskBitmap build() {
+            ByteBuffer spans = ByteBuffer.allocate(spanCount * BYTES_PER_SPAN).order(ByteOrder.nativeOrder());
+            spans.asIntBuffer().put(rows, 0, spanCount).put(starts, 0, spanCount).put(lengths, 0, spanCount);
+            spans.put(spanCount * Integer.BYTES * 3, coverages, 0, spanCount);
+            return new MaskBitmap(width, height, spanCount, spans, pixelCount);
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package com.sherwin.ireredux;
+
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The encoded masking data of a surface: either the base64 text itself, or
+ * where it sits in the scene xml file. Data left in the file is memory mapped
+ * and read only when the mask is decoded, so the masks of surfaces no request
+ * colors never leave the disk. Masks compiled into a {@link SceneBundle} are
+ * already expanded: four bits per pixel, one for each channel of the mask
+ * image, over a region holding all of the masking data, together with the
+ * bounding box the mask is decoded in. Instances are immutable.
+ */
+public final class MaskData {
+    // rough bookkeeping cost of data left in the file
+    private static final int REFERENCE_BYTES = 64;
+
+    private final String text;
+    private final File file;
+    private final long lastModified;
+    private final long fileLength;
+    private final long offset;
+    private final int length;
+    // compiled masks only
+    private final Rectangle bounds;
+    private final Rectangle region;
+
+    private MaskData(String text, File file, long lastModified, long fileLength, long offset, int length,
+                     Rectangle bounds, Rectangle region) {
+        this.text = text;
+        this.file = file;
+        this.lastModified = lastModified;
+        this.fileLength = fileLength;
+        this.offset = offset;
+        this.length = length;
+        this.bounds = bounds;
+        this.region = region;
+    }
+
+    /**
+     * @param text the base64 text
+     * @return the masking data held in memory
+     */
+    public static MaskData of(String text) {
+        return new MaskData(text, null, 0, 0, 0, text.length(), null, null);
+    }
+
+    /**
+     * @param file the scene xml
+     * @param lastModified modification time of the file when it was indexed
+     * @param fileLength length of the file when it was indexed
+     * @param offset where the base64 text starts in the file
+     * @param length the length of the base64 text in bytes
+     * @return the masking data left in the file
+     */
+    static MaskData of(File file, long lastModified, long fileLength, long offset, int length) {
+        return new MaskData(null, file, lastModified, fileLength, offset, length, null, null);
+    }
+
+    /**
+     * @param file the scene bundle
+     * @param lastModified modification time of the file when it was opened
+     * @param fileLength length of the file when it was opened
+     * @param offset where the channel bits start in the file
+     * @param length the length of the channel bits in bytes
+     * @param bounds the box the mask is decoded in, see {@link #getBounds()}
+     * @param region the pixels the channel bits cover, see {@link #getRegion()}
+     * @return the compiled mask left in the file
+     */
+    static MaskData compiled(File file, long lastModified, long fileLength, long offset, int length,
+                             Rectangle bounds, Rectangle region) {
+        return new MaskData(null, file, lastModified, fileLength, offset, length, new Rectangle(bounds),
+                new Rectangle(region));
+    }
+
+    /**
+     * @return the base64 text as a stream of ASCII bytes
+     * @throws IOException if the file cannot be read or has changed since it was indexed
+     */
+    public InputStream open() throws IOException {
+        if (isCompiled()) {
+            throw new IllegalStateException("compiled masks have no base64 text");
+        }
+        if (text != null) {
+            return MaskInflater.ascii(text);
+        }
+        return MaskInflater.ascii(map());
+    }
+
+    /**
+     * @param other
+     * @return true if both hold the same base64 text
+     * @throws IOException if a file cannot be read or has changed since it was indexed
+     */
+    public boolean contentEquals(MaskData other) throws IOException {
+        if (this == other) {
+            return true;
+        }
+        if (isCompiled() || other.isCompiled() || length != other.length) {
+            return false;
+        }
+        if (text != null && other.text != null) {
+            return text.equals(other.text);
+        }
+        return asBuffer().equals(other.asBuffer());
+    }
+
+    /**
+     * @return true if the mask was compiled into a bundle
+     */
+    public boolean isCompiled() {
+        return bounds != null;
+    }
+
+    /**
+     * @return the box of source image pixels the compiled mask is decoded in,
+     * empty if it covers nothing; null if the mask is not compiled
+     */
+    public Rectangle getBounds() {
+        return bounds != null ? new Rectangle(bounds) : null;
+    }
+
+    /**
+     * @return the source image pixels the channel bits of a compiled mask
+     * cover; every channel outside of them is empty
+     */
+    public Rectangle getRegion() {
+        return region != null ? new Rectangle(region) : null;
+    }
+
+    /**
+     * @return the channel bits of a compiled mask, pixel by pixel over the
+     * region, two pixels per byte starting with the low bits
+     * @throws IOException if the file cannot be read or has changed since it was opened
+     */
+    ByteBuffer channels() throws IOException {
+        if (!isCompiled()) {
+            throw new IllegalStateException("mask is not compiled");
+        }
+        return map();
+    }
+
+    /**
+     * @return the length of the base64 text or the channel bits in bytes
+     */
+    public int length() {
+        return length;
+    }
+
+    /**
+     * @return the heap the data takes up
+     */
+    public long sizeInBytes() {
+        return text != null ? text.length() : REFERENCE_BYTES;
+    }
+
+    private ByteBuffer asBuffer() throws IOException {
+        if (text != null) {
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+            for (int i = 0; i < length; i++) {
+                buffer.put(i, (byte) text.charAt(i));
+            }
+            return buffer;
+        }
+        return map();
+    }
+
+    /*
+     * A file that changed since it was indexed belongs to a newer version of
+     * the scene, which has a cache key of its own
+     */
+    private ByteBuffer map() throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() != fileLength || file.lastModified() != lastModified) {
+                throw new IOException(file + " has changed since it was indexed");
+            }
+            return channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package com.sherwin.ireredux;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Base64;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Streams the masking data of a scene, base64 encoded zlib data, through a
+ * pooled Inflater and hands the inflated bytes to a sink chunk by chunk. No
+ * array the size of the encoded, compressed or inflated mask is allocated on
+ * the way; the sink decides which bytes it keeps.
+ */
+final class MaskInflater
+{
+    private static final int CHUNK_SIZE = 16384;
+    private static final int POOL_SIZE = 16;
+
+    // inflaters with their buffers, reused between masks
+    private static final BlockingQueue<MaskInflater> POOL = new ArrayBlockingQueue<>( POOL_SIZE );
+
+    /**
+     * Receives the inflated bytes in order.
+     */
+    @FunctionalInterface
+    interface Sink
+    {
+        /**
+         * @param data the inflated bytes, only valid during the call
+         * @param length the number of bytes in data
+         * @param position position of data[ 0 ] in the inflated stream
+         * @return false to stop inflating
+         */
+        boolean accept( byte[] data, int length, long position );
+    }
+
+    private final Inflater inflater = new Inflater();
+    private final byte[] input = new byte[ CHUNK_SIZE ];
+    private final byte[] output = new byte[ CHUNK_SIZE ];
+
+    private MaskInflater()
+    {
+    }
+
+    /**
+     * Decode and inflate masking data.
+     *
+     * @param base64 the base64 text of the masking data, line breaks and other
+     *               characters outside the base64 alphabet are skipped
+     * @param sink receives the inflated bytes
+     * @throws IOException if the base64 text cannot be read or is malformed
+     * @throws DataFormatException if the compressed data is corrupt
+     */
+    static void inflate( InputStream base64, Sink sink ) throws IOException, DataFormatException
+    {
+        MaskInflater maskInflater = POOL.poll();
+        if( maskInflater == null )
+        {
+            maskInflater = new MaskInflater();
+        }
+
+        try( InputStream compressed = Base64.getMimeDecoder().wrap( base64 ) )
+        {
+            maskInflater.run( compressed, sink );
+        }
+        finally
+        {
+            maskInflater.inflater.reset();
+            if( !POOL.offer( maskInflater ) )
+            {
+                maskInflater.inflater.end();
+            }
+        }
+    }
+
+    /**
+     * @param text base64 text held in memory
+     * @return the text as a stream of its ASCII bytes, without copying it
+     */
+    static InputStream ascii( CharSequence text )
+    {
+        return new InputStream()
+        {
+            private int position;
+
+            @Override
+            public int read()
+            {
+                return position < text.length() ? text.charAt( position++ ) & 0xFF : -1;
+            }
+
+            @Override
+            public int read( byte[] buffer, int offset, int length )
+            {
+                if( position >= text.length() )
+                {
+                    return -1;
+                }
+                int count = Math.min( length, text.length() - position );
+                for( int i = 0; i < count; i++ )
+                {
+                    buffer[ offset + i ] = (byte) text.charAt( position++ );
+                }
+                return count;
+            }
+        };
+    }
+
+    /**
+     * @param text base64 text in a buffer, e.g. mapped from the scene xml
+     * @return the remaining bytes of the buffer as a stream
+     */
+    static InputStream ascii( ByteBuffer text )
+    {
+        ByteBuffer buffer = text.duplicate();
+        return new InputStream()
+        {
+            @Override
+            public int read()
+            {
+                return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+            }
+
+            @Override
+            public int read( byte[] bytes, int offset, int length )
+            {
+                if( !buffer.hasRemaining() )
+                {
+                    return -1;
+                }
+                int count = Math.min( length, buffer.remaining() );
+                buffer.get( bytes, offset, count );
+                return count;
+            }
+        };
+    }
+
+    /*
+     * Inflate until the stream ends, the input runs out or the sink has seen
+     * enough. A stream that never reports finished stops once no more output
+     * comes, as zlibDecompress always did.
+     */
+    private void run( InputStream compressed, Sink sink ) throws IOException, DataFormatException
+    {
+        long position = 0;
+        boolean endOfInput = false;
+        while( !inflater.finished() )
+        {
+            if( inflater.needsInput() )
+            {
+                int read = endOfInput ? -1 : compressed.readNBytes( input, 0, input.length );
+                if( read <= 0 )
+                {
+                    return;
+                }
+                endOfInput = read < input.length;
+                inflater.setInput( input, 0, read );
+            }
+
+            int count = inflater.inflate( output );
+            if( count == 0 && !inflater.needsInput() )
+            {
+                return;
+            }
+            if( count > 0 && !sink.accept( output, count, position ) )
+            {
+                return;
+            }
+            position += count;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.sherwin.ireredux;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Direct memory for the pixels, luminance planes and masks held by the
+ * caches, so that gigabytes of cached scenes do not sit on the Java heap for
+ * the garbage collector to trace and copy. The caches decide what stays
+ * cached, within their byte budgets; this store caps the direct memory all of
+ * them use together, and values that do not fit simply stay on the heap.
+ *
+ * Cached values are shared with the requests that looked them up, so their
+ * memory cannot be handed back the moment a cache evicts them. Each value gets
+ * a buffer of its own, which counts against the capacity until the value is
+ * unreachable, i.e. it has been evicted and the last request using it is done.
+ * The JVM's -XX:MaxDirectMemorySize has to leave room for the capacity.
+ */
+@Component
+@Slf4j
+public class OffHeapStore implements MeterBinder {
+    /**
+     * Keeps everything on the heap, for code running outside the application
+     */
+    public static final OffHeapStore NONE = new OffHeapStore(0);
+
+    private static final Cleaner CLEANER = Cleaner.create();
+
+    private final long maxBytes;
+    private final AtomicLong reserved = new AtomicLong();
+    private final LongAdder allocations = new LongAdder();
+    private final LongAdder rejections = new LongAdder();
+
+    public OffHeapStore(@Value("${ire.off-heap.max-bytes:0}") long maxBytes) {
+        this.maxBytes = Math.max(0, maxBytes);
+        if (this.maxBytes > 0) {
+            log.info("Off-heap store capacity: " + maxBytes + " bytes");
+        }
+    }
+
+    /**
+     * Register allocation/rejection counters and reserved/capacity gauges
+     */
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        FunctionCounter.builder("ire.off-heap.allocations", this, store -> store.allocations.sum())
+                .register(registry);
+        FunctionCounter.builder("ire.off-heap.rejections", this, store -> store.rejections.sum())
+                .description("values left on the heap because the store was full").register(registry);
+        Gauge.builder("ire.off-heap.reserved", this, OffHeapStore::reserved).baseUnit("bytes").register(registry);
+        Gauge.builder("ire.off-heap.max", this, OffHeapStore::maxBytes).baseUnit("bytes").register(registry);
+    }
+
+    /**
+     * @param bytes the size of the buffer
+     * @return a zeroed direct buffer in native byte order, or null if the store
+     * is full or disabled, in which case the value stays on the heap
+     */
+    public ByteBuffer allocate(long bytes) {
+        if (maxBytes == 0) {
+            return null;
+        }
+        if (bytes > Integer.MAX_VALUE || !reserve(bytes)) {
+            rejections.increment();
+            return null;
+        }
+
+        ByteBuffer buffer;
+        try {
+            buffer = ByteBuffer.allocateDirect((int) bytes).order(ByteOrder.nativeOrder());
+        } catch (OutOfMemoryError e) {
+            // the JVM's direct memory limit is lower than the capacity
+            reserved.addAndGet(-bytes);
+            rejections.increment();
+            return null;
+        }
+        // views of the buffer keep it reachable, so it is released with the last of them
+        CLEANER.register(buffer, () -> reserved.addAndGet(-bytes));
+        allocations.increment();
+        return buffer;
+    }
+
+    /**
+     * @return the direct memory held by values that are still reachable
+     */
+    public long reserved() {
+        return reserved.get();
+    }
+
+    public long maxBytes() {
+        return maxBytes;
+    }
+
+    private boolean reserve(long bytes) {
+        while (true) {
+            long current = reserved.get();
+            if (current + bytes > maxBytes) {
+                return false;
+            }
+            if (reserved.compareAndSet(current, current + bytes)) {
+                return true;
+            }
+        }
+    }
+}
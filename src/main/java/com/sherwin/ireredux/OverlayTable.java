@@ -0,0 +1,57 @@
+package com.sherwin.ireredux;
+
+/**
+ * The overlay blend of one surface color onto every gray level. For a given
+ * color each output channel depends only on the gray level, so the blend of a
+ * shading layer is one table lookup per pixel. Instances are immutable and
+ * shared between requests, see {@link OverlayTableCache}.
+ */
+public final class OverlayTable {
+    private static final int BYTES = 256 * 4 + 16;
+
+    private final int color;
+    private final int[] table;
+
+    private OverlayTable(int color, int[] table) {
+        this.color = color;
+        this.table = table;
+    }
+
+    /**
+     * @param color the RGB surface color, alpha is ignored
+     * @return the blend of the color onto every gray level
+     */
+    public static OverlayTable of(int color) {
+        int[] table = new int[ 256 ];
+        for (int gray = 0; gray < table.length; gray++) {
+            table[ gray ] = PixelKernels.overlay(gray, color);
+        }
+        return new OverlayTable(color & 0xFFFFFF, table);
+    }
+
+    /**
+     * @return the RGB surface color
+     */
+    public int getColor() {
+        return color;
+    }
+
+    /**
+     * @param gray 0 - 255
+     * @return the RGB result of blending the color onto the gray level
+     */
+    public int blend(int gray) {
+        return table[ gray ];
+    }
+
+    /**
+     * @return the table indexed by gray level, for the blend kernels; must not be modified
+     */
+    int[] table() {
+        return table;
+    }
+
+    public long sizeInBytes() {
+        return BYTES;
+    }
+}
@@ -0,0 +1,41 @@
+package com.sherwin.ireredux;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.awt.Color;
+
+/**
+ * Cache of overlay tables by surface color. A palette has far fewer colors in
+ * use than there are renders, so most blends reuse a table built for an
+ * earlier request.
+ */
+@Component
+@Slf4j
+public class OverlayTableCache {
+    private final ByteBudgetCache<Integer, OverlayTable> cache;
+
+    public OverlayTableCache(@Value("${ire.cache.overlay.max-bytes:4194304}") long maxBytes,
+                             @Value("${ire.cache.overlay.expected-entries:4096}") int expectedEntries,
+                             MeterRegistry meterRegistry) {
+        cache = new ByteBudgetCache<>("overlay-table", maxBytes, expectedEntries, OverlayTable::sizeInBytes);
+        cache.bindTo(meterRegistry);
+        log.info("Overlay table cache budget: " + maxBytes + " bytes");
+    }
+
+    /**
+     * @param surfaceColor
+     * @return the overlay table of the color, built and cached on a miss
+     */
+    public OverlayTable forColor(Color surfaceColor) {
+        int color = surfaceColor.getRGB() & 0xFFFFFF;
+        OverlayTable table = cache.get(color);
+        if (table == null) {
+            table = OverlayTable.of(color);
+            cache.put(color, table);
+        }
+        return table;
+    }
+}
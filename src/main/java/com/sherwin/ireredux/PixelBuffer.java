@@ -0,0 +1,188 @@
+package com.sherwin.ireredux;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+
+/**
+ * Direct access to the backing array of an image, reading and writing packed
+ * 0xAARRGGBB pixels without going through the image's color model the way
+ * BufferedImage.getRGB/setRGB and PixelGrabber do. Images without alpha read
+ * as opaque, so the values are the same as getRGB returns. Base images are
+ * kept as TYPE_INT_RGB from decode to encode; mask images are TYPE_4BYTE_ABGR
+ * or TYPE_INT_ARGB once resized.
+ */
+final class PixelBuffer {
+    private final BufferedImage image;
+    private final int width;
+    private final int height;
+    private final int[] ints;
+    private final byte[] bytes;
+    private final boolean alpha;
+    // index of pixel (0, 0) in the array and of its samples, for byte images
+    private final int offset;
+    private final int scanlineStride;
+    private final int pixelStride;
+    private final int redOffset;
+    private final int greenOffset;
+    private final int blueOffset;
+    private final int alphaOffset;
+
+    private PixelBuffer(BufferedImage image) {
+        this.image = image;
+        this.width = image.getWidth();
+        this.height = image.getHeight();
+        this.alpha = image.getType() == BufferedImage.TYPE_INT_ARGB
+                || image.getType() == BufferedImage.TYPE_4BYTE_ABGR;
+
+        WritableRaster raster = image.getRaster();
+        SampleModel sampleModel = raster.getSampleModel();
+        DataBuffer dataBuffer = raster.getDataBuffer();
+        if (dataBuffer instanceof DataBufferInt) {
+            SinglePixelPackedSampleModel packed = (SinglePixelPackedSampleModel) sampleModel;
+            this.ints = ((DataBufferInt) dataBuffer).getData();
+            this.bytes = null;
+            this.scanlineStride = packed.getScanlineStride();
+            this.pixelStride = 1;
+            this.redOffset = 0;
+            this.greenOffset = 0;
+            this.blueOffset = 0;
+            this.alphaOffset = 0;
+        } else {
+            PixelInterleavedSampleModel interleaved = (PixelInterleavedSampleModel) sampleModel;
+            int[] bandOffsets = interleaved.getBandOffsets();
+            this.ints = null;
+            this.bytes = ((DataBufferByte) dataBuffer).getData();
+            this.scanlineStride = interleaved.getScanlineStride();
+            this.pixelStride = interleaved.getPixelStride();
+            this.redOffset = bandOffsets[ 0 ];
+            this.greenOffset = bandOffsets[ 1 ];
+            this.blueOffset = bandOffsets[ 2 ];
+            this.alphaOffset = alpha ? bandOffsets[ 3 ] : 0;
+        }
+        this.offset = dataBuffer.getOffset() - raster.getSampleModelTranslateY() * scanlineStride
+                - raster.getSampleModelTranslateX() * pixelStride;
+    }
+
+    /**
+     * @param image
+     * @return true if the pixels of the image can be accessed directly
+     */
+    static boolean supports(BufferedImage image) {
+        switch (image.getType()) {
+            case BufferedImage.TYPE_INT_RGB:
+            case BufferedImage.TYPE_INT_ARGB:
+            case BufferedImage.TYPE_3BYTE_BGR:
+            case BufferedImage.TYPE_4BYTE_ABGR:
+                return image.getRaster().getDataBuffer().getNumBanks() == 1;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @param image an image in one of the supported formats, see {@link #supports}
+     * @return direct access to the pixels of the image
+     * @throws IllegalArgumentException if the image format is not supported
+     */
+    static PixelBuffer of(BufferedImage image) {
+        if (!supports(image)) {
+            throw new IllegalArgumentException("no direct pixel access to image type " + image.getType());
+        }
+        return new PixelBuffer(image);
+    }
+
+    /**
+     * Read a region of any image as packed ARGB pixels, directly where the
+     * format allows, through the color model otherwise.
+     *
+     * @param image
+     * @param region the region to read, inside the image
+     * @return the pixels of the region, row by row
+     */
+    static int[] readRGB(BufferedImage image, Rectangle region) {
+        if (supports(image)) {
+            return of(image).getRGB(region);
+        }
+        return image.getRGB(region.x, region.y, region.width, region.height, null, 0, region.width);
+    }
+
+    int getWidth() {
+        return width;
+    }
+
+    int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return the backing array of a TYPE_INT_RGB image holding the pixels row
+     * by row from index 0, so it can be written with plain 0xRRGGBB values;
+     * null for any other layout
+     */
+    int[] rgbArray() {
+        if (image.getType() == BufferedImage.TYPE_INT_RGB && offset == 0 && scanlineStride == width) {
+            return ints;
+        }
+        return null;
+    }
+
+    int getRGB(int x, int y) {
+        int index = offset + y * scanlineStride + x * pixelStride;
+        if (ints != null) {
+            return alpha ? ints[ index ] : 0xFF000000 | ints[ index ];
+        }
+        return (alpha ? (bytes[ index + alphaOffset ] & 0xFF) << 24 : 0xFF000000)
+                | (bytes[ index + redOffset ] & 0xFF) << 16
+                | (bytes[ index + greenOffset ] & 0xFF) << 8
+                | (bytes[ index + blueOffset ] & 0xFF);
+    }
+
+    /**
+     * @param x
+     * @param y
+     * @param argb the pixel, the alpha is dropped if the image has none
+     */
+    void setRGB(int x, int y, int argb) {
+        int index = offset + y * scanlineStride + x * pixelStride;
+        if (ints != null) {
+            ints[ index ] = alpha ? argb : argb & 0xFFFFFF;
+            return;
+        }
+        if (alpha) {
+            bytes[ index + alphaOffset ] = (byte) (argb >>> 24);
+        }
+        bytes[ index + redOffset ] = (byte) (argb >> 16);
+        bytes[ index + greenOffset ] = (byte) (argb >> 8);
+        bytes[ index + blueOffset ] = (byte) argb;
+    }
+
+    /**
+     * @param region the region to read, inside the image
+     * @return the pixels of the region, row by row
+     */
+    int[] getRGB(Rectangle region) {
+        int[] pixels = new int[ region.width * region.height ];
+        int i = 0;
+        for (int y = region.y; y < region.y + region.height; y++) {
+            if (ints != null) {
+                int index = offset + y * scanlineStride + region.x;
+                int opaque = alpha ? 0 : 0xFF000000;
+                for (int x = 0; x < region.width; x++) {
+                    pixels[ i++ ] = opaque | ints[ index + x ];
+                }
+            } else {
+                for (int x = region.x; x < region.x + region.width; x++) {
+                    pixels[ i++ ] = getRGB(x, y);
+                }
+            }
+        }
+        return pixels;
+    }
+}
@@ -0,0 +1,137 @@
+package com.sherwin.ireredux;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * The innermost loops of the fused colorization engine: desaturating a run of
+ * pixels and overlay blending a color onto a run of gray levels. The scalar
+ * implementation is always available. When the JVM is started with
+ * --add-modules jdk.incubator.vector the SIMD implementation in
+ * {@link VectorPixelKernels} is picked instead; it produces the same values.
+ */
+@Slf4j
+public abstract class PixelKernels
+{
+    private static final String VECTOR_MODULE = "jdk.incubator.vector";
+
+    /**
+     * Scalar reference implementation
+     */
+    public static final PixelKernels SCALAR = new PixelKernels()
+    {
+        @Override
+        public void luminance( int[] pixels, int pixelOffset, byte[] shades, int shadeOffset, int length )
+        {
+            for( int i = 0; i < length; i++ )
+            {
+                shades[ shadeOffset + i ] = (byte) luminance( pixels[ pixelOffset + i ] );
+            }
+        }
+
+        @Override
+        public String toString()
+        {
+            return "scalar";
+        }
+    };
+
+    private static final PixelKernels SELECTED = select();
+
+    /**
+     * @return the fastest implementation this JVM supports
+     */
+    public static PixelKernels get()
+    {
+        return SELECTED;
+    }
+
+    /**
+     * Desaturate a run of pixels, see {@link #luminance(int)}.
+     *
+     * @param pixels RGB pixels
+     * @param pixelOffset the first pixel of the run
+     * @param shades receives the gray levels
+     * @param shadeOffset where the first gray level goes
+     * @param length the number of pixels in the run
+     */
+    public abstract void luminance( int[] pixels, int pixelOffset, byte[] shades, int shadeOffset, int length );
+
+    /**
+     * Overlay blend a color onto a run of gray levels by table lookup, see
+     * {@link OverlayTable}. The lookup is a single load per pixel, which leaves
+     * nothing for SIMD to gain, so all implementations share it.
+     *
+     * @param shades gray levels
+     * @param shadeOffset the first gray level of the run
+     * @param table the blend of the surface color onto every gray level
+     * @param target receives the blended RGB pixels
+     * @param targetOffset where the first pixel goes
+     * @param length the number of pixels in the run
+     */
+    public final void overlay( byte[] shades, int shadeOffset, int[] table, int[] target, int targetOffset,
+                               int length )
+    {
+        for( int i = 0; i < length; i++ )
+        {
+            target[ targetOffset + i ] = table[ shades[ shadeOffset + i ] & 0xFF ];
+        }
+    }
+
+    /**
+     * Same weights and rounding as ImageColorization.copyDesaturatedPixelsToMask
+     *
+     * @param rgb
+     * @return the gray level
+     */
+    public static int luminance( int rgb )
+    {
+        int blue = (rgb) & 0xFF;
+        int green = (rgb >> 8) & 0xFF;
+        int red = (rgb >> 16) & 0xFF;
+        return (int) Math.round( 0.299 * red + 0.587 * green + 0.114 * blue );
+    }
+
+    /**
+     * Overlay blend of the surface color onto a gray level, the entries of an
+     * {@link OverlayTable}
+     *
+     * @param gray
+     * @param color RGB
+     * @return the blended RGB pixel
+     */
+    public static int overlay( int gray, int color )
+    {
+        return (overlayChannel( gray, (color >> 16) & 0xFF ) << 16)
+                | (overlayChannel( gray, (color >> 8) & 0xFF ) << 8)
+                | overlayChannel( gray, color & 0xFF );
+    }
+
+    private static int overlayChannel( int dst, int src )
+    {
+        return dst < 128 ? dst * src >> 7 : 255 - ((255 - dst) * (255 - src) >> 7);
+    }
+
+    /*
+     * The vector implementation is only loaded when its module is present, as
+     * linking it would fail otherwise
+     */
+    private static PixelKernels select()
+    {
+        if( ModuleLayer.boot().findModule( VECTOR_MODULE ).isPresent() )
+        {
+            try
+            {
+                PixelKernels kernels = (PixelKernels) Class.forName( PixelKernels.class.getPackageName()
+                        + ".VectorPixelKernels" ).getDeclaredConstructor().newInstance();
+                log.info( "Colorization kernels: " + kernels );
+                return kernels;
+            }
+            catch( ReflectiveOperationException | LinkageError e )
+            {
+                log.warn( "Could not load the vector colorization kernels, using scalar: " + e );
+            }
+        }
+        log.info( "Colorization kernels: " + SCALAR );
+        return SCALAR;
+    }
+}
@@ -0,0 +1,26 @@
+package com.sherwin.ireredux;
+
+import org.springframework.http.HttpStatus;
+
+/**
+ * A render stopped before it was done because its deadline passed or its
+ * client went away, see {@link RenderDeadline}. If the client is still there
+ * it gets 503 and is told when to retry.
+ */
+public class RenderAbandonedException extends RenderRejectedException {
+    private static final long serialVersionUID = 1L;
+
+    private final String reason;
+
+    public RenderAbandonedException(String reason, long retryAfterSeconds) {
+        super("Render abandoned: " + reason, HttpStatus.SERVICE_UNAVAILABLE, retryAfterSeconds);
+        this.reason = reason;
+    }
+
+    /**
+     * @return {@link RenderDeadline#TIMEOUT} or {@link RenderDeadline#DISCONNECT}
+     */
+    public String getReason() {
+        return reason;
+    }
+}
@@ -0,0 +1,92 @@
+package com.sherwin.ireredux;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The time a render is allowed. The render checks its deadline between steps
+ * and between masks, and the per-pixel loops check it every few rows, see
+ * {@link BandExecutor#withDeadline}, so a render that ran out of time, or
+ * whose clients all went away, stops within a fraction of a loop instead of
+ * running to the end for a response nobody reads. The check throws a
+ * {@link RenderAbandonedException}; the render's buffers are dropped as it
+ * unwinds and nothing half painted is cached.
+ */
+public final class RenderDeadline {
+    /**
+     * The deadline passed, or the response timed out
+     */
+    public static final String TIMEOUT = "timeout";
+
+    /**
+     * Every client waiting for the render went away: disconnected, failed
+     * otherwise, or timed out before the render did
+     */
+    public static final String DISCONNECT = "disconnect";
+
+    private final long deadlineNanos;
+    private final boolean bounded;
+    private final long retryAfterSeconds;
+    private volatile String abandoned;
+
+    private RenderDeadline(long timeoutMillis, long retryAfterSeconds) {
+        this.bounded = timeoutMillis > 0;
+        this.deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, timeoutMillis));
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    /**
+     * @param timeoutMillis the time the render may take from now, 0 for no limit
+     * @param retryAfterSeconds the Retry-After of the response if the render is abandoned
+     * @return the deadline
+     */
+    public static RenderDeadline after(long timeoutMillis, long retryAfterSeconds) {
+        return new RenderDeadline(timeoutMillis, retryAfterSeconds);
+    }
+
+    /**
+     * Give up on the render before its deadline, e.g. because the client
+     * disconnected. The first reason given is kept.
+     *
+     * @param reason {@link #TIMEOUT} or {@link #DISCONNECT}
+     */
+    public void abandon(String reason) {
+        if (abandoned == null) {
+            abandoned = reason;
+        }
+    }
+
+    public long getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+
+    /**
+     * @return the time left in milliseconds, at least 1; -1 if there is no
+     * limit, which is what the servlet container takes for no timeout
+     */
+    public long remainingMillis() {
+        return bounded ? Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime())) : -1;
+    }
+
+    /**
+     * @return why the render should stop, null while it should go on
+     */
+    public String abandonedReason() {
+        String reason = abandoned;
+        if (reason == null && bounded && System.nanoTime() - deadlineNanos >= 0) {
+            reason = TIMEOUT;
+        }
+        return reason;
+    }
+
+    /**
+     * Stop the render if it has been abandoned or its deadline has passed.
+     *
+     * @throws RenderAbandonedException if it has
+     */
+    public void check() {
+        String reason = abandonedReason();
+        if (reason != null) {
+            throw new RenderAbandonedException(reason, retryAfterSeconds);
+        }
+    }
+}
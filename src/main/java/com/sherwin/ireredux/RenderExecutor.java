@@ -0,0 +1,147 @@
+package com.sherwin.ireredux;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs renders on a fixed pool of threads, one per core by default, behind a
+ * bounded queue. The request threads only hand renders over and are free again
+ * while they are queued and running, so a burst of requests cannot have more
+ * renders competing for the cores, and for heap, than there are render
+ * threads. When the queue is full a render is rejected at once with 429, and a
+ * render that waited in the queue longer than the configured maximum is
+ * dropped with 503 instead of being started for a client that has most likely
+ * given up; both tell the client when to retry. Every render also gets a
+ * deadline, see {@link #deadline}, and renders that run past it or lose their
+ * client are stopped and counted as abandoned.
+ */
+@Component
+@Slf4j
+public class RenderExecutor {
+    private final ThreadPoolExecutor pool;
+    private final long maxQueueWaitNanos;
+    private final long retryAfterSeconds;
+    private final long timeoutMillis;
+    private final Timer queueWait;
+    private final Counter queueFull;
+    private final Counter queueTimeouts;
+    private final Counter abandonedTimeouts;
+    private final Counter abandonedDisconnects;
+
+    public RenderExecutor(@Value("${ire.render.threads:0}") int threads,
+                          @Value("${ire.render.queue-capacity:64}") int queueCapacity,
+                          @Value("${ire.render.max-queue-wait-ms:5000}") long maxQueueWaitMillis,
+                          @Value("${ire.render.retry-after-seconds:1}") long retryAfterSeconds,
+                          @Value("${ire.render.timeout-ms:30000}") long timeoutMillis,
+                          MeterRegistry meterRegistry) {
+        int poolSize = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.pool = new ThreadPoolExecutor(poolSize, poolSize, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queueCapacity)),
+                task -> new Thread(task, "render-" + threadNumber.incrementAndGet()),
+                new ThreadPoolExecutor.AbortPolicy());
+        this.maxQueueWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxQueueWaitMillis);
+        this.retryAfterSeconds = retryAfterSeconds;
+        this.timeoutMillis = timeoutMillis;
+
+        queueWait = Timer.builder("ire.render.queue.wait").register(meterRegistry);
+        queueFull = Counter.builder("ire.render.rejections").tag("reason", "queue-full").register(meterRegistry);
+        queueTimeouts = Counter.builder("ire.render.rejections").tag("reason", "queue-wait").register(meterRegistry);
+        abandonedTimeouts = Counter.builder("ire.render.abandoned").tag("reason", RenderDeadline.TIMEOUT)
+                .description("renders stopped before they were done").register(meterRegistry);
+        abandonedDisconnects = Counter.builder("ire.render.abandoned").tag("reason", RenderDeadline.DISCONNECT)
+                .description("renders stopped before they were done").register(meterRegistry);
+        Gauge.builder("ire.render.queue.size", pool, executor -> executor.getQueue().size()).register(meterRegistry);
+        Gauge.builder("ire.render.active", pool, ThreadPoolExecutor::getActiveCount).register(meterRegistry);
+        log.info("Render threads: " + poolSize + ", queue capacity: " + queueCapacity + ", max queue wait: "
+                + maxQueueWaitMillis + " ms, render timeout: " + timeoutMillis + " ms");
+    }
+
+    /**
+     * Start the clock of a render, or of a client's wait for one.
+     *
+     * @param requestedMillis the time the client is willing to wait, 0 if it did not say
+     * @return a deadline of the configured timeout, or of the requested time if that is shorter
+     */
+    public RenderDeadline deadline(long requestedMillis) {
+        long timeout = requestedMillis > 0 && (timeoutMillis <= 0 || requestedMillis < timeoutMillis)
+                ? requestedMillis : timeoutMillis;
+        return RenderDeadline.after(timeout, retryAfterSeconds);
+    }
+
+    /**
+     * Queue a render.
+     *
+     * @param render the render
+     * @return the result of the render, or a {@link RenderRejectedException}
+     * if the executor is saturated
+     */
+    public <V> CompletableFuture<V> submit(Callable<V> render) {
+        return submit(render, null);
+    }
+
+    /**
+     * Queue a render that has a deadline. The render is dropped if the
+     * deadline passes while it is queued, and counted as abandoned if it is
+     * dropped or stops with a {@link RenderAbandonedException}.
+     *
+     * @param render the render, checking the deadline as it goes
+     * @param deadline the deadline of the render, null for none
+     * @return the result of the render, or a {@link RenderRejectedException}
+     * if the executor is saturated or the render was abandoned
+     */
+    public <V> CompletableFuture<V> submit(Callable<V> render, RenderDeadline deadline) {
+        CompletableFuture<V> result = new CompletableFuture<>();
+        long queuedAt = System.nanoTime();
+        try {
+            pool.execute(() -> {
+                long waited = System.nanoTime() - queuedAt;
+                queueWait.record(waited, TimeUnit.NANOSECONDS);
+                if (waited > maxQueueWaitNanos) {
+                    queueTimeouts.increment();
+                    result.completeExceptionally(new RenderRejectedException("Render waited "
+                            + TimeUnit.NANOSECONDS.toMillis(waited) + " ms in the queue",
+                            HttpStatus.SERVICE_UNAVAILABLE, retryAfterSeconds));
+                    return;
+                }
+                try {
+                    if (deadline != null) {
+                        deadline.check();
+                    }
+                    result.complete(render.call());
+                } catch (RenderAbandonedException e) {
+                    (RenderDeadline.DISCONNECT.equals(e.getReason()) ? abandonedDisconnects : abandonedTimeouts)
+                            .increment();
+                    result.completeExceptionally(e);
+                } catch (Throwable e) {
+                    result.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            queueFull.increment();
+            result.completeExceptionally(new RenderRejectedException("Render queue is full",
+                    HttpStatus.TOO_MANY_REQUESTS, retryAfterSeconds));
+        }
+        return result;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        pool.shutdown();
+    }
+}
@@ -0,0 +1,227 @@
+package com.sherwin.ireredux;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+
+import java.awt.Dimension;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static com.sherwin.ireredux.ImageRenderingConstants.*;
+
+/**
+ * Caps the working memory of the renders in flight. Before a render starts,
+ * its peak working set is estimated from the size of the scene, the size being
+ * rendered and the number of surfaces colored, see {@link #estimate}, and
+ * reserved from a global budget, before the render is queued for a render
+ * thread. Renders that do not fit wait for running ones to finish, in arrival
+ * order, and are rejected with 503 if that takes longer than the configured
+ * maximum. No thread is held while they wait. A render estimated above the
+ * whole budget is let through on its own rather than never.
+ *
+ * The budget covers the buffers a render allocates for itself; the caches
+ * have budgets of their own.
+ */
+@Component
+@Slf4j
+public class RenderMemoryBudget {
+    // reservations are counted in KiB, so that a budget of up to 2 TB fits the semaphore
+    private static final int UNIT = 1024;
+
+    /*
+     * Request parameters that are not surfaces
+     */
+    private static final Set<String> NON_SURFACE_PARAMETERS = Set.of(BASE_IMAGE_LOCATION_PARAMETER,
+            RENDERED_IMAGE_WIDTH, RENDERED_IMAGE_HEIGHT, RENDERED_IMAGE_OUTPUT_PARAMETER, RESPONSE_TYPE,
+            RENDER_TIMEOUT_PARAMETER);
+
+    private final int budgetUnits;
+    private final Queue<Waiter> waiters = new ArrayDeque<>();
+    private int availableUnits;
+    private final long maxWaitMillis;
+    private final long retryAfterSeconds;
+    private final Counter rejections;
+
+    public RenderMemoryBudget(@Value("${ire.render.memory-budget-bytes:0}") long budgetBytes,
+                              @Value("${ire.render.max-memory-wait-ms:5000}") long maxWaitMillis,
+                              @Value("${ire.render.retry-after-seconds:1}") long retryAfterSeconds,
+                              MeterRegistry meterRegistry) {
+        long budget = budgetBytes > 0 ? budgetBytes : Runtime.getRuntime().maxMemory() / 2;
+        this.budgetUnits = (int) Math.max(1, Math.min(Integer.MAX_VALUE, budget / UNIT));
+        this.availableUnits = budgetUnits;
+        this.maxWaitMillis = maxWaitMillis;
+        this.retryAfterSeconds = retryAfterSeconds;
+
+        rejections = Counter.builder("ire.render.rejections").tag("reason", "memory").register(meterRegistry);
+        Gauge.builder("ire.render.memory.reserved", this, RenderMemoryBudget::reservedBytes)
+                .baseUnit("bytes").register(meterRegistry);
+        Gauge.builder("ire.render.memory.budget", this, RenderMemoryBudget::budgetBytes)
+                .baseUnit("bytes").register(meterRegistry);
+        log.info("Render memory budget: " + budgetBytes() + " bytes");
+    }
+
+    /**
+     * Estimate the peak working set of a render. Decoding and resizing the base
+     * image run one after the other, but at the same time as decoding the
+     * masks, see {@link StageExecutor}, so the largest steps that may run at once
+     * are added to what is held for the whole render: the image being painted,
+     * its luminance, the encoded JPEG and the shades of every colored surface,
+     * each of which may cover the whole image.
+     *
+     * @param sourceSize the size of the scene's base image
+     * @param decode true if the base image still has to be decoded
+     * @param width the requested width, 0 to fit the height
+     * @param height the requested height, 0 to fit the width
+     * @param params the request parameters
+     * @param parallelism how many steps of the render may run at once
+     * @return the estimated peak working set in bytes
+     */
+    public static long estimate(Dimension sourceSize, boolean decode, int width, int height,
+                                Map<String, String> params, int parallelism) {
+        Dimension outputSize = width > 0 || height > 0
+                ? ImageUtil.resizedSize(sourceSize.width, sourceSize.height, width, height) : sourceSize;
+        long source = (long) sourceSize.width * sourceSize.height;
+        long output = (long) outputSize.width * outputSize.height;
+        int surfaces = 0;
+        for (String name : params.keySet()) {
+            if (!NON_SURFACE_PARAMETERS.contains(name)) {
+                surfaces++;
+            }
+        }
+
+        // the decoder's image and the packed pixels taken from it
+        long decoding = decode ? source * Integer.BYTES * 2 : 0;
+        // a heap copy of the source pixels, the scaled intermediate and the result
+        long resizing = output != source ? source * Integer.BYTES + output * Integer.BYTES * 2 : 0;
+        // the mask image at the source size, resized and read back at the output size
+        long maskDecoding = source * Integer.BYTES + output * Integer.BYTES * 2;
+
+        // the base image and as many masks as there are other steps running, or the other way round
+        long baseImage = Math.max(decoding, resizing);
+        int steps = Math.max(1, parallelism);
+        int masks = Math.min(surfaces, baseImage >= maskDecoding ? steps - 1 : steps);
+        long running = (steps > masks ? baseImage : 0) + masks * maskDecoding;
+
+        long painting = output * Integer.BYTES + output + output;
+        // the masked luminance and the shading layer, up to an int per pixel with the legacy engine
+        long shading = surfaces * output * (Integer.BYTES + 1);
+        return painting + shading + running;
+    }
+
+    /**
+     * Reserve working memory for a render. If it is not available yet the
+     * reservation completes once running renders have released enough of
+     * theirs, and every render that asked earlier got its memory.
+     *
+     * @param bytes the estimated working set, see {@link #estimate}
+     * @return the reservation, to be closed when the render is done; it fails with
+     * a {@link RenderRejectedException} if the memory did not become available in time
+     */
+    public CompletableFuture<Reservation> reserve(long bytes) {
+        int units = (int) Math.max(1, Math.min(budgetUnits, (bytes + UNIT - 1) / UNIT));
+        Waiter waiter = new Waiter(units);
+        synchronized (this) {
+            if (waiters.isEmpty() && units <= availableUnits) {
+                availableUnits -= units;
+                waiter.reservation.complete(new Reservation(units));
+                return waiter.reservation;
+            }
+            waiters.add(waiter);
+        }
+        CompletableFuture.delayedExecutor(maxWaitMillis, TimeUnit.MILLISECONDS).execute(() -> {
+            synchronized (this) {
+                if (!waiters.remove(waiter)) {
+                    return;
+                }
+            }
+            rejections.increment();
+            waiter.reservation.completeExceptionally(new RenderRejectedException("No memory for a render of "
+                    + bytes + " bytes", HttpStatus.SERVICE_UNAVAILABLE, retryAfterSeconds));
+            // a large render at the head of the queue may have held back smaller ones
+            release(0);
+        });
+        return waiter.reservation;
+    }
+
+    /*
+     * Give units back and hand them on to the renders waiting, in arrival order
+     */
+    private void release(int units) {
+        List<Waiter> granted = new ArrayList<>();
+        synchronized (this) {
+            availableUnits += units;
+            while (!waiters.isEmpty() && waiters.peek().units <= availableUnits) {
+                Waiter waiter = waiters.remove();
+                availableUnits -= waiter.units;
+                granted.add(waiter);
+            }
+        }
+        for (Waiter waiter : granted) {
+            // the reservation goes on to start the render, which must not happen under the lock
+            Reservation reservation = new Reservation(waiter.units);
+            if (!waiter.reservation.complete(reservation)) {
+                reservation.close();
+            }
+        }
+    }
+
+    /**
+     * @return the working memory reserved by the renders in flight
+     */
+    public synchronized long reservedBytes() {
+        return (long) (budgetUnits - availableUnits) * UNIT;
+    }
+
+    public long budgetBytes() {
+        return (long) budgetUnits * UNIT;
+    }
+
+    /**
+     * Working memory reserved for one render.
+     */
+    public final class Reservation implements AutoCloseable {
+        private int units;
+
+        private Reservation(int units) {
+            this.units = units;
+        }
+
+        /**
+         * Give the memory back; closing twice has no further effect.
+         */
+        @Override
+        public void close() {
+            int released;
+            synchronized (this) {
+                released = units;
+                units = 0;
+            }
+            if (released > 0) {
+                release(released);
+            }
+        }
+    }
+
+    /*
+     * A render waiting for memory
+     */
+    private static final class Waiter {
+        final int units;
+        final CompletableFuture<Reservation> reservation = new CompletableFuture<>();
+
+        Waiter(int units) {
+            this.units = units;
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package com.sherwin.ireredux;
+
+import org.springframework.http.HttpStatus;
+
+/**
+ * A render turned away because the render executor is saturated, see
+ * {@link RenderExecutor}. The client is told to come back after a while
+ * rather than wait in a queue that is already too long.
+ */
+public class RenderRejectedException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    private final HttpStatus status;
+    private final long retryAfterSeconds;
+
+    public RenderRejectedException(String message, HttpStatus status, long retryAfterSeconds) {
+        super(message);
+        this.status = status;
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    /**
+     * @return 429 if the queue was full, 503 if the render waited in it too long
+     */
+    public HttpStatus getStatus() {
+        return status;
+    }
+
+    /**
+     * @return the value of the Retry-After header
+     */
+    public long getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+}
@@ -0,0 +1,114 @@
+package com.sherwin.ireredux;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+import static com.sherwin.ireredux.ImageRenderingConstants.*;
+
+/**
+ * Cache of final JPEG payloads keyed by the canonical form of a render request
+ * plus the modification times of the scene's source files, so an edited scene
+ * is never served stale.
+ */
+@Component
+@Slf4j
+public class RenderedImageCache {
+    /*
+     * Parameters that do not change the rendered pixels
+     */
+    private static final Set<String> NON_RENDERING_PARAMETERS = Set.of(
+            RENDERED_IMAGE_OUTPUT_PARAMETER, RESPONSE_TYPE, RENDER_TIMEOUT_PARAMETER );
+
+    private final ByteBudgetCache<String, byte[]> cache;
+    private final SingleFlight<String, byte[]> renders = new SingleFlight<>("render");
+
+    public RenderedImageCache(@Value("${ire.cache.render.max-bytes:268435456}") long maxBytes,
+                              @Value("${ire.cache.render.expected-entries:4096}") int expectedEntries,
+                              MeterRegistry meterRegistry) {
+        cache = new ByteBudgetCache<>("rendered-image", maxBytes, expectedEntries, payload -> payload.length);
+        cache.bindTo(meterRegistry);
+        renders.bindTo(meterRegistry);
+        log.info("Rendered image cache budget: " + maxBytes + " bytes");
+    }
+
+    public byte[] get(String renderKey) {
+        return cache.get(renderKey);
+    }
+
+    /**
+     * Start a render that missed the cache and cache its payload. Identical
+     * requests arriving while it runs wait for it and get the same payload,
+     * so a burst of them renders only once. A request that gives up cancels
+     * its future; the render is stopped once every request waiting for it has.
+     *
+     * @param renderKey the render key, see {@link #renderKey}
+     * @param renderer starts the render
+     * @param onAbandoned stops the render started by this call
+     * @return the payload, for this request only
+     */
+    public CompletableFuture<byte[]> render(String renderKey, Supplier<CompletableFuture<byte[]>> renderer,
+                                            Runnable onAbandoned) {
+        return renders.start(renderKey, () -> renderer.get().thenApply(payload -> {
+            put(renderKey, payload);
+            return payload;
+        }), onAbandoned);
+    }
+
+    public void put(String renderKey, byte[] payload) {
+        // empty payloads are failed renders, let the next request try again
+        if (payload.length > 0) {
+            cache.put(renderKey, payload);
+        }
+    }
+
+    /**
+     * Build the canonical key of a render request: the base image location,
+     * the normalized width and height, and every surface parameter (sorted by
+     * name, reduced to its color value) followed by the source file
+     * modification times.
+     *
+     * @param params the request parameters
+     * @param imageModified last modified time of the base .jpg
+     * @param xmlModified last modified time of the scene .xml
+     * @return the render key
+     */
+    public static String renderKey(Map<String, String> params, long imageModified, long xmlModified) {
+        StringBuilder key = new StringBuilder(128);
+        key.append(params.get(BASE_IMAGE_LOCATION_PARAMETER))
+                .append('|').append(dimension(params.get(RENDERED_IMAGE_WIDTH)))
+                .append('x').append(dimension(params.get(RENDERED_IMAGE_HEIGHT)));
+
+        Map<String, String> sorted = new TreeMap<>(params);
+        for (Map.Entry<String, String> entry : sorted.entrySet()) {
+            String name = entry.getKey();
+            if (name.equals(BASE_IMAGE_LOCATION_PARAMETER) || name.equals(RENDERED_IMAGE_WIDTH)
+                    || name.equals(RENDERED_IMAGE_HEIGHT) || NON_RENDERING_PARAMETERS.contains(name)) {
+                continue;
+            }
+            key.append('|').append(name).append('=').append(surfaceValue(entry.getValue()));
+        }
+
+        return key.append('|').append(imageModified).append('|').append(xmlModified).toString();
+    }
+
+    private static int dimension(String value) {
+        return value != null ? Integer.parseInt(value) : 0;
+    }
+
+    private static String surfaceValue(String value) {
+        try {
+            return SurfaceMasking.parseSurfaceColor(value);
+        } catch (RuntimeException e) {
+            // not surface data, keep the raw value
+            return value;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.sherwin.ireredux;
+
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A parsed scene xml together with everything derived from it that does not
+ * depend on the request: the surface-to-mask map and the deduplicated
+ * {@link UniqueSurfaceMask} grouping. The masking data is either held in
+ * memory or left in the xml file, see {@link SceneIndexer}. Scenes are cached
+ * and shared between requests, so nothing in here may be modified after
+ * construction.
+ */
+public final class Scene {
+    // rough per-surface bookkeeping cost on top of the masking data
+    private static final int SURFACE_OVERHEAD_BYTES = 1024;
+
+    private final String key;
+    private final Map<String, MaskData> surfaceMaskMap;
+    private final List<UniqueSurfaceMask> uniqueSurfaceMasks;
+    private final String surfaceNamingConvention;
+    private final int surfaceCount;
+    private final long sizeInBytes;
+
+    public Scene(String key, Project project) throws IOException {
+        this(key, SourceXmlFileParser.surfaceMasks(project), SourceXmlFileParser.surfaceBounds(project),
+                project.getSurfaces().size());
+    }
+
+    /**
+     * @param key the cache key of the scene
+     * @param surfaceMasks the masking data of each surface
+     * @param surfaceBounds the declared bounding box of each surface that has one
+     * @param surfaceCount the number of surfaces in the xml
+     * @throws IOException if masking data left in the xml file cannot be read
+     */
+    public Scene(String key, Map<String, MaskData> surfaceMasks, Map<String, Rectangle> surfaceBounds,
+                 int surfaceCount) throws IOException {
+        this.key = key;
+        this.surfaceMaskMap = Collections.unmodifiableMap(surfaceMasks);
+        this.uniqueSurfaceMasks = Collections.unmodifiableList(
+                SurfaceMasking.collectUniqueSurfaceMasks(surfaceMaskMap, surfaceBounds));
+        this.surfaceNamingConvention = SurfaceMasking.getSurfaceNamingConvention(uniqueSurfaceMasks);
+        this.surfaceCount = surfaceCount;
+
+        long size = 0;
+        for (MaskData mask : surfaceMaskMap.values()) {
+            size += mask.sizeInBytes();
+        }
+        this.sizeInBytes = size + (long) SURFACE_OVERHEAD_BYTES * surfaceCount;
+    }
+
+    /**
+     * @return the cache key of the scene, unique per xml file version
+     */
+    public String getKey() {
+        return key;
+    }
+
+    public Map<String, MaskData> getSurfaceMaskMap() {
+        return surfaceMaskMap;
+    }
+
+    public List<UniqueSurfaceMask> getUniqueSurfaceMasks() {
+        return uniqueSurfaceMasks;
+    }
+
+    /**
+     * @return the beginning of the surface names, used to pick surface parameters out of the request
+     */
+    public String getSurfaceNamingConvention() {
+        return surfaceNamingConvention;
+    }
+
+    /**
+     * @return the number of surfaces in the xml, with or without a mask
+     */
+    public int getSurfaceCount() {
+        return surfaceCount;
+    }
+
+    public long sizeInBytes() {
+        return sizeInBytes;
+    }
+}
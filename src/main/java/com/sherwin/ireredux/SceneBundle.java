@@ -0,0 +1,362 @@
+package com.sherwin.ireredux;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A scene compiled ahead of time by {@link SceneBundleCompiler} into one
+ * binary file next to its .jpg and .xml: the decoded pixels, their luminance,
+ * and the masks already expanded, see {@link MaskData#compiled}. Bundles are
+ * memory mapped; the pixels and luminance are copied out in bulk instead of
+ * being decoded, the masks are left in the file until a request colors them.
+ *
+ * A bundle records the modification time and length of the .jpg and .xml it
+ * was compiled from and is ignored once either has changed, so the scene is
+ * read from them as if there were no bundle.
+ *
+ * Layout, big endian, offsets from the start of the file:
+ * <pre>
+ * header     magic, format version, .jpg and .xml modification time and length,
+ *            width, height, number of surfaces in the xml, of surface entries
+ *            and of masks, offsets of the four sections below
+ * pixels     width * height packed RGB ints
+ * luminance  width * height bytes
+ * surfaces   per surface with a mask: name length (2 bytes), UTF-8 name, mask index
+ * masks      per mask: bounds and region (x, y, width, height each), offset and
+ *            length of its channel bits; followed by the channel bits
+ * </pre>
+ */
+@Slf4j
+public final class SceneBundle {
+    static final String EXTENSION = ".ireb";
+
+    // "IREB"
+    private static final int MAGIC = 0x49524542;
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_BYTES = 96;
+    private static final int MASK_ENTRY_BYTES = 44;
+
+    private final File file;
+    private final long lastModified;
+    private final long fileLength;
+    private final ByteBuffer buffer;
+    private final int width;
+    private final int height;
+    private final int surfaceCount;
+    private final int entryCount;
+    private final int maskCount;
+    private final long pixelsOffset;
+    private final long luminanceOffset;
+    private final long surfacesOffset;
+    private final long masksOffset;
+
+    private SceneBundle(File file, long lastModified, ByteBuffer buffer) {
+        this.file = file;
+        this.lastModified = lastModified;
+        this.fileLength = buffer.limit();
+        this.buffer = buffer;
+        this.width = buffer.getInt(40);
+        this.height = buffer.getInt(44);
+        this.surfaceCount = buffer.getInt(48);
+        this.entryCount = buffer.getInt(52);
+        this.maskCount = buffer.getInt(56);
+        this.pixelsOffset = buffer.getLong(64);
+        this.luminanceOffset = buffer.getLong(72);
+        this.surfacesOffset = buffer.getLong(80);
+        this.masksOffset = buffer.getLong(88);
+    }
+
+    /**
+     * @param sceneFile the .jpg or .xml of the scene
+     * @return the bundle of the scene, its .jpg and .xml with the extension replaced
+     */
+    static File bundleFile(File sceneFile) {
+        return new File(baseName(sceneFile) + EXTENSION);
+    }
+
+    /**
+     * Open the bundle of a scene, if it has an up to date one.
+     *
+     * @param sceneFile the .jpg or .xml of the scene
+     * @return the bundle, or null if there is none or it is out of date
+     * @throws IOException if the bundle cannot be read or is corrupt
+     */
+    static SceneBundle open(File sceneFile) throws IOException {
+        File file = bundleFile(sceneFile);
+        if (!file.isFile()) {
+            return null;
+        }
+        long lastModified = file.lastModified();
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_BYTES || channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Not a scene bundle: " + file);
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a scene bundle: " + file);
+        }
+        if (buffer.getInt(4) != FORMAT_VERSION) {
+            log.warn("Ignoring " + file + ", it was compiled with bundle format " + buffer.getInt(4)
+                    + " rather than " + FORMAT_VERSION);
+            return null;
+        }
+        String base = baseName(sceneFile);
+        if (changed(new File(base + ".jpg"), buffer.getLong(8), buffer.getLong(16))
+                || changed(new File(base + ".xml"), buffer.getLong(24), buffer.getLong(32))) {
+            if (log.isDebugEnabled()) {
+                log.debug("Ignoring " + file + ", the scene has changed since it was compiled");
+            }
+            return null;
+        }
+        SceneBundle bundle = new SceneBundle(file, lastModified, buffer);
+        bundle.validate();
+        return bundle;
+    }
+
+    /**
+     * @param key the cache key of the image
+     * @return the decoded image, with the luminance of every pixel
+     */
+    public DecodedImage image(String key) {
+        int[] pixels = new int[ width * height ];
+        buffer.slice((int) pixelsOffset, pixels.length * Integer.BYTES).asIntBuffer().get(pixels);
+        byte[] luminance = new byte[ width * height ];
+        buffer.get((int) luminanceOffset, luminance);
+        return DecodedImage.of(key, width, height, pixels, LuminancePlane.of(width, height, luminance),
+                false);
+    }
+
+    /**
+     * @param key the cache key of the scene
+     * @return the scene, its masks left in the bundle
+     * @throws IOException if the masks of the scene cannot be read
+     */
+    public Scene scene(String key) throws IOException {
+        List<MaskData> masks = new ArrayList<MaskData>(maskCount);
+        int position = (int) masksOffset;
+        for (int mask = 0; mask < maskCount; mask++, position += MASK_ENTRY_BYTES) {
+            masks.add(MaskData.compiled(file, lastModified, fileLength, buffer.getLong(position + 32),
+                    buffer.getInt(position + 40), box(position), box(position + 16)));
+        }
+
+        // surfaces sharing a mask share the MaskData, which groups them again
+        Map<String, MaskData> surfaceMasks = new HashMap<String, MaskData>();
+        position = (int) surfacesOffset;
+        for (int entry = 0; entry < entryCount; entry++) {
+            byte[] name = new byte[ buffer.getShort(position) & 0xFFFF ];
+            buffer.get(position + 2, name);
+            position += 2 + name.length;
+            int mask = buffer.getInt(position);
+            position += 4;
+            surfaceMasks.put(new String(name, StandardCharsets.UTF_8), masks.get(mask));
+        }
+        return new Scene(key, surfaceMasks, new HashMap<String, Rectangle>(), surfaceCount);
+    }
+
+    /*
+     * Check that every section, surface entry and mask of the header lies
+     * inside the file, so that a truncated or corrupt bundle is reported as
+     * such instead of failing half way through reading it
+     */
+    private void validate() throws IOException {
+        long pixels = (long) width * height;
+        if (width <= 0 || height <= 0 || surfaceCount < 0 || entryCount < 0 || maskCount < 0
+                || !inFile(pixelsOffset, pixels * Integer.BYTES) || !inFile(luminanceOffset, pixels)
+                || !inFile(masksOffset, (long) maskCount * MASK_ENTRY_BYTES)) {
+            throw corrupt();
+        }
+
+        long position = masksOffset;
+        for (int mask = 0; mask < maskCount; mask++, position += MASK_ENTRY_BYTES) {
+            Rectangle bounds = box((int) position);
+            Rectangle region = box((int) position + 16);
+            int length = buffer.getInt((int) position + 40);
+            if (!inImage(bounds) || !inImage(region) || length < ((long) region.width * region.height + 1) / 2
+                    || !inFile(buffer.getLong((int) position + 32), length)) {
+                throw corrupt();
+            }
+        }
+
+        position = surfacesOffset;
+        for (int entry = 0; entry < entryCount; entry++) {
+            if (!inFile(position, 2)) {
+                throw corrupt();
+            }
+            position += 2 + (buffer.getShort((int) position) & 0xFFFF);
+            if (!inFile(position, 4)) {
+                throw corrupt();
+            }
+            int mask = buffer.getInt((int) position);
+            position += 4;
+            if (mask < 0 || mask >= maskCount) {
+                throw corrupt();
+            }
+        }
+    }
+
+    private Rectangle box(int position) {
+        return new Rectangle(buffer.getInt(position), buffer.getInt(position + 4), buffer.getInt(position + 8),
+                buffer.getInt(position + 12));
+    }
+
+    private boolean inImage(Rectangle box) {
+        return box.x >= 0 && box.y >= 0 && box.width >= 0 && box.height >= 0
+                && (long) box.x + box.width <= width && (long) box.y + box.height <= height;
+    }
+
+    private boolean inFile(long offset, long length) {
+        return offset >= 0 && length >= 0 && offset <= fileLength - length;
+    }
+
+    private IOException corrupt() {
+        return new IOException("Corrupt scene bundle: " + file);
+    }
+
+    /**
+     * Compile a scene into its bundle. The bundle is written next to it and
+     * moved into place once complete.
+     *
+     * @param sceneFile the .jpg or .xml of the scene
+     * @param image the decoded .jpg
+     * @param luminance the luminance of the image at its own size
+     * @param scene the parsed .xml
+     * @return the bundle file
+     * @throws Exception if the masking data is corrupt or the bundle cannot be written
+     */
+    static File write(File sceneFile, DecodedImage image, LuminancePlane luminance, Scene scene) throws Exception {
+        String base = baseName(sceneFile);
+        File sourceFile = new File(base + ".jpg");
+        File xmlFile = new File(base + ".xml");
+        int width = image.getWidth();
+        int height = image.getHeight();
+
+        List<UniqueSurfaceMask> uniqueMasks = scene.getUniqueSurfaceMasks();
+        Map<MaskData, Integer> maskIndex = new IdentityHashMap<MaskData, Integer>();
+        List<Rectangle> bounds = new ArrayList<Rectangle>();
+        List<Rectangle> regions = new ArrayList<Rectangle>();
+        List<byte[]> channels = new ArrayList<byte[]>();
+        for (UniqueSurfaceMask usm : uniqueMasks) {
+            maskIndex.put(usm.getMask(), bounds.size());
+            bounds.add(SurfaceMasking.maskBounds(usm, width, height));
+            Rectangle region = SurfaceMasking.dataBounds(usm.getMask(), width, height);
+            regions.add(region);
+            channels.add(compileChannels(usm.getMask(), width, region));
+        }
+
+        List<byte[]> names = new ArrayList<byte[]>();
+        List<Integer> nameMasks = new ArrayList<Integer>();
+        long surfacesLength = 0;
+        for (Map.Entry<String, MaskData> entry : scene.getSurfaceMaskMap().entrySet()) {
+            byte[] name = entry.getKey().getBytes(StandardCharsets.UTF_8);
+            if (name.length > 0xFFFF) {
+                throw new IOException("Surface name too long: " + entry.getKey());
+            }
+            names.add(name);
+            nameMasks.add(maskIndex.get(findMask(uniqueMasks, entry.getKey())));
+            surfacesLength += 2 + name.length + 4;
+        }
+
+        long pixelsOffset = HEADER_BYTES;
+        long luminanceOffset = pixelsOffset + (long) width * height * Integer.BYTES;
+        long surfacesOffset = luminanceOffset + (long) width * height;
+        long masksOffset = surfacesOffset + surfacesLength;
+        long dataOffset = masksOffset + (long) channels.size() * MASK_ENTRY_BYTES;
+        long length = dataOffset;
+        for (byte[] data : channels) {
+            length += data.length;
+        }
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Scene too large for a bundle: " + base);
+        }
+
+        ByteBuffer out = ByteBuffer.allocate((int) length);
+        out.putInt(MAGIC).putInt(FORMAT_VERSION)
+                .putLong(sourceFile.lastModified()).putLong(sourceFile.length())
+                .putLong(xmlFile.lastModified()).putLong(xmlFile.length())
+                .putInt(width).putInt(height)
+                .putInt(scene.getSurfaceCount()).putInt(names.size()).putInt(channels.size()).putInt(0)
+                .putLong(pixelsOffset).putLong(luminanceOffset).putLong(surfacesOffset).putLong(masksOffset);
+        out.asIntBuffer().put(PixelBuffer.of(image.sharedImage()).rgbArray());
+        out.position((int) luminanceOffset);
+        out.put(luminance.toArray());
+        for (int entry = 0; entry < names.size(); entry++) {
+            out.putShort((short) names.get(entry).length).put(names.get(entry)).putInt(nameMasks.get(entry));
+        }
+        long offset = dataOffset;
+        for (int mask = 0; mask < channels.size(); mask++) {
+            for (Rectangle box : new Rectangle[] { bounds.get(mask), regions.get(mask) }) {
+                out.putInt(box.x).putInt(box.y).putInt(box.width).putInt(box.height);
+            }
+            out.putLong(offset).putInt(channels.get(mask).length);
+            offset += channels.get(mask).length;
+        }
+        for (byte[] data : channels) {
+            out.put(data);
+        }
+
+        File file = bundleFile(sceneFile);
+        File partial = new File(file.getPath() + ".tmp");
+        Files.write(partial.toPath(), out.array());
+        Files.move(partial.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        return file;
+    }
+
+    /*
+     * Expand the mask over the region and keep one bit per channel
+     */
+    private static byte[] compileChannels(MaskData mask, int width, Rectangle region) throws Exception {
+        if (region.isEmpty()) {
+            return new byte[ 0 ];
+        }
+        int pixels = region.width * region.height;
+        byte[] abgr = new byte[ pixels * 4 ];
+        SurfaceMasking.expandMask(mask, width, region, abgr);
+        byte[] channels = new byte[ (pixels + 1) / 2 ];
+        for (int p = 0; p < pixels; p++) {
+            int bits = 0;
+            for (int channel = 0; channel < 4; channel++) {
+                if (abgr[ (p * 4 + channel) ^ 3 ] != 0) {
+                    bits |= 1 << channel;
+                }
+            }
+            channels[ p >> 1 ] |= (byte) (bits << ((p & 1) * 4));
+        }
+        return channels;
+    }
+
+    private static MaskData findMask(List<UniqueSurfaceMask> uniqueMasks, String surfaceName) {
+        for (UniqueSurfaceMask usm : uniqueMasks) {
+            if (usm.contains(surfaceName)) {
+                return usm.getMask();
+            }
+        }
+        throw new IllegalStateException("No mask for " + surfaceName);
+    }
+
+    private static boolean changed(File file, long lastModified, long length) {
+        return file.exists() && (file.lastModified() != lastModified || file.length() != length);
+    }
+
+    private static String baseName(File sceneFile) {
+        String path = sceneFile.getPath();
+        int dot = path.lastIndexOf('.');
+        return dot > path.lastIndexOf(File.separatorChar) ? path.substring(0, dot) : path;
+    }
+}
@@ -0,0 +1,72 @@
+package com.sherwin.ireredux;
+
+import lombok.extern.slf4j.Slf4j;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Compiles scenes into {@link SceneBundle}s offline, so the renderer can map
+ * them instead of decoding the .jpg and inflating the masks of the .xml. Takes
+ * the scenes as paths without extension (or with .jpg or .xml) and writes each
+ * bundle next to its scene. From the packaged application:
+ * <pre>
+ * java -cp ire-redux.jar -Dloader.main=com.sherwin.ireredux.SceneBundleCompiler \
+ *      org.springframework.boot.loader.PropertiesLauncher /scenes/room /scenes/kitchen
+ * </pre>
+ * A bundle goes out of date as soon as the scene's .jpg or .xml changes, so
+ * scenes have to be compiled again after every update.
+ */
+@Slf4j
+public class SceneBundleCompiler {
+
+    public static void main(String[] args) {
+        if (args.length == 0) {
+            System.err.println("usage: SceneBundleCompiler <scene> [<scene> ...]");
+            System.exit(2);
+        }
+
+        int failed = 0;
+        for (String scene : args) {
+            try {
+                compile(new File(scene));
+            } catch (Exception e) {
+                log.error("Could not compile " + scene + ": " + e);
+                failed++;
+            }
+        }
+        System.exit(failed == 0 ? 0 : 1);
+    }
+
+    /**
+     * @param sceneFile the scene, with or without extension
+     * @return the bundle file
+     * @throws Exception if the scene cannot be read or the bundle cannot be written
+     */
+    static File compile(File sceneFile) throws Exception {
+        long compileTime = System.currentTimeMillis();
+        String base = SceneBundle.bundleFile(sceneFile).getPath();
+        base = base.substring(0, base.length() - SceneBundle.EXTENSION.length());
+        File sourceFile = new File(base + ".jpg");
+        File xmlFile = new File(base + ".xml");
+
+        BufferedImage decoded = ImageIO.read(sourceFile);
+        if (decoded == null) {
+            throw new IOException("No image reader for " + sourceFile);
+        }
+        DecodedImage image = DecodedImage.of(sourceFile.getPath(), decoded);
+        LuminancePlane luminance = LuminancePlane.of(image.sharedImage(), BandExecutor.SEQUENTIAL);
+
+        Scene scene = SceneIndexer.index(xmlFile.getPath(), xmlFile);
+        if (scene == null) {
+            scene = new Scene(xmlFile.getPath(), SourceXmlFileParser.parseProject(xmlFile));
+        }
+
+        File bundle = SceneBundle.write(sourceFile, image, luminance, scene);
+        log.info("Compiled " + bundle + " (" + bundle.length() + " bytes, " + scene.getUniqueSurfaceMasks().size()
+                + " masks) in " + (System.currentTimeMillis() - compileTime) + " ms");
+        return bundle;
+    }
+}
@@ -0,0 +1,162 @@
+package com.sherwin.ireredux;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Bounded caches of parsed scenes and of the data derived from them. Scenes
+ * are keyed by xml path, modification time and length, so each version of a
+ * scene is parsed and grouped once rather than once per request; everything
+ * derived from a scene is keyed by the scene key plus whatever else it
+ * depends on.
+ */
+@Component
+@Slf4j
+public class SceneCache {
+    private final ByteBudgetCache<String, Scene> scenes;
+    private final ByteBudgetCache<String, MaskBitmap> masks;
+    private final ByteBudgetCache<String, ShadingLayer> shadings;
+    private final SingleFlight<String, Scene> sceneLoads = new SingleFlight<>("scene");
+    private final SingleFlight<String, MaskBitmap> maskLoads = new SingleFlight<>("mask");
+    private final boolean indexMasks;
+    private final boolean bundles;
+    private final OffHeapStore offHeapStore;
+
+    public SceneCache(@Value("${ire.cache.scene.max-bytes:536870912}") long maxBytes,
+                      @Value("${ire.cache.scene.expected-entries:1024}") int expectedEntries,
+                      @Value("${ire.cache.mask.max-bytes:1073741824}") long maxMaskBytes,
+                      @Value("${ire.cache.mask.expected-entries:4096}") int expectedMasks,
+                      @Value("${ire.cache.shading.max-bytes:1073741824}") long maxShadingBytes,
+                      @Value("${ire.scene.index-masks:true}") boolean indexMasks,
+                      @Value("${ire.scene.bundles:true}") boolean bundles,
+                      MeterRegistry meterRegistry, OffHeapStore offHeapStore) {
+        scenes = new ByteBudgetCache<>("scene", maxBytes, expectedEntries, Scene::sizeInBytes);
+        scenes.bindTo(meterRegistry);
+        masks = new ByteBudgetCache<>("mask", maxMaskBytes, expectedMasks, MaskBitmap::sizeInBytes);
+        masks.bindTo(meterRegistry);
+        shadings = new ByteBudgetCache<>("shading", maxShadingBytes, expectedMasks, ShadingLayer::sizeInBytes);
+        shadings.bindTo(meterRegistry);
+        sceneLoads.bindTo(meterRegistry);
+        maskLoads.bindTo(meterRegistry);
+        this.indexMasks = indexMasks;
+        this.bundles = bundles;
+        this.offHeapStore = offHeapStore;
+        log.info("Scene cache budget: " + maxBytes + " bytes, mask cache budget: " + maxMaskBytes
+                + " bytes, shading cache budget: " + maxShadingBytes + " bytes");
+    }
+
+    /**
+     * Return the parsed scene for the xml file, parsing it only if this
+     * version of the file is not cached yet. The scene is loaded from its
+     * {@link SceneBundle} if it has an up to date one, otherwise the file is
+     * indexed rather than parsed if it can be, see {@link SceneIndexer}.
+     * Concurrent requests for a scene that is not cached yet load it once.
+     *
+     * @param xmlFile the scene xml
+     * @return the scene
+     * @throws IOException if the xml cannot be read or parsed
+     */
+    public Scene getScene(File xmlFile) throws IOException {
+        String key = xmlFile.getAbsolutePath() + '|' + xmlFile.lastModified() + '|' + xmlFile.length();
+        Scene scene = scenes.get(key);
+        if (scene != null) {
+            return scene;
+        }
+        return sceneLoads.run(key, () -> loadScene(key, xmlFile));
+    }
+
+    private Scene loadScene(String key, File xmlFile) throws IOException {
+        Scene scene = bundles ? readBundle(key, xmlFile) : null;
+        if (scene == null && indexMasks) {
+            scene = SceneIndexer.index(key, xmlFile);
+        }
+        if (scene == null) {
+            scene = new Scene(key, SourceXmlFileParser.parseProject(xmlFile));
+        }
+        scenes.put(key, scene);
+        return scene;
+    }
+
+    private static Scene readBundle(String key, File xmlFile) {
+        try {
+            SceneBundle bundle = SceneBundle.open(xmlFile);
+            return bundle != null ? bundle.scene(key) : null;
+        } catch (IOException e) {
+            log.error("Error reading the bundle of " + xmlFile + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Return the finished mask of a scene's surface at the size being rendered,
+     * decoding and resizing it only on the first request for that size. Masks
+     * are always resized from the source size, also with the pyramid enabled,
+     * so their coverage is that of a direct resize. Concurrent requests for a
+     * mask that is not cached yet decode it once.
+     *
+     * @param scene the scene the mask belongs to
+     * @param usm the mask
+     * @param originalImageWidth width of the source image the mask was drawn on
+     * @param originalImageHeight height of the source image the mask was drawn on
+     * @param targetWidth width of the image being rendered
+     * @param targetHeight height of the image being rendered
+     * @return the mask
+     * @throws Exception if the masking data is corrupt
+     */
+    public MaskBitmap getMask(Scene scene, UniqueSurfaceMask usm, int originalImageWidth, int originalImageHeight,
+                              int targetWidth, int targetHeight) throws Exception {
+        String key = scene.getKey() + '|' + usm.getId() + '|' + originalImageWidth + 'x' + originalImageHeight
+                + '|' + targetWidth + 'x' + targetHeight;
+        MaskBitmap mask = masks.get(key);
+        if (mask != null) {
+            return mask;
+        }
+        return maskLoads.run(key, () -> decodeMask(key, usm, originalImageWidth, originalImageHeight,
+                targetWidth, targetHeight));
+    }
+
+    private MaskBitmap decodeMask(String key, UniqueSurfaceMask usm, int originalImageWidth,
+                                  int originalImageHeight, int targetWidth, int targetHeight) throws Exception {
+        MaskBitmap mask = SurfaceMasking.decodeMask(usm, originalImageWidth, originalImageHeight,
+                targetWidth, targetHeight).toOffHeap(offHeapStore);
+        masks.put(key, mask);
+        return mask;
+    }
+
+    /**
+     * Return the shading layer of a scene's surface at the size being rendered,
+     * or null if it has not been computed yet. It depends on the base image
+     * pixels as well as on the mask, so the key covers both the xml and the
+     * image version.
+     *
+     * @param scene the scene the mask belongs to
+     * @param sourceImage the decoded base image
+     * @param usm the mask
+     * @param targetWidth width of the image being rendered
+     * @param targetHeight height of the image being rendered
+     * @return the shading layer, or null
+     */
+    public ShadingLayer getShading(Scene scene, DecodedImage sourceImage, UniqueSurfaceMask usm,
+                                   int targetWidth, int targetHeight) {
+        return shadings.get(shadingKey(scene, sourceImage, usm, targetWidth, targetHeight));
+    }
+
+    /**
+     * Remember the shading layer computed while painting a surface.
+     */
+    public void putShading(Scene scene, DecodedImage sourceImage, UniqueSurfaceMask usm,
+                           int targetWidth, int targetHeight, ShadingLayer shading) {
+        shadings.put(shadingKey(scene, sourceImage, usm, targetWidth, targetHeight), shading);
+    }
+
+    private static String shadingKey(Scene scene, DecodedImage sourceImage, UniqueSurfaceMask usm,
+                                     int targetWidth, int targetHeight) {
+        return scene.getKey() + '|' + sourceImage.getKey() + '|' + usm.getId()
+                + '|' + targetWidth + 'x' + targetHeight;
+    }
+}
@@ -0,0 +1,285 @@
+package com.sherwin.ireredux;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Builds a {@link Scene} from a single pass over the memory mapped scene xml
+ * without materializing the masking data. Only the surface names and bounds
+ * are read; for each surface's mask the position and length of its base64
+ * text in the file are recorded, see {@link MaskData}, so only the masks a
+ * request colors are ever read.
+ *
+ * The masking data is an attribute, and StAX readers decode every attribute
+ * of an element as a String, so the start tags are scanned here instead. The
+ * scanner understands the subset of xml the scenes are written in: elements,
+ * attributes, comments and processing instructions. Anything else, e.g.
+ * entity references in the names or masks, CDATA or a UTF-16 file, makes it
+ * give up so the scene is parsed in full by {@link SourceXmlFileParser}.
+ */
+@Slf4j
+final class SceneIndexer {
+    private static final String SURFACES = "surfaces";
+    private static final String SURFACE_MASK = "SurfaceMask";
+
+    private final ByteBuffer xml;
+    private final File xmlFile;
+    private final long lastModified;
+    private final long fileLength;
+    private int position;
+
+    // the surface being read, how deep its element is, and its first mask
+    private String surfaceName;
+    private Rectangle surfaceBounds;
+    private int surfaceDepth;
+    private MaskData surfaceMask;
+
+    private final Map<String, MaskData> masks = new HashMap<String, MaskData>();
+    private final Map<String, Rectangle> bounds = new HashMap<String, Rectangle>();
+    private int surfaceCount;
+
+    private SceneIndexer(ByteBuffer xml, File xmlFile, long lastModified, long fileLength) {
+        this.xml = xml;
+        this.xmlFile = xmlFile;
+        this.lastModified = lastModified;
+        this.fileLength = fileLength;
+    }
+
+    /**
+     * @param key the cache key of the scene
+     * @param xmlFile the scene xml
+     * @return the scene, or null if the file has to be parsed in full
+     * @throws IOException if the file cannot be read
+     */
+    static Scene index(String key, File xmlFile) throws IOException {
+        long indexTime = System.currentTimeMillis();
+        long lastModified = xmlFile.lastModified();
+        SceneIndexer indexer;
+        try (FileChannel channel = FileChannel.open(xmlFile.toPath(), StandardOpenOption.READ)) {
+            long fileLength = channel.size();
+            if (fileLength > Integer.MAX_VALUE) {
+                return null;
+            }
+            indexer = new SceneIndexer(channel.map(FileChannel.MapMode.READ_ONLY, 0, fileLength), xmlFile,
+                    lastModified, fileLength);
+        }
+        if (!indexer.scan()) {
+            if (log.isDebugEnabled()) {
+                log.debug("Scene xml " + xmlFile + " cannot be indexed, parsing it in full");
+            }
+            return null;
+        }
+        Scene scene = new Scene(key, indexer.masks, indexer.bounds, indexer.surfaceCount);
+        if (log.isDebugEnabled()) {
+            log.debug("Time to index xml: " + (System.currentTimeMillis() - indexTime) + " ms");
+        }
+        return scene;
+    }
+
+    /*
+     * Walk the tags, returning false on anything outside the supported subset
+     */
+    private boolean scan() {
+        int limit = xml.limit();
+        if (limit >= 2 && ((xml.get(0) & 0xFF) == 0xFE || (xml.get(0) & 0xFF) == 0xFF)) {
+            // UTF-16 byte order mark
+            return false;
+        }
+        Deque<String> path = new ArrayDeque<String>();
+        while (true) {
+            while (position < limit && xml.get(position) != '<') {
+                if (xml.get(position) == '&') {
+                    return false;
+                }
+                position++;
+            }
+            if (position >= limit) {
+                return path.isEmpty() && surfaceName == null;
+            }
+            position++;
+            if (startsWith("!--")) {
+                if (!skipPast("-->")) {
+                    return false;
+                }
+            } else if (startsWith("?")) {
+                if (!skipPast("?>")) {
+                    return false;
+                }
+            } else if (startsWith("!")) {
+                // CDATA, DOCTYPE
+                return false;
+            } else if (startsWith("/")) {
+                position++;
+                String name = readName();
+                if (path.isEmpty() || !path.pop().equals(name) || !skipPast(">")) {
+                    return false;
+                }
+                if (surfaceName != null && path.size() == surfaceDepth) {
+                    endSurface();
+                }
+            } else if (!startElement(path)) {
+                return false;
+            }
+        }
+    }
+
+    private boolean startElement(Deque<String> path) {
+        String name = readName();
+        if (name.isEmpty()) {
+            return false;
+        }
+        // any element in the surfaces list is a surface, as for the Jackson mapping
+        boolean surface = path.size() == 2 && SURFACES.equals(path.peek());
+        // the first mask is the first element inside the surface's SurfaceMask list
+        boolean mask = surfaceName != null && surfaceMask == null && path.size() == surfaceDepth + 2
+                && SURFACE_MASK.equals(path.peek());
+        Map<String, String> attributes = new HashMap<String, String>();
+        while (true) {
+            skipWhitespace();
+            if (position >= xml.limit()) {
+                return false;
+            }
+            byte b = xml.get(position);
+            if (b == '>' || (b == '/' && position + 1 < xml.limit() && xml.get(position + 1) == '>')) {
+                position += b == '>' ? 1 : 2;
+                boolean empty = b == '/';
+                if (surface) {
+                    if (!startSurface(attributes, path.size())) {
+                        return false;
+                    }
+                    if (empty) {
+                        endSurface();
+                        return true;
+                    }
+                }
+                if (!empty) {
+                    path.push(name);
+                }
+                return true;
+            }
+
+            String attribute = readName();
+            skipWhitespace();
+            if (attribute.isEmpty() || !startsWith("=")) {
+                return false;
+            }
+            position++;
+            skipWhitespace();
+            if (position >= xml.limit() || (xml.get(position) != '"' && xml.get(position) != '\'')) {
+                return false;
+            }
+            byte quote = xml.get(position++);
+            int start = position;
+            while (position < xml.limit() && xml.get(position) != quote) {
+                if (xml.get(position) == '&' || xml.get(position) == '<') {
+                    return false;
+                }
+                position++;
+            }
+            if (position >= xml.limit()) {
+                return false;
+            }
+            if (mask && "string".equals(attribute)) {
+                surfaceMask = MaskData.of(xmlFile, lastModified, fileLength, start, position - start);
+            } else if (surface) {
+                attributes.put(attribute, text(start, position));
+            }
+            position++;
+        }
+    }
+
+    private boolean startSurface(Map<String, String> attributes, int depth) {
+        surfaceName = attributes.get("name");
+        if (surfaceName == null) {
+            return false;
+        }
+        try {
+            surfaceBounds = SourceXmlFileParser.surfaceBounds(intAttribute(attributes, "minX"),
+                    intAttribute(attributes, "minY"), intAttribute(attributes, "maxX"),
+                    intAttribute(attributes, "maxY"));
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        surfaceCount++;
+        surfaceDepth = depth;
+        return true;
+    }
+
+    /*
+     * Surfaces without a mask are left out, as SourceXmlFileParser.surfaceMasks does
+     */
+    private void endSurface() {
+        if (surfaceMask != null) {
+            masks.put(surfaceName, surfaceMask);
+        }
+        if (surfaceBounds != null) {
+            bounds.put(surfaceName, surfaceBounds);
+        }
+        surfaceName = null;
+        surfaceBounds = null;
+        surfaceMask = null;
+    }
+
+    private static int intAttribute(Map<String, String> attributes, String name) {
+        String value = attributes.get(name);
+        return value != null ? Integer.parseInt(value.trim()) : 0;
+    }
+
+    private String readName() {
+        int start = position;
+        while (position < xml.limit()) {
+            byte b = xml.get(position);
+            if (b == '=' || b == '>' || b == '/' || b == '<' || Character.isWhitespace(b)) {
+                break;
+            }
+            position++;
+        }
+        return text(start, position);
+    }
+
+    private String text(int start, int end) {
+        byte[] bytes = new byte[ end - start ];
+        xml.get(start, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private void skipWhitespace() {
+        while (position < xml.limit() && Character.isWhitespace(xml.get(position))) {
+            position++;
+        }
+    }
+
+    private boolean startsWith(String token) {
+        if (position + token.length() > xml.limit()) {
+            return false;
+        }
+        for (int i = 0; i < token.length(); i++) {
+            if (xml.get(position + i) != token.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean skipPast(String token) {
+        while (position < xml.limit()) {
+            if (startsWith(token)) {
+                position += token.length();
+                return true;
+            }
+            position++;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,54 @@
+package com.sherwin.ireredux;
+
+/**
+ * The downscaled levels kept of a scene's base image. Level 0 is the source
+ * image; every further level halves both dimensions of the one above it,
+ * rounding up. These are the steps imgscalr scales down by in quality mode,
+ * so a base image resized from a level is the same as one resized from the
+ * source image up to that size. A render picks the smallest level that is at
+ * least as large as the image being rendered and resizes from there, so only
+ * the first render of a level pays for resampling the full size image. Levels
+ * are built on first use and cached like any other image, see
+ * {@link BaseImageCache}.
+ *
+ * Masks have no levels. A mask level only keeps the coverage of each pixel,
+ * and resampling that again does not give the coverage of a direct resize;
+ * the shading statistics are taken over the whole mask, so even pixels well
+ * inside a surface came out different. Masks are resized from the source size
+ * and cached per rendered size instead, see {@link SceneCache}.
+ */
+final class ScenePyramid {
+    // levels smaller than this are never built, the final resize is cheap enough below it
+    private static final int MIN_LEVEL_SIZE = 64;
+
+    private ScenePyramid() {
+    }
+
+    /**
+     * @param width width of the source image
+     * @param height height of the source image
+     * @param targetWidth width of the image being rendered
+     * @param targetHeight height of the image being rendered
+     * @return the smallest level at least as large as the target size, 0 if it is more than half the source size
+     */
+    static int level(int width, int height, int targetWidth, int targetHeight) {
+        int level = 0;
+        while (size(width, level + 1) >= Math.max(targetWidth, MIN_LEVEL_SIZE)
+                && size(height, level + 1) >= Math.max(targetHeight, MIN_LEVEL_SIZE)) {
+            level++;
+        }
+        return level;
+    }
+
+    /**
+     * @param size a dimension of the source image
+     * @param level
+     * @return the dimension at the level, halved as Scalr.Method.QUALITY does it
+     */
+    static int size(int size, int level) {
+        for (int i = 0; i < level; i++) {
+            size -= size / 2;
+        }
+        return size;
+    }
+}
@@ -0,0 +1,99 @@
+package com.sherwin.ireredux;
+
+/**
+ * The desaturated and mitigated gray levels of a masked section of the base
+ * image, i.e. everything of the colorization that does not depend on the
+ * surface color. Only the overlay blend has to run when the same surface is
+ * painted with a different color. Instances are immutable and shared between
+ * requests.
+ */
+public final class ShadingLayer {
+    private final MaskBitmap mask;
+    private final byte[] shades;
+
+    private ShadingLayer(MaskBitmap mask, byte[] shades) {
+        this.mask = mask;
+        this.shades = shades;
+    }
+
+    /**
+     * Capture the output of the mitigation process.
+     *
+     * @param mask the mask the pixels were produced with
+     * @param mitigatedPixels the gray ARGB pixels of the mask in span order, or an empty array if
+     *                        the mask covers nothing
+     * @return the shading layer
+     */
+    public static ShadingLayer of(MaskBitmap mask, int[] mitigatedPixels) {
+        if (mitigatedPixels.length == 0) {
+            return empty(mask);
+        }
+
+        // the matrix applies the same factor and offset to all three channels, so one is enough
+        byte[] shades = new byte[ mitigatedPixels.length ];
+        for (int i = 0; i < mitigatedPixels.length; i++) {
+            shades[ i ] = (byte) mitigatedPixels[ i ];
+        }
+        return new ShadingLayer(mask, shades);
+    }
+
+    /**
+     * Wrap the gray levels produced by a colorization kernel.
+     *
+     * @param mask the mask the gray levels were produced with
+     * @param shades one mitigated gray level per covered pixel, in span order
+     * @return the shading layer
+     */
+    static ShadingLayer of(MaskBitmap mask, byte[] shades) {
+        return new ShadingLayer(mask, shades);
+    }
+
+    /**
+     * @param mask the mask that covers no pixels
+     * @return a shading layer with nothing to blend
+     */
+    static ShadingLayer empty(MaskBitmap mask) {
+        return new ShadingLayer(mask, null);
+    }
+
+    /**
+     * @return true if the mask covers no pixels, in which case there is nothing to blend
+     */
+    public boolean isEmpty() {
+        return shades == null;
+    }
+
+    public int getWidth() {
+        return mask.getWidth();
+    }
+
+    public int getHeight() {
+        return mask.getHeight();
+    }
+
+    /**
+     * @return the mask whose spans the shades follow
+     */
+    public MaskBitmap getMask() {
+        return mask;
+    }
+
+    /**
+     * @param pixel index of the covered pixel, counted along the spans of the mask
+     * @return the mitigated gray level of the pixel
+     */
+    public int shade(int pixel) {
+        return shades[ pixel ] & 0xFF;
+    }
+
+    /**
+     * @return the gray levels in span order, for the blend kernels; must not be modified
+     */
+    byte[] shades() {
+        return shades;
+    }
+
+    public long sizeInBytes() {
+        return (shades != null ? shades.length : 0) + mask.sizeInBytes();
+    }
+}
@@ -0,0 +1,209 @@
+package com.sherwin.ireredux;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces concurrent loads of the same key: the first caller loads the
+ * value, and callers asking for the key while it is in progress wait for that
+ * load and get its result, or its exception, instead of loading the value
+ * again. Nothing is kept once the load is done; callers put the value in a
+ * cache and look there first. Asynchronous loads count the callers waiting
+ * for them and are abandoned once every one of them has given up, see
+ * {@link #start}.
+ *
+ * @param <K> key type
+ * @param <V> value type
+ */
+public class SingleFlight<K, V> {
+    private final String name;
+    private final ConcurrentHashMap<K, Flight<V>> inFlight = new ConcurrentHashMap<>();
+    private final LongAdder loads = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+
+    /**
+     * @param name name used for metric tags
+     */
+    public SingleFlight(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Load the value for the key, or wait for the load of the key that is
+     * already in progress.
+     *
+     * @param key
+     * @param loader loads the value; every loader of a key must throw the same exceptions
+     * @return the loaded value
+     * @throws E if the load failed, in this or in the waited for caller
+     */
+    @SuppressWarnings("unchecked")
+    public <E extends Exception> V run(K key, Loader<? extends V, E> loader) throws E {
+        Flight<V> flight = new Flight<>(null);
+        Flight<V> leader = inFlight.putIfAbsent(key, flight);
+        if (leader != null) {
+            coalesced.increment();
+            try {
+                return leader.result.join();
+            } catch (CompletionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw (E) cause;
+            }
+        }
+
+        loads.increment();
+        try {
+            V value = loader.load();
+            flight.result.complete(value);
+            return value;
+        } catch (Throwable e) {
+            flight.result.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, flight);
+        }
+    }
+
+    /**
+     * Start the asynchronous load of the key, or join the load of the key that
+     * is already in progress. Unlike {@link #run}, callers that join a load do
+     * not hold a thread while they wait. A caller that gives up cancels the
+     * future it got; the load goes on while any caller still waits for it, and
+     * is abandoned once the last one has cancelled. Callers arriving after
+     * that start a new load.
+     *
+     * @param key
+     * @param starter starts the load and returns its result
+     * @param onAbandoned stops the load this call starts, if every caller gives up on it
+     * @return the result of the load, for this caller only
+     */
+    public CompletableFuture<V> start(K key, Supplier<? extends CompletionStage<? extends V>> starter,
+                                      Runnable onAbandoned) {
+        Flight<V> flight = new Flight<>(onAbandoned);
+        CompletableFuture<V> waiter = flight.join();
+        while (true) {
+            Flight<V> leader = inFlight.putIfAbsent(key, flight);
+            if (leader == null) {
+                break;
+            }
+            CompletableFuture<V> follower = leader.join();
+            if (follower != null) {
+                coalesced.increment();
+                follower.whenComplete((value, e) -> leave(key, leader, e));
+                return follower;
+            }
+            // abandoned while we got here, it is on its way out
+            inFlight.remove(key, leader);
+        }
+
+        loads.increment();
+        waiter.whenComplete((value, e) -> leave(key, flight, e));
+        CompletionStage<? extends V> load;
+        try {
+            load = starter.get();
+        } catch (Throwable e) {
+            load = CompletableFuture.failedFuture(e);
+        }
+        load.whenComplete((value, e) -> {
+            inFlight.remove(key, flight);
+            if (e != null) {
+                flight.result.completeExceptionally(
+                        e instanceof CompletionException && e.getCause() != null ? e.getCause() : e);
+            } else {
+                flight.result.complete(value);
+            }
+        });
+        return waiter;
+    }
+
+    /*
+     * A caller's future completed; if it was cancelled the caller no longer
+     * waits for the load
+     */
+    private void leave(K key, Flight<V> flight, Throwable e) {
+        if (e instanceof CancellationException && flight.leave()) {
+            inFlight.remove(key, flight);
+            flight.onAbandoned.run();
+        }
+    }
+
+    public long loadCount() {
+        return loads.sum();
+    }
+
+    public long coalescedCount() {
+        return coalesced.sum();
+    }
+
+    /**
+     * Register load/coalesced counters and an in-flight gauge, tagged with the name.
+     */
+    public void bindTo(MeterRegistry registry) {
+        FunctionCounter.builder("ire.single-flight.calls", this, SingleFlight::loadCount)
+                .tag("flight", name).tag("result", "load").register(registry);
+        FunctionCounter.builder("ire.single-flight.calls", this, SingleFlight::coalescedCount)
+                .tag("flight", name).tag("result", "coalesced")
+                .description("calls that waited for the load already in progress").register(registry);
+        Gauge.builder("ire.single-flight.in-flight", inFlight, ConcurrentHashMap::size)
+                .tag("flight", name).register(registry);
+    }
+
+    /*
+     * A load in progress and the callers waiting for it
+     */
+    private static final class Flight<V> {
+        final CompletableFuture<V> result = new CompletableFuture<>();
+        final Runnable onAbandoned;
+        private int waiters;
+        private boolean abandoned;
+
+        Flight(Runnable onAbandoned) {
+            this.onAbandoned = onAbandoned;
+        }
+
+        /*
+         * The future of a new caller, null if the load has been abandoned
+         */
+        synchronized CompletableFuture<V> join() {
+            if (abandoned) {
+                return null;
+            }
+            waiters++;
+            return result.copy();
+        }
+
+        /*
+         * True if the caller was the last one waiting for a load still in progress
+         */
+        synchronized boolean leave() {
+            abandoned = --waiters == 0 && !result.isDone();
+            return abandoned;
+        }
+    }
+
+    /**
+     * Loads a value.
+     *
+     * @param <V> value type
+     * @param <E> the exception the load fails with
+     */
+    @FunctionalInterface
+    public interface Loader<V, E extends Exception> {
+        V load() throws E;
+    }
+}
@@ -3,6 +3,7 @@ package com.sherwin.ireredux;
 import com.fasterxml.jackson.dataformat.xml.XmlMapper;
 import lombok.extern.slf4j.Slf4j;
 
+import java.awt.Rectangle;
 import java.io.File;
 import java.io.IOException;
 import java.util.HashMap;
@@ -11,29 +12,66 @@ import java.util.Optional;
 
 @Slf4j
 public class SourceXmlFileParser {
-    protected static Map<String, String> parse(File xmlFile) throws IOException {
-        Map<String, String> surfaceMap = new HashMap<String, String>();
-
-        try {
-            // the surface map is a collection of key<surface name>:values<list of surface masks
-            XmlMapper xmlMapper = new XmlMapper();
-            long xmlTime = System.currentTimeMillis();
-            Project project = xmlMapper.readValue(xmlFile, Project.class);
-            if (log.isDebugEnabled()) {
-                log.debug( "Time to parse xml: " + (System.currentTimeMillis() - xmlTime) + " ms" );
-            }
-
-            project.getSurfaces().forEach(surface -> {
-                String surfaceName = surface.getName();
-                // There should only be one mask per surface
-                Optional<SurfaceMask> surfaceMask = surface.getSurfaceMask().stream().findFirst();
-                surfaceMask.ifPresent(mask -> surfaceMap.put(surfaceName, mask.getString()));
-            });
+    // XmlMapper is thread-safe once configured, so one instance serves every request
+    private static final XmlMapper XML_MAPPER = new XmlMapper();
 
-        } catch (IOException e) {
-            log.error("Error ");
+    /**
+     * Deserialize the scene xml into its {@link Project}.
+     */
+    protected static Project parseProject(File xmlFile) throws IOException {
+        long xmlTime = System.currentTimeMillis();
+        Project project = XML_MAPPER.readValue(xmlFile, Project.class);
+        if (log.isDebugEnabled()) {
+            log.debug( "Time to parse xml: " + (System.currentTimeMillis() - xmlTime) + " ms" );
         }
+        return project;
+    }
+
+    /**
+     * Build the surface map, a collection of key<surface name>:value<surface mask>
+     */
+    protected static Map<String, MaskData> surfaceMasks(Project project) {
+        Map<String, MaskData> surfaceMap = new HashMap<String, MaskData>();
+
+        project.getSurfaces().forEach(surface -> {
+            String surfaceName = surface.getName();
+            // There should only be one mask per surface
+            Optional<SurfaceMask> surfaceMask = surface.getSurfaceMask().stream().findFirst();
+            surfaceMask.ifPresent(mask -> surfaceMap.put(surfaceName, MaskData.of(mask.getString())));
+        });
 
         return surfaceMap;
     }
+
+    /**
+     * Build the map of surface name to the bounding box of its mask, from the
+     * minX/maxX/minY/maxY attributes. The box is inclusive on all sides. Surfaces
+     * whose attributes are missing (all zero) or inconsistent are left out, so
+     * their box has to be computed from the mask itself.
+     */
+    protected static Map<String, Rectangle> surfaceBounds(Project project) {
+        Map<String, Rectangle> boundsMap = new HashMap<String, Rectangle>();
+
+        project.getSurfaces().forEach(surface -> {
+            Rectangle bounds = surfaceBounds(surface.getMinX(), surface.getMinY(), surface.getMaxX(),
+                    surface.getMaxY());
+            if (bounds != null) {
+                boundsMap.put(surface.getName(), bounds);
+            }
+        });
+
+        return boundsMap;
+    }
+
+    /**
+     * @return the bounding box given by a surface's inclusive minX/maxX/minY/maxY
+     * attributes, or null if they are missing or inconsistent
+     */
+    static Rectangle surfaceBounds(int minX, int minY, int maxX, int maxY) {
+        boolean missing = minX == 0 && minY == 0 && maxX == 0 && maxY == 0;
+        if (missing || minX < 0 || minY < 0 || minX > maxX || minY > maxY) {
+            return null;
+        }
+        return new Rectangle(minX, minY, maxX - minX + 1, maxY - minY + 1);
+    }
 }
@@ -0,0 +1,196 @@
+package com.sherwin.ireredux;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the independent stages of a render, such as reading the base image,
+ * parsing the scene and preparing each mask, on a fixed pool of threads, so
+ * that they overlap instead of running one after the other on the render
+ * thread. Stages only wait for loads already in progress, never for queued
+ * stages, so the pool cannot deadlock; when its queue is full a stage runs on
+ * the thread that started it, and the render is no slower than before.
+ *
+ * The pool runs next to the render threads and the band pool, which are each
+ * one per core by default, so by default it only has a quarter of the cores,
+ * and at least two threads so that the base image and the scene are still
+ * read at the same time.
+ *
+ * A render starts its stages through a {@link Group}, so that none of them is
+ * still running, or allocating, once the render is done.
+ */
+@Component
+@Slf4j
+public class StageExecutor implements Executor {
+    private final ThreadPoolExecutor pool;
+    private final int parallelism;
+
+    public StageExecutor(@Value("${ire.render.stage-threads:0}") int threads,
+                         @Value("${ire.render.stage-queue-capacity:256}") int queueCapacity,
+                         MeterRegistry meterRegistry) {
+        int poolSize = threads > 0 ? threads : defaultThreads(Runtime.getRuntime().availableProcessors());
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.pool = new ThreadPoolExecutor(poolSize, poolSize, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queueCapacity)),
+                task -> new Thread(task, "render-stage-" + threadNumber.incrementAndGet()),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        this.parallelism = poolSize;
+
+        Gauge.builder("ire.render.stage.queue.size", pool, executor -> executor.getQueue().size())
+                .register(meterRegistry);
+        Gauge.builder("ire.render.stage.active", pool, ThreadPoolExecutor::getActiveCount).register(meterRegistry);
+        log.info("Render stage threads: " + poolSize + ", queue capacity: " + queueCapacity);
+    }
+
+    /**
+     * @param cores the number of cores
+     * @return the number of stage threads when none is configured
+     */
+    static int defaultThreads(int cores) {
+        return Math.max(2, cores / 4);
+    }
+
+    /**
+     * Start a stage.
+     *
+     * @param stage the stage
+     * @return the result of the stage, or the exception it threw
+     */
+    public <V> CompletableFuture<V> supply(Callable<V> stage) {
+        CompletableFuture<V> result = new CompletableFuture<>();
+        execute(() -> {
+            try {
+                result.complete(stage.call());
+            } catch (Throwable e) {
+                result.completeExceptionally(e);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * @return a new group for the stages of one render
+     */
+    public Group group() {
+        return new Group();
+    }
+
+    @Override
+    public void execute(Runnable stage) {
+        pool.execute(stage);
+    }
+
+    /**
+     * @return how many stages may run at once
+     */
+    public int parallelism() {
+        return parallelism;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    /**
+     * The stages of one render. Closing the group cancels the stages that have
+     * not started yet and waits for the ones that are running, whether the
+     * render got their results or gave up on them.
+     */
+    public final class Group implements AutoCloseable {
+        private final List<CompletableFuture<?>> results = new ArrayList<>();
+        private int running;
+        private boolean closed;
+
+        private Group() {
+        }
+
+        /**
+         * Start a stage of the render.
+         *
+         * @param stage the stage
+         * @return the result of the stage, or the exception it threw; cancelled
+         * if the group is closed before the stage started
+         */
+        public <V> CompletableFuture<V> supply(Callable<V> stage) {
+            CompletableFuture<V> result = new CompletableFuture<>();
+            synchronized (this) {
+                if (closed) {
+                    result.cancel(false);
+                    return result;
+                }
+                results.add(result);
+            }
+            execute(() -> {
+                if (!start()) {
+                    return;
+                }
+                try {
+                    result.complete(stage.call());
+                } catch (Throwable e) {
+                    result.completeExceptionally(e);
+                } finally {
+                    finish();
+                }
+            });
+            return result;
+        }
+
+        private synchronized boolean start() {
+            if (closed) {
+                return false;
+            }
+            running++;
+            return true;
+        }
+
+        private synchronized void finish() {
+            if (--running == 0) {
+                notifyAll();
+            }
+        }
+
+        /**
+         * Cancel the stages that have not started and wait for the running ones to end.
+         */
+        @Override
+        public void close() {
+            List<CompletableFuture<?>> started;
+            synchronized (this) {
+                closed = true;
+                started = new ArrayList<>(results);
+            }
+            for (CompletableFuture<?> result : started) {
+                result.cancel(false);
+            }
+
+            boolean interrupted = false;
+            synchronized (this) {
+                while (running > 0) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
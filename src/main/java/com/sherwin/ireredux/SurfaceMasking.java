@@ -24,15 +24,22 @@ package com.sherwin.ireredux;
 import static com.sherwin.ireredux.ImageRenderingConstants.SURFACE_DATA_DELIMITER;
 
 import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayOutputStream;
+import java.awt.image.DataBufferByte;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.zip.Inflater;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
-import com.sherwin.sd.conversion.Base64;
 import lombok.extern.slf4j.Slf4j;
 
 /**
@@ -44,59 +51,119 @@ import lombok.extern.slf4j.Slf4j;
 public class SurfaceMasking
 {
     /**
-     * Based on the surfaceMaskMap (a collection of surface names mapped to
-     * lists of surface masks), apply the masking to the image.
+     * Based on the scene's surface masks (a collection of surface names mapped to
+     * lists of surface masks), apply the masking to the image. The base image may
+     * already have been resized from the decoded source image the masks were
+     * drawn on. The surfaces are painted one after the other, in the order of
+     * {@link #surfaceColors}; their masks may have been prepared ahead, see
+     * {@link #prepareMasks}.
      *
      * @param baseImage
-     * @param surfaceMaskMap
-     * @param parameterMap
+     * @param luminance the desaturated base image, before any surface is painted
+     * @param sourceImage
+     * @param scene
+     * @param sceneCache
+     * @param surfaceColors the masks to paint and their colors, see {@link #surfaceColors}
+     * @param preparedMasks the masks being prepared, a mask missing here is decoded when it is painted
+     * @param engine the colorization implementation to paint with
+     * @param overlayTables the overlay tables of the surface colors
+     * @param bands splits the per-pixel loops into bands of rows, and checks the render's deadline
      * @throws Exception
      */
-    protected static void maskSurfaceData( BufferedImage baseImage,
-                                           Map<String, String> surfaceMaskMap, Map<String, String> parameterMap )
+    protected static void maskSurfaceData( BufferedImage baseImage, LuminancePlane luminance,
+                                           DecodedImage sourceImage, Scene scene, SceneCache sceneCache,
+                                           Map<UniqueSurfaceMask, String> surfaceColors,
+                                           Map<UniqueSurfaceMask, ? extends Future<MaskBitmap>> preparedMasks,
+                                           ColorizationEngine engine, OverlayTableCache overlayTables,
+                                           BandExecutor bands )
             throws Exception
     {
-        final int baseWidth = baseImage.getWidth();
-        final int baseHeight = baseImage.getHeight();
-        maskSurfaceData( baseImage, surfaceMaskMap, parameterMap, baseWidth, baseHeight );
+        long startTime = System.currentTimeMillis();
+        final int originalImageWidth = sourceImage.getWidth();
+        final int originalImageHeight = sourceImage.getHeight();
+        final int targetWidth = baseImage.getWidth();
+        final int targetHeight = baseImage.getHeight();
+
+        for( Map.Entry<UniqueSurfaceMask, String> entry : surfaceColors.entrySet() )
+        {
+            UniqueSurfaceMask usm = entry.getKey();
+
+            // stop between masks if the render ran out of time
+            bands.checkDeadline();
+
+            // create a Color object from the color number in the request
+            Color aColor = new Color( Integer.parseInt( entry.getValue() ) );
+            OverlayTable overlay = overlayTables.forColor( aColor );
+
+            /*
+             * The shading layer does not depend on the color, so it is
+             * only computed the first time the surface is rendered at
+             * this size. After that only the color has to be blended.
+             */
+            ShadingLayer shading = sceneCache.getShading( scene, sourceImage, usm, targetWidth, targetHeight );
+            if( shading == null )
+            {
+                MaskBitmap mask;
+                try
+                {
+                    Future<MaskBitmap> preparedMask = preparedMasks.get( usm );
+                    mask = preparedMask != null ? preparedMask( preparedMask )
+                            : sceneCache.getMask( scene, usm, originalImageWidth, originalImageHeight,
+                                    targetWidth, targetHeight );
+                }
+                catch( RenderAbandonedException e )
+                {
+                    throw e;
+                }
+                catch( Exception e )
+                {
+                    /*
+                     * Any exception encountered with decoding or decompressing
+                     * is most likely due to some sort of data corruption. Ignore
+                     * this masking region.
+                     */
+                    log.error( "Error encountered with masking data: " + e );
+                    continue;
+                }
+
+                // apply the masking to the base image using the appropriate color algorithm
+                shading = engine.paint( luminance, baseImage, mask, overlay, bands );
+                sceneCache.putShading( scene, sourceImage, usm, targetWidth, targetHeight, shading );
+            }
+            else
+            {
+                engine.applyColor( baseImage, shading, overlay, bands );
+            }
+        }
+
+//        if( log.isDebugEnabled() )
+//        {
+//            log.debug( "Time to mask all regions: " + (System.currentTimeMillis() - startTime)
+//                    + " ms" );
+//        }
     }
 
     /**
-     * Based on the surfaceMaskMap (a collection of surface names mapped to
-     * lists of surface masks), apply the masking to the image
+     * Match the surfaces of a request to the scene's unique surface masks.
+     * Every unique mask is painted once, with the color of the first surface
+     * of the request that uses it.
      *
-     * @param baseImage
-     * @param surfaceMaskMap
-     * @param parameterMap
-     * @param originalImageWidth
-     * @param originalImageHeight
-     * @throws Exception
+     * @param scene
+     * @param parameterMap the request parameters
+     * @return the masks to paint, in the order they are painted, and the color of each
      */
-
-    protected static void maskSurfaceData( BufferedImage baseImage,
-                                           Map<String, String> surfaceMaskMap, Map<String, String> parameterMap,
-                                           int originalImageWidth, int originalImageHeight )
-            throws Exception
+    protected static Map<UniqueSurfaceMask, String> surfaceColors( Scene scene, Map<String, String> parameterMap )
     {
-        long startTime = System.currentTimeMillis();
-
         /*
-         * Make a copy of the baseImage as we will need to keep reading
-         * back the original pixels for each mask while the baseImage actually
-         * gets modified.
-         */
-        BufferedImage origImage = new BufferedImage( baseImage.getWidth(), baseImage.getHeight(),
-                BufferedImage.TYPE_INT_ARGB );
-        origImage.getGraphics().drawImage( baseImage, 0, 0, null );
-
-        /*
-         * Build the collection of unique surface mask objects. If there
+         * The scene carries the collection of unique surface mask objects. If there
          * are duplicate masks in the xml file then these entities will
          * provide a way to perform the expensive masking process only
-         * once per mask.
+         * once per mask. The scene is shared between requests, so which masks
+         * this request has already applied is tracked here rather than on the masks.
          */
-        List<UniqueSurfaceMask> uniqueSurfaceMasks = collectUniqueSurfaceMasks( surfaceMaskMap );
-        String startSurfaceName = getSurfaceNamingConvention( uniqueSurfaceMasks );
+        List<UniqueSurfaceMask> uniqueSurfaceMasks = scene.getUniqueSurfaceMasks();
+        String startSurfaceName = scene.getSurfaceNamingConvention();
+        Map<UniqueSurfaceMask, String> usedMasks = new LinkedHashMap<UniqueSurfaceMask, String>();
 
         /*
          * Create a map of surface names and associated colors from the
@@ -114,21 +181,8 @@ public class SurfaceMasking
             //look for parameters that are surface names
             if( paramKey.startsWith( startSurfaceName ) )
             {
-                int firstIndex = paramValue.indexOf( SURFACE_DATA_DELIMITER );
-                paramValue = paramValue.substring( firstIndex + 1 );
-
-                // get the color/paint value from the surface data
-                if( paramValue.startsWith( "paint" ) )
-                {
-                    int secondIndex = paramValue.indexOf( SURFACE_DATA_DELIMITER );
-                    paramValue = paramValue.substring( secondIndex + 1 );
-
-                    int lastIndex = paramValue.indexOf( SURFACE_DATA_DELIMITER );
-                    paramValue = paramValue.substring( 0, lastIndex );
-                }
-
                 // add the surface name(key) and color(value) to the map
-                surfaceColorMap.put( paramKey, paramValue );
+                surfaceColorMap.put( paramKey, parseSurfaceColor( paramValue ) );
             }
         }
 
@@ -146,79 +200,9 @@ public class SurfaceMasking
                 if( usm.contains( surfaceName ) )
                 {
                     // check if the surface mask has be used/processed yet
-                    if( !usm.isUsed() )
+                    if( !usedMasks.containsKey( usm ) )
                     {
-                        usm.setIsUsed( true );
-
-                        byte[] maskBytes = null;
-                        try
-                        {
-                            // base64 decode
-                            maskBytes = Base64.decode( usm.getMask() );
-
-                            // zlib decompress
-                            maskBytes = zlibDecompress( maskBytes );
-                        }
-                        catch( Exception e )
-                        {
-                            /*
-                             * Any exception encountered with decoding or decompressing
-                             * is most likely due to some sort of data corruption. Ignore
-                             * this masking region.
-                             */
-                            log.error( "Error encountered with masking data: " + e );
-                            break;
-                        }
-
-                        /*
-                         *  If there is any data in any channel, it should be considered
-                         *  part of the mask.
-                         */
-
-                        /*
-                         * there are scenes where the surface mask is the not same size as the original image
-                         * in these cases, create the mask byte array based upon the original image width & height,
-                         * not the size of the decompressed surface mask from the XML file.
-                         */
-                        byte[] newBytes;
-                        if (originalImageWidth * originalImageHeight * 4 > maskBytes.length)
-                            newBytes = new byte[ (originalImageWidth * originalImageHeight * 4) + 1 ];
-                        else
-                            newBytes = new byte[ maskBytes.length + 1 ];
-
-                        int i = 0;
-                        for( byte b : maskBytes )
-                        {
-                            i++ ;
-                            if( b != 0 )
-                            {
-                                b = (byte) 255;
-                                newBytes[ i ] = b;
-                            }
-                        }
-
-                        // load byte[] pixel data into image object
-                        BufferedImage maskImage = new BufferedImage( originalImageWidth,
-                                originalImageHeight, BufferedImage.TYPE_4BYTE_ABGR );
-                        maskImage.getRaster().setDataElements( 0, 0, originalImageWidth,
-                                originalImageHeight, newBytes );
-
-                        /*
-                         * Only resize the maskImage if the dimensions of the base image do not match
-                         * the dimensions of the original image
-                         */
-                        if( baseImage.getWidth() != originalImageWidth
-                                || baseImage.getHeight() != originalImageHeight )
-                        {
-                            maskImage = ImageUtil.resizeImage( maskImage, baseImage.getWidth(),
-                                    baseImage.getHeight() );
-                        }
-
-                        // create a Color object from the color number in the request
-                        Color aColor = new Color( Integer.parseInt( surfaceColor ) );
-
-                        // apply the masking to the base image using the appropriate color algorithm
-                        ImageColorization.applyColor( origImage, baseImage, maskImage, aColor );
+                        usedMasks.put( usm, surfaceColor );
 
                         // break out of the loop of UniqueSurfaceMasks and continue looping
                         // the surfaceColorMap entries
@@ -228,34 +212,356 @@ public class SurfaceMasking
             }
         }
 
-//        if( log.isDebugEnabled() )
-//        {
-//            log.debug( "Time to mask all regions: " + (System.currentTimeMillis() - startTime)
-//                    + " ms" );
-//        }
+        return usedMasks;
+    }
+
+    /**
+     * Start decoding the masks of a render on the stage executor, so that they
+     * are decoded at the same time as each other and as the base image is
+     * resized. Masks whose shading layer is cached are left out, they are not
+     * needed to paint the surface again.
+     *
+     * @param scene
+     * @param sourceImage the decoded base image
+     * @param sceneCache
+     * @param masks the masks to paint
+     * @param targetWidth width of the image being rendered
+     * @param targetHeight height of the image being rendered
+     * @param stages the stages of the render, runs the decodes
+     * @param deadline the deadline of the render, a decode that has not started by then is skipped
+     * @return the masks being decoded
+     */
+    protected static Map<UniqueSurfaceMask, CompletableFuture<MaskBitmap>> prepareMasks( Scene scene,
+            DecodedImage sourceImage, SceneCache sceneCache, Collection<UniqueSurfaceMask> masks, int targetWidth,
+            int targetHeight, StageExecutor.Group stages, RenderDeadline deadline )
+    {
+        final int originalImageWidth = sourceImage.getWidth();
+        final int originalImageHeight = sourceImage.getHeight();
+        Map<UniqueSurfaceMask, CompletableFuture<MaskBitmap>> preparedMasks =
+                new HashMap<UniqueSurfaceMask, CompletableFuture<MaskBitmap>>();
+        for( UniqueSurfaceMask usm : masks )
+        {
+            if( sceneCache.getShading( scene, sourceImage, usm, targetWidth, targetHeight ) != null )
+            {
+                continue;
+            }
+            preparedMasks.put( usm, stages.supply( () ->
+            {
+                deadline.check();
+                return sceneCache.getMask( scene, usm, originalImageWidth, originalImageHeight, targetWidth,
+                        targetHeight );
+            } ) );
+        }
+        return preparedMasks;
+    }
+
+    /*
+     * Wait for a mask being prepared, failing with what its decode failed with
+     */
+    private static MaskBitmap preparedMask( Future<MaskBitmap> preparedMask )
+            throws Exception
+    {
+        try
+        {
+            return preparedMask.get();
+        }
+        catch( ExecutionException e )
+        {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+    }
+
+    /**
+     * Decode a surface mask: base64 decode and inflate the masking data, expand
+     * it into a mask image and resize that to the target size. Only the mask's
+     * bounding box is expanded and resized; the box comes from the scene xml or,
+     * if that is missing or does not fit the image, from a first pass over the
+     * masking data. The data is streamed, see {@link MaskInflater}, so the mask
+     * image is the only buffer the size of the mask.
+     *
+     * @param usm the unique surface mask to decode
+     * @param originalImageWidth width of the source image the mask was drawn on
+     * @param originalImageHeight height of the source image the mask was drawn on
+     * @param targetWidth width of the image being rendered
+     * @param targetHeight height of the image being rendered
+     * @return the finished mask
+     * @throws Exception if the masking data is corrupt
+     */
+    protected static MaskBitmap decodeMask( UniqueSurfaceMask usm, int originalImageWidth,
+                                            int originalImageHeight, int targetWidth, int targetHeight )
+            throws Exception
+    {
+        Rectangle bounds = maskBounds( usm, originalImageWidth, originalImageHeight );
+        if( bounds.isEmpty() )
+        {
+            return MaskBitmap.empty( targetWidth, targetHeight );
+        }
+
+        boolean resize = targetWidth != originalImageWidth || targetHeight != originalImageHeight;
+        if( resize )
+        {
+            bounds = resampledBounds( bounds, originalImageWidth, originalImageHeight, targetWidth, targetHeight );
+        }
+
+        BufferedImage maskImage = new BufferedImage( bounds.width, bounds.height,
+                BufferedImage.TYPE_4BYTE_ABGR );
+        expandMask( usm.getMask(), originalImageWidth, bounds,
+                ((DataBufferByte) maskImage.getRaster().getDataBuffer()).getData() );
+
+        /*
+         * Only resize the maskImage if the dimensions of the base image do not match
+         * the dimensions of the original image
+         */
+        if( !resize )
+        {
+            return MaskBitmap.of( maskImage, bounds.x, bounds.y, targetWidth, targetHeight );
+        }
+
+        return resizeRegion( maskImage, bounds, originalImageWidth, originalImageHeight, targetWidth,
+                targetHeight );
     }
 
     /*
-     * Use zlib decompression to inflate the surface data
+     * Keep a margin around the box so the resampling filter sees the same
+     * empty neighbourhood it would see in the full mask image at every step of
+     * the resize, and line the box up with the pixels that stay whole at every
+     * step, so the region is sampled at the same positions as the full mask
+     * image. Where no such pixels lie between the box and the edges of the
+     * image, the box grows to the whole image.
      */
-    private static byte[] zlibDecompress( byte[] maskBytes )
+    private static Rectangle resampledBounds( Rectangle bounds, int imageWidth, int imageHeight, int targetWidth,
+                                              int targetHeight )
+    {
+        Dimension size = ImageUtil.resizedSize( imageWidth, imageHeight, targetWidth, targetHeight );
+        targetWidth = size.width;
+        targetHeight = size.height;
+        int margin = 4 * (int) Math.ceil( Math.max( (double) imageWidth / targetWidth,
+                (double) imageHeight / targetHeight ) ) + 4;
+        bounds = new Rectangle( bounds );
+        bounds.grow( margin, margin );
+        return alignToGrid( bounds, imageWidth, imageHeight, targetWidth, targetHeight );
+    }
+
+    /*
+     * Resize the region of a mask image cut out at the box and capture it at
+     * the matching place of the image being rendered. The whole mask image was
+     * resized with ImageUtil.resizeImage, which fits it into the target size
+     * rather than stretching it, and captured as it came out; the region is
+     * resized to the same fitted size.
+     */
+    private static MaskBitmap resizeRegion( BufferedImage maskImage, Rectangle bounds, int imageWidth,
+                                            int imageHeight, int targetWidth, int targetHeight )
+    {
+        Dimension size = ImageUtil.resizedSize( imageWidth, imageHeight, targetWidth, targetHeight );
+        int x = (int) ((long) bounds.x * size.width / imageWidth);
+        int y = (int) ((long) bounds.y * size.height / imageHeight);
+        maskImage = ImageUtil.resizeRegion( maskImage, bounds, imageWidth, imageHeight, size.width, size.height );
+
+        return MaskBitmap.of( maskImage, x, y, targetWidth, targetHeight );
+    }
+
+    /**
+     * Expand masking data into the ABGR bytes of a mask image covering a box of
+     * the source image.
+     *
+     * If there is any data in any channel, it should be considered part of the
+     * mask. Every byte lands one byte further on in the mask image, which is
+     * what the mask images were always built with. The bytes are RGBA, written
+     * straight into the ABGR raster as they come out of the inflater; bytes
+     * outside the box are skipped. Compiled masks hold the channels that end up
+     * set, so they are copied as they are.
+     *
+     * there are scenes where the surface mask is the not same size as the original image
+     * in these cases, missing data is treated as outside the mask and extra data is ignored.
+     *
+     * @param mask the masking data
+     * @param originalImageWidth width of the source image the mask was drawn on
+     * @param box the box of source image pixels to expand, inside the image
+     * @param abgr the bytes of a TYPE_4BYTE_ABGR image the size of the box, all zero
+     * @throws Exception if the masking data is corrupt
+     */
+    static void expandMask( MaskData mask, int originalImageWidth, Rectangle box, byte[] abgr )
             throws Exception
     {
-        Inflater decompresser = new Inflater();
-        decompresser.setInput( maskBytes );
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream( maskBytes.length );
-
-        // finished() never returns true for some byte arrays, thus also check the inflater count
-        int count = -1;
-        byte[] buffer = new byte[ 2048 ];
-        while( !decompresser.finished() && count != 0)
+        if( mask.isCompiled() )
+        {
+            expandCompiledMask( mask, box, abgr );
+            return;
+        }
+
+        long rowBytes = (long) originalImageWidth * 4;
+        long boxEnd = ((long) (box.y + box.height - 1) * originalImageWidth + box.x + box.width) * 4;
+        MaskInflater.inflate( mask.open(), ( data, length, position ) ->
         {
-            count = decompresser.inflate( buffer );
-            outputStream.write( buffer, 0, count );
+            // positions in the mask image, one byte further on than in the data
+            long from = position + 1;
+            long to = Math.min( from + length, boxEnd );
+            for( int y = (int) Math.max( box.y, from / rowBytes ); y < box.y + box.height; y++ )
+            {
+                long rowStart = (y * (long) originalImageWidth + box.x) * 4;
+                if( rowStart >= to )
+                {
+                    break;
+                }
+                long start = Math.max( rowStart, from );
+                long end = Math.min( rowStart + box.width * 4L, to );
+                int i = (int) (((long) (y - box.y) * box.width * 4) + start - rowStart);
+                for( int j = (int) (start - from); j < end - from; j++, i++ )
+                {
+                    if( data[ j ] != 0 )
+                    {
+                        abgr[ i ^ 3 ] = (byte) 255;
+                    }
+                }
+            }
+            return position + 1 + length < boxEnd;
+        } );
+    }
+
+    private static void expandCompiledMask( MaskData mask, Rectangle box, byte[] abgr )
+            throws IOException
+    {
+        Rectangle region = mask.getRegion();
+        Rectangle overlap = box.intersection( region );
+        if( overlap.isEmpty() )
+        {
+            return;
+        }
+        ByteBuffer channels = mask.channels();
+        for( int y = overlap.y; y < overlap.y + overlap.height; y++ )
+        {
+            int p = (y - region.y) * region.width + overlap.x - region.x;
+            int i = ((y - box.y) * box.width + overlap.x - box.x) * 4;
+            for( int x = overlap.x; x < overlap.x + overlap.width; x++, p++, i += 4 )
+            {
+                int bits = channels.get( p >> 1 ) >> ((p & 1) * 4);
+                for( int channel = 0; channel < 4; channel++ )
+                {
+                    if( (bits & (1 << channel)) != 0 )
+                    {
+                        abgr[ (i + channel) ^ 3 ] = (byte) 255;
+                    }
+                }
+            }
+        }
+    }
+
+    /*
+     * Widen the box to the nearest source pixels that stay whole pixels at
+     * every step of the resize, see ImageUtil.regionUnit, clipped to the image
+     */
+    private static Rectangle alignToGrid( Rectangle bounds, int originalImageWidth, int originalImageHeight,
+                                          int targetWidth, int targetHeight )
+    {
+        Dimension unit = ImageUtil.regionUnit( originalImageWidth, originalImageHeight, targetWidth, targetHeight );
+        int minX = Math.max( 0, Math.floorDiv( bounds.x, unit.width ) * unit.width );
+        int minY = Math.max( 0, Math.floorDiv( bounds.y, unit.height ) * unit.height );
+        int maxX = Math.min( originalImageWidth, ceilDiv( bounds.x + bounds.width, unit.width ) * unit.width );
+        int maxY = Math.min( originalImageHeight, ceilDiv( bounds.y + bounds.height, unit.height ) * unit.height );
+        return new Rectangle( minX, minY, maxX - minX, maxY - minY );
+    }
+
+    private static int ceilDiv( int a, int b )
+    {
+        return -Math.floorDiv( -a, b );
+    }
+
+    /*
+     * The box of mask image pixels that hold any masking data. The box declared by
+     * the scene is trusted when it lies inside the image; one pixel is added on
+     * each side for the byte the channels are shifted by. Otherwise the box is
+     * found by scanning the data. Compiled masks carry the box. An empty box
+     * means the mask covers nothing.
+     */
+    static Rectangle maskBounds( UniqueSurfaceMask usm, int originalImageWidth, int originalImageHeight )
+            throws Exception
+    {
+        if( usm.getMask().isCompiled() )
+        {
+            return usm.getMask().getBounds();
+        }
+
+        Rectangle image = new Rectangle( originalImageWidth, originalImageHeight );
+        Rectangle declared = usm.getBounds();
+        if( declared != null && image.contains( declared ) )
+        {
+            declared.grow( 1, 1 );
+            return declared.intersection( image );
+        }
+
+        Rectangle bounds = dataBounds( usm.getMask(), originalImageWidth, originalImageHeight );
+        if( !bounds.isEmpty() && log.isDebugEnabled() )
+        {
+            log.debug( "Computed bounding box of mask " + usm.getId() + " from the masking data" );
+        }
+        return bounds;
+    }
+
+    /**
+     * @param mask masking data that is not compiled
+     * @param originalImageWidth width of the source image the mask was drawn on
+     * @param originalImageHeight height of the source image the mask was drawn on
+     * @return the box of mask image pixels with any data in any channel, empty if there are none
+     * @throws Exception if the masking data is corrupt
+     */
+    static Rectangle dataBounds( MaskData mask, int originalImageWidth, int originalImageHeight )
+            throws Exception
+    {
+        long pixelCount = (long) originalImageWidth * originalImageHeight;
+        int[] box = { originalImageWidth, originalImageHeight, -1, -1 };
+        MaskInflater.inflate( mask.open(), ( data, length, position ) ->
+        {
+            for( int j = 0; j < length; j++ )
+            {
+                if( data[ j ] == 0 )
+                {
+                    continue;
+                }
+                // the byte lands in the mask image one byte further on
+                long pixel = (position + j + 1) >> 2;
+                if( pixel >= pixelCount )
+                {
+                    return false;
+                }
+                int x = (int) (pixel % originalImageWidth);
+                int y = (int) (pixel / originalImageWidth);
+                box[ 0 ] = Math.min( box[ 0 ], x );
+                box[ 1 ] = Math.min( box[ 1 ], y );
+                box[ 2 ] = Math.max( box[ 2 ], x );
+                box[ 3 ] = y;
+            }
+            return true;
+        } );
+
+        if( box[ 2 ] < 0 )
+        {
+            return new Rectangle();
+        }
+        return new Rectangle( box[ 0 ], box[ 1 ], box[ 2 ] - box[ 0 ] + 1, box[ 3 ] - box[ 1 ] + 1 );
+    }
+
+    /**
+     * Pull the color/paint value out of the surface data of a request
+     * parameter, e.g. "Surface1=xyz~paint~16711680~abc" yields "16711680".
+     *
+     * @param paramValue the raw surface parameter value
+     * @return the color value
+     */
+    protected static String parseSurfaceColor( String paramValue )
+    {
+        int firstIndex = paramValue.indexOf( SURFACE_DATA_DELIMITER );
+        paramValue = paramValue.substring( firstIndex + 1 );
+
+        // get the color/paint value from the surface data
+        if( paramValue.startsWith( "paint" ) )
+        {
+            int secondIndex = paramValue.indexOf( SURFACE_DATA_DELIMITER );
+            paramValue = paramValue.substring( secondIndex + 1 );
+
+            int lastIndex = paramValue.indexOf( SURFACE_DATA_DELIMITER );
+            paramValue = paramValue.substring( 0, lastIndex );
         }
-        decompresser.end();
-        outputStream.close();
-        return outputStream.toByteArray();
+        return paramValue;
     }
 
     /*
@@ -263,28 +569,29 @@ public class SurfaceMasking
      * UniqueSurfaceMask objects
      */
     protected static List<UniqueSurfaceMask> collectUniqueSurfaceMasks(
-            Map<String, String> surfaceMaskMap )
+            Map<String, MaskData> surfaceMaskMap, Map<String, Rectangle> surfaceBounds )
+            throws IOException
     {
         long dupeTime = System.currentTimeMillis();
         List<UniqueSurfaceMask> uniqueSurfaceMasks = new ArrayList<UniqueSurfaceMask>();
         boolean hasDupes = false;
 
         // iterate over map of surface masks
-        for( Map.Entry<String, String> entry : surfaceMaskMap.entrySet() )
+        for( Map.Entry<String, MaskData> entry : surfaceMaskMap.entrySet() )
         {
             // get the map key:values
             String surfaceName = entry.getKey();
-            String mask = entry.getValue();
+            MaskData mask = entry.getValue();
 
             // check if the mask is the same as any of UniqueSurfaceMasks
             boolean usmFound = false;
             for( UniqueSurfaceMask usm : uniqueSurfaceMasks )
             {
-                if( usm.getMask().equals( mask ) )
+                if( usm.getMask().contentEquals( mask ) )
                 {
                     hasDupes = true;
                     usmFound = true;
-                    usm.addSurfaceName( surfaceName );
+                    usm.addSurfaceName( surfaceName, surfaceBounds.get( surfaceName ) );
                 }
             }
 
@@ -294,7 +601,8 @@ public class SurfaceMasking
              */
             if( !usmFound )
             {
-                uniqueSurfaceMasks.add( new UniqueSurfaceMask( mask, surfaceName ) );
+                uniqueSurfaceMasks.add( new UniqueSurfaceMask( uniqueSurfaceMasks.size(), mask, surfaceName,
+                        surfaceBounds.get( surfaceName ) ) );
             }
         }
 
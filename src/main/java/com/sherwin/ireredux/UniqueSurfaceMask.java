@@ -1,40 +1,52 @@
 package com.sherwin.ireredux;
 
+import java.awt.Rectangle;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 /**
  * Holds a collection of surface names that all have
- * the same associated masking data. The isUsed boolean is
- * set to TRUE if the masking data has already been applied
- * to the base image. The mask value is the same for all
- * the surfaces in the surfaceNames list.
+ * the same associated masking data. The mask value is the
+ * same for all the surfaces in the surfaceNames list. The id
+ * identifies the mask within its scene.
+ *
+ * Instances belong to a cached {@link Scene} and are shared
+ * between requests, so they are not modified once the scene
+ * has been built.
  */
 public class UniqueSurfaceMask
 {
-    private boolean used;
-    private List<String> surfaceNames = new ArrayList<String>();
-    private String mask;
+    private final int id;
+    private final List<String> surfaceNames = new ArrayList<String>();
+    private final MaskData mask;
+    private Rectangle bounds;
 
-    public UniqueSurfaceMask( String aMask, String surfaceName )
+    /**
+     * @param id
+     * @param aMask the encoded masking data
+     * @param surfaceName
+     * @param surfaceBounds the bounding box the scene declares for the surface, null if unknown
+     */
+    public UniqueSurfaceMask( int id, MaskData aMask, String surfaceName, Rectangle surfaceBounds )
     {
+        this.id = id;
         mask = aMask;
         surfaceNames.add( surfaceName );
+        bounds = surfaceBounds != null ? new Rectangle( surfaceBounds ) : null;
     }
 
-    public boolean isUsed()
-    {
-        return used;
-    }
-
-    public void setIsUsed( boolean isUsed )
-    {
-        this.used = isUsed;
-    }
-
-    public void addSurfaceName( String surfaceName )
+    /*
+     * Only used while the scene's masks are being grouped. The mask's bounding
+     * box is only known if every surface sharing it declares one.
+     */
+    void addSurfaceName( String surfaceName, Rectangle surfaceBounds )
     {
         surfaceNames.add( surfaceName );
+        if( bounds != null )
+        {
+            bounds = surfaceBounds != null ? bounds.union( surfaceBounds ) : null;
+        }
     }
 
     public boolean contains( String surfaceName )
@@ -42,20 +54,28 @@ public class UniqueSurfaceMask
         return surfaceNames.contains( surfaceName );
     }
 
+    public int getId()
+    {
+        return id;
+    }
+
     public List<String> getSurfaceNames()
     {
-        return surfaceNames;
+        return Collections.unmodifiableList( surfaceNames );
     }
 
-    public String getMask()
+    public MaskData getMask()
     {
         return mask;
     }
 
-    public void setMask( String mask )
+    /**
+     * @return the declared bounding box of the mask in source image pixels, or null if
+     *         it has to be computed from the masking data
+     */
+    public Rectangle getBounds()
     {
-        this.mask = mask;
+        return bounds != null ? new Rectangle( bounds ) : null;
     }
 
 }
-
@@ -0,0 +1,74 @@
+package com.sherwin.ireredux;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * SIMD implementation of the luminance kernel on the incubating Vector API,
+ * eight pixels per step. Only loaded by {@link PixelKernels#get()} when the
+ * jdk.incubator.vector module is present.
+ *
+ * The luminance is computed in fixed point. 0.299 r + 0.587 g + 0.114 b rounded
+ * half up is (299 r + 587 g + 114 b + 500) / 1000 rounded down, and the
+ * division is done as a multiply and shift that is exact over the whole range.
+ * Math.round of the double expression can go either way where the exact value
+ * ends in .5, so those few pixels are recomputed by the scalar code.
+ */
+class VectorPixelKernels extends PixelKernels
+{
+    private static final VectorSpecies<Integer> INTS = IntVector.SPECIES_256;
+    private static final VectorSpecies<Byte> BYTES = ByteVector.SPECIES_64;
+
+    // (x >>> 3) * 134218 >>> 24 == x / 1000 for 0 <= x <= 255500, the product fits in 32 unsigned bits
+    private static final int RECIPROCAL_1000 = 134218;
+
+    VectorPixelKernels()
+    {
+        // emulating 256 bit vectors on narrower hardware is slower than the scalar loops
+        if( IntVector.SPECIES_PREFERRED.vectorBitSize() < INTS.vectorBitSize() )
+        {
+            throw new UnsupportedOperationException( "no " + INTS.vectorBitSize() + " bit vector support" );
+        }
+    }
+
+    @Override
+    public void luminance( int[] pixels, int pixelOffset, byte[] shades, int shadeOffset, int length )
+    {
+        int i = 0;
+        for( int bound = INTS.loopBound( length ); i < bound; i += INTS.length() )
+        {
+            IntVector rgb = IntVector.fromArray( INTS, pixels, pixelOffset + i );
+            IntVector red = rgb.lanewise( VectorOperators.LSHR, 16 ).and( 0xFF );
+            IntVector green = rgb.lanewise( VectorOperators.LSHR, 8 ).and( 0xFF );
+            IntVector blue = rgb.and( 0xFF );
+
+            IntVector scaled = red.mul( 299 ).add( green.mul( 587 ) ).add( blue.mul( 114 ) ).add( 500 );
+            IntVector lum = scaled.lanewise( VectorOperators.LSHR, 3 ).mul( RECIPROCAL_1000 )
+                    .lanewise( VectorOperators.LSHR, 24 );
+            lum.convertShape( VectorOperators.I2B, BYTES, 0 ).reinterpretAsBytes()
+                    .intoArray( shades, shadeOffset + i );
+
+            VectorMask<Integer> ties = scaled.sub( lum.mul( 1000 ) ).compare( VectorOperators.EQ, 0 );
+            if( ties.anyTrue() )
+            {
+                for( int lane = ties.firstTrue(); lane < INTS.length(); lane++ )
+                {
+                    if( ties.laneIsSet( lane ) )
+                    {
+                        shades[ shadeOffset + i + lane ] = (byte) luminance( pixels[ pixelOffset + i + lane ] );
+                    }
+                }
+            }
+        }
+        SCALAR.luminance( pixels, pixelOffset + i, shades, shadeOffset + i, length - i );
+    }
+
+    @Override
+    public String toString()
+    {
+        return "vector " + INTS;
+    }
+}
@@ -0,0 +1,153 @@
+package com.sherwin.ireredux;
+
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+import javax.imageio.IIOException;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.Raster;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+
+/**
+ * Decodes a YCbCr JPEG without letting the reader convert it to RGB, so the
+ * Y channel can serve as the luminance of the base image as it is. The RGB
+ * pixels are converted here with the same fixed point arithmetic libjpeg
+ * uses, which gives exactly the pixels ImageIO.read would.
+ */
+final class YCbCrJpegReader {
+    private static final String JPEG_METADATA_FORMAT = "javax_imageio_jpeg_image_1.0";
+
+    // libjpeg's jdcolor.c: FIX(x) = x * 2^16 rounded, results rounded by ONE_HALF
+    private static final int SCALE_BITS = 16;
+    private static final int ONE_HALF = 1 << (SCALE_BITS - 1);
+    private static final int CR_R = 91881;
+    private static final int CB_G = -22554;
+    private static final int CR_G = -46802;
+    private static final int CB_B = 116130;
+
+    private YCbCrJpegReader() {
+    }
+
+    /**
+     * @param key identifies the version of the file
+     * @param file the image file
+     * @param bands splits the color conversion into bands of rows
+     * @return the decoded image with its Y channel as luminance, or null if the
+     * file is not a three channel YCbCr JPEG
+     * @throws IOException if the file cannot be read or decoded
+     */
+    static DecodedImage read(String key, File file, BandExecutor bands) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(file)) {
+            if (in == null) {
+                return null;
+            }
+            Iterator<ImageReader> readers = ImageIO.getImageReadersByFormatName("jpeg");
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, false);
+                if (!isYCbCr(reader.getImageMetadata(0))) {
+                    return null;
+                }
+                return convert(key, reader.readRaster(0, null), bands);
+            } catch (IIOException e) {
+                // not a JPEG after all, let the generic path deal with it
+                return null;
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /*
+     * Three components stored as YCbCr: a JFIF file, an Adobe file with the
+     * YCbCr transform, or neither with libjpeg's default component ids
+     */
+    private static boolean isYCbCr(IIOMetadata metadata) {
+        if (metadata == null || !JPEG_METADATA_FORMAT.equals(metadata.getNativeMetadataFormatName())) {
+            return false;
+        }
+        Node root = metadata.getAsTree(JPEG_METADATA_FORMAT);
+        Node jfif = find(root, "app0JFIF");
+        Node adobe = find(root, "app14Adobe");
+        Node sof = find(root, "sof");
+        if (sof == null || sof.getChildNodes().getLength() != 3) {
+            return false;
+        }
+        if (jfif != null) {
+            return true;
+        }
+        if (adobe != null) {
+            return "1".equals(attribute(adobe, "transform"));
+        }
+        for (int component = 0; component < 3; component++) {
+            Node componentSpec = sof.getChildNodes().item(component);
+            if (!String.valueOf(component + 1).equals(attribute(componentSpec, "componentId"))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static DecodedImage convert(String key, Raster raster, BandExecutor bands) {
+        int width = raster.getWidth();
+        int height = raster.getHeight();
+        ComponentSampleModel sampleModel = (ComponentSampleModel) raster.getSampleModel();
+        byte[] samples = ((DataBufferByte) raster.getDataBuffer()).getData();
+        int offset = raster.getDataBuffer().getOffset();
+        int scanlineStride = sampleModel.getScanlineStride();
+        int pixelStride = sampleModel.getPixelStride();
+        int[] bandOffsets = sampleModel.getBandOffsets();
+
+        int[] pixels = new int[ width * height ];
+        byte[] luma = new byte[ width * height ];
+        bands.forEach(height, width * height, (band, fromRow, toRow) -> {
+            for (int y = fromRow; y < toRow; y++) {
+                int index = offset + y * scanlineStride;
+                for (int x = 0, i = y * width; x < width; x++, i++, index += pixelStride) {
+                    int lum = samples[ index + bandOffsets[ 0 ] ] & 0xFF;
+                    int cb = (samples[ index + bandOffsets[ 1 ] ] & 0xFF) - 128;
+                    int cr = (samples[ index + bandOffsets[ 2 ] ] & 0xFF) - 128;
+                    int red = clamp(lum + ((CR_R * cr + ONE_HALF) >> SCALE_BITS));
+                    int green = clamp(lum + ((CB_G * cb + CR_G * cr + ONE_HALF) >> SCALE_BITS));
+                    int blue = clamp(lum + ((CB_B * cb + ONE_HALF) >> SCALE_BITS));
+                    pixels[ i ] = 0xFF000000 | red << 16 | green << 8 | blue;
+                    luma[ i ] = (byte) lum;
+                }
+            }
+        });
+        return DecodedImage.of(key, width, height, pixels, LuminancePlane.of(width, height, luma), true);
+    }
+
+    private static int clamp(int value) {
+        return value < 0 ? 0 : Math.min(value, 255);
+    }
+
+    private static Node find(Node node, String name) {
+        if (name.equals(node.getNodeName())) {
+            return node;
+        }
+        for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+            Node found = find(child, name);
+            if (found != null) {
+                return found;
+            }
+        }
+        return null;
+    }
+
+    private static String attribute(Node node, String name) {
+        NamedNodeMap attributes = node.getAttributes();
+        Node attribute = attributes != null ? attributes.getNamedItem(name) : null;
+        return attribute != null ? attribute.getNodeValue() : null;
+    }
+}
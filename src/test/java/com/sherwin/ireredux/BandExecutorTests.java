@@ -0,0 +1,45 @@
+package com.sherwin.ireredux;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BandExecutorTests {
+
+    @Test
+    void loopsRunEveryRowOnceWithinTheDeadline() {
+        BandExecutor bands = new BandExecutor(4, 64, 4).withDeadline(RenderDeadline.after(60_000, 1));
+        int[] runs = new int[ 4096 ];
+
+        bands.forEach(runs.length, runs.length * 1024, (band, from, to) -> {
+            for (int row = from; row < to; row++) {
+                runs[ row ]++;
+            }
+        });
+
+        for (int row = 0; row < runs.length; row++) {
+            assertEquals(1, runs[ row ], "row " + row);
+        }
+        bands.shutdown();
+    }
+
+    @Test
+    void loopsStopOnceTheRenderIsAbandoned() {
+        RenderDeadline deadline = RenderDeadline.after(0, 1);
+        BandExecutor bands = BandExecutor.SEQUENTIAL.withDeadline(deadline);
+        AtomicInteger rows = new AtomicInteger();
+
+        RenderAbandonedException e = assertThrows(RenderAbandonedException.class,
+                () -> bands.forEach(4096, 4096 * 1024, (band, from, to) -> {
+                    if (rows.addAndGet(to - from) >= 1024) {
+                        deadline.abandon(RenderDeadline.DISCONNECT);
+                    }
+                }));
+
+        assertEquals(RenderDeadline.DISCONNECT, e.getReason());
+        assertEquals(1024, rows.get());
+        assertThrows(RenderAbandonedException.class, bands::checkDeadline);
+    }
+}
@@ -0,0 +1,82 @@
+package com.sherwin.ireredux;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BaseImageCacheTests {
+    private static final int WIDTH = 120;
+    private static final int HEIGHT = 80;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void decodesEachVersionOfAFileOnce() throws Exception {
+        File sourceFile = writeImage(Color.ORANGE);
+        BaseImageCache cache = newCache();
+
+        DecodedImage image = cache.read(sourceFile);
+
+        assertEquals(WIDTH, image.getWidth());
+        assertEquals(HEIGHT, image.getHeight());
+        assertEquals(Color.ORANGE.getRGB(), image.toBufferedImage().getRGB(WIDTH / 2, HEIGHT / 2));
+        assertSame(image, cache.read(sourceFile));
+        assertNotNull(cache.cachedSize(sourceFile));
+    }
+
+    @Test
+    void decodesAChangedFileAgain() throws Exception {
+        File sourceFile = writeImage(Color.ORANGE);
+        BaseImageCache cache = newCache();
+        DecodedImage image = cache.read(sourceFile);
+
+        writeImage(Color.BLUE);
+        assertTrue(sourceFile.setLastModified(sourceFile.lastModified() + 10_000));
+
+        assertNull(cache.cachedSize(sourceFile));
+        DecodedImage changed = cache.read(sourceFile);
+        assertNotSame(image, changed);
+        assertEquals(Color.BLUE.getRGB(), changed.toBufferedImage().getRGB(WIDTH / 2, HEIGHT / 2));
+    }
+
+    @Test
+    void copiesDoNotShareTheCachedPixels() throws Exception {
+        File sourceFile = writeImage(Color.ORANGE);
+        BaseImageCache cache = newCache();
+
+        BufferedImage copy = cache.read(sourceFile).toBufferedImage();
+        copy.setRGB(WIDTH / 2, HEIGHT / 2, Color.BLACK.getRGB());
+
+        assertEquals(Color.ORANGE.getRGB(), cache.read(sourceFile).toBufferedImage().getRGB(WIDTH / 2, HEIGHT / 2));
+    }
+
+    private static BaseImageCache newCache() {
+        return new BaseImageCache(1 << 20, 16, 1 << 20, 16, false, false, false, new SimpleMeterRegistry(),
+                BandExecutor.SEQUENTIAL, new OffHeapStore(0));
+    }
+
+    /*
+     * A lossless image of a single color, so the decoded pixels are known exactly
+     */
+    private File writeImage(Color color) throws IOException {
+        BufferedImage image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        g.setColor(color);
+        g.fillRect(0, 0, WIDTH, HEIGHT);
+        g.dispose();
+        File file = directory.resolve("room.png").toFile();
+        ImageIO.write(image, "png", file);
+        return file;
+    }
+}
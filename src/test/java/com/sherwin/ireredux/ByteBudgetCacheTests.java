@@ -0,0 +1,43 @@
+package com.sherwin.ireredux;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ByteBudgetCacheTests {
+
+    @Test
+    void staysWithinBudget() {
+        ByteBudgetCache<String, byte[]> cache = new ByteBudgetCache<>("test", 100, 16, v -> v.length);
+        cache.put("a", new byte[ 60 ]);
+        cache.get("b");
+        cache.get("b");
+        cache.put("b", new byte[ 60 ]);
+
+        assertTrue(cache.weight() <= 100);
+        assertNull(cache.get("a"));
+        assertNotNull(cache.get("b"));
+        assertEquals(1, cache.evictionCount());
+    }
+
+    @Test
+    void oneOffKeysDoNotDisplacePopularOnes() {
+        ByteBudgetCache<String, byte[]> cache = new ByteBudgetCache<>("test", 100, 16, v -> v.length);
+        cache.put("popular", new byte[ 80 ]);
+        for (int i = 0; i < 5; i++) {
+            assertNotNull(cache.get("popular"));
+        }
+
+        cache.get("one-off");
+        assertFalse(cache.put("one-off", new byte[ 80 ]));
+        assertNotNull(cache.get("popular"));
+        assertEquals(1, cache.rejectionCount());
+    }
+
+    @Test
+    void rejectsValuesLargerThanBudget() {
+        ByteBudgetCache<String, byte[]> cache = new ByteBudgetCache<>("test", 100, 16, v -> v.length);
+        assertFalse(cache.put("huge", new byte[ 101 ]));
+        assertEquals(0, cache.size());
+    }
+}
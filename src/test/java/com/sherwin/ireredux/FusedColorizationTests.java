@@ -0,0 +1,83 @@
+package com.sherwin.ireredux;
+
+import org.junit.jupiter.api.Test;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FusedColorizationTests {
+    private static final int WIDTH = 97;
+    private static final int HEIGHT = 61;
+
+    @Test
+    void paintMatchesLegacy() throws Exception {
+        BandExecutor parallel = new BandExecutor(4, 64, 4);
+        try {
+            Random random = new Random(7);
+            for (int round = 0; round < 20; round++) {
+                BufferedImage baseImage = randomImage(random);
+                LuminancePlane luminance = LuminancePlane.of(baseImage, BandExecutor.SEQUENTIAL);
+                MaskBitmap mask = randomMask(random, round % 5 == 0 ? 0 : 0.3 + random.nextDouble() * 0.7);
+                OverlayTable color = OverlayTable.of(random.nextInt(0x1000000));
+                OverlayTable other = OverlayTable.of(random.nextInt(0x1000000));
+
+                BufferedImage legacyImage = rgbCopy(baseImage);
+                ShadingLayer legacyShading = ColorizationEngine.LEGACY.paint(luminance, legacyImage, mask, color,
+                        BandExecutor.SEQUENTIAL);
+                BufferedImage legacyRepaint = rgbCopy(legacyImage);
+                ColorizationEngine.LEGACY.applyColor(legacyRepaint, legacyShading, other, BandExecutor.SEQUENTIAL);
+
+                for (ColorizationEngine engine : new ColorizationEngine[] { ColorizationEngine.LEGACY,
+                        ColorizationEngine.FUSED }) {
+                    for (BandExecutor bands : new BandExecutor[] { BandExecutor.SEQUENTIAL, parallel }) {
+                        BufferedImage image = rgbCopy(baseImage);
+                        ShadingLayer shading = engine.paint(luminance, image, mask, color, bands);
+                        assertPixelsEqual(legacyImage, image);
+                        assertEquals(legacyShading.isEmpty(), shading.isEmpty());
+
+                        // a cached shading layer gives the same result for another color
+                        engine.applyColor(image, shading, other, bands);
+                        assertPixelsEqual(legacyRepaint, image);
+                    }
+                }
+            }
+        } finally {
+            parallel.shutdown();
+        }
+    }
+
+    private static BufferedImage randomImage(Random random) {
+        BufferedImage image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                image.setRGB(x, y, random.nextInt(0x1000000));
+            }
+        }
+        return image;
+    }
+
+    private static MaskBitmap randomMask(Random random, double density) throws InterruptedException {
+        BufferedImage maskImage = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_ARGB);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                if (random.nextDouble() < density) {
+                    maskImage.setRGB(x, y, 0xFF000000 | (random.nextInt(255) + 1) << 8);
+                }
+            }
+        }
+        return MaskBitmap.of(maskImage, WIDTH, HEIGHT);
+    }
+
+    private static BufferedImage rgbCopy(BufferedImage image) {
+        BufferedImage copy = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+        copy.getGraphics().drawImage(image, 0, 0, null);
+        return copy;
+    }
+
+    private static void assertPixelsEqual(BufferedImage expected, BufferedImage actual) {
+        assertArrayEquals(expected.getRGB(0, 0, WIDTH, HEIGHT, null, 0, WIDTH),
+                actual.getRGB(0, 0, WIDTH, HEIGHT, null, 0, WIDTH));
+    }
+}
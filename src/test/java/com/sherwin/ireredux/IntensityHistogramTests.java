@@ -0,0 +1,44 @@
+package com.sherwin.ireredux;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class IntensityHistogramTests {
+
+    @Test
+    void matchesSortedStatistics() {
+        Random random = new Random(11);
+        for (int round = 0; round < 200; round++) {
+            int size = 1 + random.nextInt(round % 2 == 0 ? 8 : 5000);
+            int low = random.nextInt(256);
+            int spread = 1 + random.nextInt(256 - low);
+            List<Integer> values = new ArrayList<>();
+            IntensityHistogram histogram = new IntensityHistogram();
+            for (int i = 0; i < size; i++) {
+                int value = low + random.nextInt(spread);
+                values.add(value);
+                histogram.add(value);
+            }
+            Collections.sort(values);
+
+            assertEquals(values.size(), histogram.count());
+            assertEquals(values.get(0), histogram.min());
+            assertEquals(values.get(values.size() - 1), histogram.max());
+            assertEquals(ImageColorization.median(values), histogram.median());
+        }
+    }
+
+    @Test
+    void evenCountAveragesMiddleValues() {
+        IntensityHistogram histogram = new IntensityHistogram();
+        histogram.add(10);
+        histogram.add(13);
+        assertEquals(11, histogram.median());
+    }
+}
@@ -0,0 +1,42 @@
+package com.sherwin.ireredux;
+
+import org.junit.jupiter.api.Test;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LuminancePlaneTests {
+
+    @Test
+    void desaturatesEveryPixel() {
+        BandExecutor parallel = new BandExecutor(4, 64, 4);
+        try {
+            Random random = new Random(13);
+            BufferedImage image = new BufferedImage(67, 45, BufferedImage.TYPE_INT_RGB);
+            for (int y = 0; y < image.getHeight(); y++) {
+                for (int x = 0; x < image.getWidth(); x++) {
+                    image.setRGB(x, y, random.nextInt());
+                }
+            }
+
+            for (BufferedImage view : new BufferedImage[] { image, image.getSubimage(5, 3, 40, 30) }) {
+                for (BandExecutor bands : new BandExecutor[] { BandExecutor.SEQUENTIAL, parallel }) {
+                    LuminancePlane luminance = LuminancePlane.of(view, bands);
+                    assertEquals(view.getWidth() * view.getHeight(), luminance.sizeInBytes());
+                    for (int y = 0; y < view.getHeight(); y++) {
+                        for (int x = 0; x < view.getWidth(); x++) {
+                            int rgb = view.getRGB(x, y);
+                            int expected = (int) Math.round(0.299 * ((rgb >> 16) & 0xFF)
+                                    + 0.587 * ((rgb >> 8) & 0xFF) + 0.114 * (rgb & 0xFF));
+                            assertEquals(expected, luminance.get(x, y));
+                        }
+                    }
+                }
+            }
+        } finally {
+            parallel.shutdown();
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.sherwin.ireredux;
+
+import org.junit.jupiter.api.Test;
+
+import java.awt.image.BufferedImage;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MaskBitmapTests {
+
+    @Test
+    void spansFollowRunsOfEqualCoverage() throws InterruptedException {
+        BufferedImage maskImage = new BufferedImage(8, 3, BufferedImage.TYPE_INT_ARGB);
+        for (int x = 1; x < 4; x++) {
+            maskImage.setRGB(x, 0, 0xFF00FF00);
+        }
+        maskImage.setRGB(4, 0, 0xFF008000);
+        maskImage.setRGB(7, 0, 0xFF00FF00);
+        maskImage.setRGB(0, 2, 0xFF00FF00);
+
+        MaskBitmap mask = MaskBitmap.of(maskImage, 8, 3);
+
+        assertEquals(6, mask.pixelCount());
+        assertEquals(4, mask.spanCount());
+        assertSpan(mask, 0, 0, 1, 3, 0xFF);
+        assertSpan(mask, 1, 0, 4, 1, 0x80);
+        assertSpan(mask, 2, 0, 7, 1, 0xFF);
+        assertSpan(mask, 3, 2, 0, 1, 0xFF);
+    }
+
+    @Test
+    void ignoresMaskPixelsOutsideTheImage() throws InterruptedException {
+        BufferedImage maskImage = new BufferedImage(6, 6, BufferedImage.TYPE_INT_ARGB);
+        for (int y = 0; y < 6; y++) {
+            for (int x = 0; x < 6; x++) {
+                maskImage.setRGB(x, y, 0xFF00FF00);
+            }
+        }
+
+        MaskBitmap mask = MaskBitmap.of(maskImage, 4, 2);
+
+        assertEquals(8, mask.pixelCount());
+        assertEquals(2, mask.spanCount());
+        assertSpan(mask, 1, 1, 0, 4, 0xFF);
+    }
+
+    @Test
+    void emptyMaskHasNoSpans() throws InterruptedException {
+        MaskBitmap mask = MaskBitmap.of(new BufferedImage(5, 5, BufferedImage.TYPE_INT_ARGB), 5, 5);
+
+        assertTrue(mask.isEmpty());
+        assertEquals(0, mask.sizeInBytes());
+    }
+
+    private static void assertSpan(MaskBitmap mask, int span, int row, int start, int length, int coverage) {
+        assertEquals(row, mask.spanRow(span));
+        assertEquals(start, mask.spanStart(span));
+        assertEquals(length, mask.spanLength(span));
+        assertEquals(coverage, mask.spanCoverage(span));
+    }
+}
@@ -0,0 +1,52 @@
+package com.sherwin.ireredux;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Base64;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MaskInflaterTests {
+
+    @Test
+    void inflatesInOrderAcrossChunksAndLineBreaks() throws Exception {
+        byte[] data = new byte[ 200_000 ];
+        new Random(16).nextBytes(data);
+        String encoded = Base64.getMimeEncoder().encodeToString(deflate(data));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        MaskInflater.inflate(MaskInflater.ascii(encoded), (chunk, length, position) -> {
+            assertEquals(out.size(), position);
+            out.write(chunk, 0, length);
+            return true;
+        });
+
+        assertArrayEquals(data, out.toByteArray());
+    }
+
+    @Test
+    void stopsWhenTheSinkHasEnough() throws Exception {
+        String encoded = Base64.getEncoder().encodeToString(deflate(new byte[ 1 << 20 ]));
+        int[] calls = { 0 };
+
+        MaskInflater.inflate(MaskInflater.ascii(encoded), (chunk, length, position) -> ++calls[ 0 ] < 2);
+
+        assertEquals(2, calls[ 0 ]);
+    }
+
+    private static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater();
+        deflater.setInput(data);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[ 4096 ];
+        while (!deflater.finished()) {
+            out.write(buffer, 0, deflater.deflate(buffer));
+        }
+        deflater.end();
+        return out.toByteArray();
+    }
+}
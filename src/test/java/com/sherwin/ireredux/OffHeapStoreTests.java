@@ -0,0 +1,70 @@
+package com.sherwin.ireredux;
+
+import org.junit.jupiter.api.Test;
+
+import java.awt.image.BufferedImage;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OffHeapStoreTests {
+
+    @Test
+    void staysWithinCapacity() {
+        OffHeapStore store = new OffHeapStore(100);
+
+        assertNotNull(store.allocate(60));
+        assertNull(store.allocate(60));
+        assertNotNull(store.allocate(40));
+        assertEquals(100, store.reserved());
+    }
+
+    @Test
+    void disabledStoreKeepsValuesOnTheHeap() {
+        MaskBitmap mask = MaskBitmap.of(maskImage(), 8, 3);
+
+        assertNull(OffHeapStore.NONE.allocate(1));
+        assertSame(mask, mask.toOffHeap(OffHeapStore.NONE));
+    }
+
+    @Test
+    void valuesReadTheSameOffTheHeap() {
+        OffHeapStore store = new OffHeapStore(1 << 20);
+        BufferedImage image = new BufferedImage(8, 3, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < 3; y++) {
+            for (int x = 0; x < 8; x++) {
+                image.setRGB(x, y, x * 0x1F0B03 + y * 0x050D29);
+            }
+        }
+        DecodedImage decoded = DecodedImage.of("test", image);
+        LuminancePlane luminance = LuminancePlane.of(image, BandExecutor.SEQUENTIAL);
+        MaskBitmap mask = MaskBitmap.of(maskImage(), 8, 3);
+
+        DecodedImage storedImage = decoded.toOffHeap(store);
+        LuminancePlane storedLuminance = luminance.toOffHeap(store);
+        MaskBitmap storedMask = mask.toOffHeap(store);
+
+        assertTrue(storedImage.isOffHeap());
+        assertTrue(storedLuminance.isOffHeap());
+        assertTrue(storedMask.isOffHeap());
+        assertArrayEquals(PixelBuffer.of(decoded.toBufferedImage()).rgbArray(),
+                PixelBuffer.of(storedImage.toBufferedImage()).rgbArray());
+        assertArrayEquals(luminance.toArray(), storedLuminance.toArray());
+        assertEquals(mask.spanCount(), storedMask.spanCount());
+        for (int span = 0; span < mask.spanCount(); span++) {
+            assertEquals(mask.spanRow(span), storedMask.spanRow(span));
+            assertEquals(mask.spanStart(span), storedMask.spanStart(span));
+            assertEquals(mask.spanLength(span), storedMask.spanLength(span));
+            assertEquals(mask.spanCoverage(span), storedMask.spanCoverage(span));
+        }
+        assertEquals(decoded.sizeInBytes() + luminance.sizeInBytes() + mask.sizeInBytes(), store.reserved());
+    }
+
+    private static BufferedImage maskImage() {
+        BufferedImage maskImage = new BufferedImage(8, 3, BufferedImage.TYPE_INT_ARGB);
+        for (int x = 1; x < 6; x++) {
+            maskImage.setRGB(x, 0, 0xFF00FF00);
+            maskImage.setRGB(x + 2, 2, 0xFF008000);
+        }
+        return maskImage;
+    }
+}
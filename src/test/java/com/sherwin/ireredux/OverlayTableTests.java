@@ -0,0 +1,44 @@
+package com.sherwin.ireredux;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.awt.Color;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OverlayTableTests {
+
+    @Test
+    void matchesOverlayBlendForEveryGray() {
+        Random random = new Random(3);
+        for (int round = 0; round < 100; round++) {
+            int color = random.nextInt();
+            OverlayTable table = OverlayTable.of(color);
+            assertEquals(color & 0xFFFFFF, table.getColor());
+            for (int gray = 0; gray < 256; gray++) {
+                int expected = overlay(gray, (color >> 16) & 0xFF) << 16 | overlay(gray, (color >> 8) & 0xFF) << 8
+                        | overlay(gray, color & 0xFF);
+                assertEquals(expected, table.blend(gray));
+            }
+        }
+    }
+
+    @Test
+    void cachesTablesByColor() {
+        OverlayTableCache cache = new OverlayTableCache(1 << 20, 16, new SimpleMeterRegistry());
+
+        OverlayTable table = cache.forColor(new Color(0x3C8AD2));
+
+        assertSame(table, cache.forColor(new Color(0x3C8AD2)));
+        assertNotSame(table, cache.forColor(new Color(0x3C8AD3)));
+    }
+
+    /*
+     * The overlay calculation of the original blendOverlay
+     */
+    private static int overlay(int dst, int src) {
+        return dst < 128 ? dst * src >> 7 : 255 - ((255 - dst) * (255 - src) >> 7);
+    }
+}
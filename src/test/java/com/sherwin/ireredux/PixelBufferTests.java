@@ -0,0 +1,69 @@
+package com.sherwin.ireredux;
+
+import org.junit.jupiter.api.Test;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PixelBufferTests {
+    private static final int[] TYPES = { BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_ARGB,
+            BufferedImage.TYPE_3BYTE_BGR, BufferedImage.TYPE_4BYTE_ABGR };
+
+    @Test
+    void readsTheSameAsTheColorModel() {
+        Random random = new Random(5);
+        for (int type : TYPES) {
+            BufferedImage image = randomImage(type, random);
+            for (BufferedImage view : new BufferedImage[] { image, image.getSubimage(3, 2, 11, 7) }) {
+                Rectangle all = new Rectangle(view.getWidth(), view.getHeight());
+                int[] expected = view.getRGB(0, 0, all.width, all.height, null, 0, all.width);
+
+                assertArrayEquals(expected, PixelBuffer.of(view).getRGB(all), "type " + type);
+                assertEquals(expected[ all.width + 1 ], PixelBuffer.of(view).getRGB(1, 1));
+            }
+        }
+    }
+
+    @Test
+    void writesTheSameAsTheColorModel() {
+        Random random = new Random(9);
+        for (int type : TYPES) {
+            BufferedImage expected = randomImage(type, random).getSubimage(1, 1, 12, 8);
+            BufferedImage actual = randomImage(type, new Random(0)).getSubimage(1, 1, 12, 8);
+            PixelBuffer buffer = PixelBuffer.of(actual);
+            for (int y = 0; y < 8; y++) {
+                for (int x = 0; x < 12; x++) {
+                    int argb = random.nextInt();
+                    expected.setRGB(x, y, argb);
+                    buffer.setRGB(x, y, argb);
+                }
+            }
+
+            assertArrayEquals(expected.getRGB(0, 0, 12, 8, null, 0, 12), actual.getRGB(0, 0, 12, 8, null, 0, 12),
+                    "type " + type);
+        }
+    }
+
+    @Test
+    void onlyPlainRgbImagesExposeTheirArray() {
+        BufferedImage image = new BufferedImage(8, 4, BufferedImage.TYPE_INT_RGB);
+
+        assertNotNull(PixelBuffer.of(image).rgbArray());
+        assertNull(PixelBuffer.of(image.getSubimage(1, 0, 4, 4)).rgbArray());
+        assertNull(PixelBuffer.of(new BufferedImage(8, 4, BufferedImage.TYPE_INT_ARGB)).rgbArray());
+        assertFalse(PixelBuffer.supports(new BufferedImage(8, 4, BufferedImage.TYPE_BYTE_GRAY)));
+    }
+
+    private static BufferedImage randomImage(int type, Random random) {
+        BufferedImage image = new BufferedImage(17, 13, type);
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                image.setRGB(x, y, random.nextInt());
+            }
+        }
+        return image;
+    }
+}
@@ -0,0 +1,53 @@
+package com.sherwin.ireredux;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+class PixelKernelsTests {
+    private PixelKernels kernels;
+
+    @BeforeEach
+    void selectKernels() {
+        kernels = PixelKernels.get();
+        assumeTrue(kernels != PixelKernels.SCALAR, "jdk.incubator.vector is not available");
+    }
+
+    @Test
+    void luminanceMatchesScalarForEveryColor() {
+        int[] pixels = new int[ 1 << 16 ];
+        byte[] expected = new byte[ pixels.length ];
+        byte[] actual = new byte[ pixels.length ];
+        for (int red = 0; red < 256; red++) {
+            for (int i = 0; i < pixels.length; i++) {
+                pixels[ i ] = 0xFF000000 | (red << 16) | i;
+            }
+            PixelKernels.SCALAR.luminance(pixels, 0, expected, 0, pixels.length);
+            kernels.luminance(pixels, 0, actual, 0, pixels.length);
+            assertArrayEquals(expected, actual, "red " + red);
+        }
+    }
+
+    @Test
+    void luminanceHandlesUnalignedRunsAndTails() {
+        Random random = new Random(11);
+        int[] pixels = new int[ 100 ];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[ i ] = random.nextInt();
+        }
+
+        for (int offset = 0; offset < 9; offset++) {
+            for (int length = 0; length < 40; length++) {
+                byte[] expectedShades = new byte[ 60 ];
+                byte[] actualShades = new byte[ 60 ];
+                PixelKernels.SCALAR.luminance(pixels, offset, expectedShades, 3, length);
+                kernels.luminance(pixels, offset, actualShades, 3, length);
+                assertArrayEquals(expectedShades, actualShades);
+            }
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package com.sherwin.ireredux;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RenderExecutorTests {
+
+    @Test
+    void rejectsRendersWhenTheQueueIsFull() throws Exception {
+        RenderExecutor executor = new RenderExecutor(1, 1, 60_000, 3, 0, new SimpleMeterRegistry());
+        CountDownLatch release = new CountDownLatch(1);
+        try {
+            CompletableFuture<String> running = executor.submit(() -> {
+                release.await();
+                return "first";
+            });
+            CompletableFuture<String> queued = executor.submit(() -> "second");
+            CompletableFuture<String> rejected = executor.submit(() -> "third");
+
+            RenderRejectedException e = assertRejected(rejected);
+            assertEquals(HttpStatus.TOO_MANY_REQUESTS, e.getStatus());
+            assertEquals(3, e.getRetryAfterSeconds());
+
+            release.countDown();
+            assertEquals("first", running.get(5, TimeUnit.SECONDS));
+            assertEquals("second", queued.get(5, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void dropsRendersThatWaitedTooLong() throws Exception {
+        RenderExecutor executor = new RenderExecutor(1, 4, 50, 1, 0, new SimpleMeterRegistry());
+        CountDownLatch running = new CountDownLatch(1);
+        try {
+            executor.submit(() -> {
+                running.countDown();
+                Thread.sleep(200);
+                return "slow";
+            });
+            assertTrue(running.await(5, TimeUnit.SECONDS));
+            CompletableFuture<String> waited = executor.submit(() -> "late");
+
+            assertEquals(HttpStatus.SERVICE_UNAVAILABLE, assertRejected(waited).getStatus());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void countsAbandonedRenders() throws Exception {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        RenderExecutor executor = new RenderExecutor(1, 4, 60_000, 1, 0, registry);
+        try {
+            RenderDeadline deadline = executor.deadline(0);
+            deadline.abandon(RenderDeadline.DISCONNECT);
+            CompletableFuture<String> abandoned = executor.submit(() -> "unread", deadline);
+
+            RenderRejectedException e = assertRejected(abandoned);
+            assertInstanceOf(RenderAbandonedException.class, e);
+            assertEquals(HttpStatus.SERVICE_UNAVAILABLE, e.getStatus());
+            assertEquals(1, registry.get("ire.render.abandoned").tag("reason", RenderDeadline.DISCONNECT)
+                    .counter().count());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void requestsMayOnlyShortenTheTimeout() {
+        RenderExecutor executor = new RenderExecutor(1, 4, 60_000, 1, 60_000, new SimpleMeterRegistry());
+        try {
+            assertTrue(executor.deadline(0).remainingMillis() > 1_000);
+            assertTrue(executor.deadline(120_000).remainingMillis() <= 60_000);
+            assertTrue(executor.deadline(100).remainingMillis() <= 100);
+        } finally {
+            executor.shutdown();
+        }
+
+        RenderExecutor unbounded = new RenderExecutor(1, 4, 60_000, 1, 0, new SimpleMeterRegistry());
+        try {
+            assertEquals(-1, unbounded.deadline(0).remainingMillis());
+            assertTrue(unbounded.deadline(100).remainingMillis() <= 100);
+        } finally {
+            unbounded.shutdown();
+        }
+    }
+
+    private static RenderRejectedException assertRejected(CompletableFuture<String> render) {
+        ExecutionException e = assertThrows(ExecutionException.class, () -> render.get(5, TimeUnit.SECONDS));
+        return assertInstanceOf(RenderRejectedException.class, e.getCause());
+    }
+}
@@ -0,0 +1,82 @@
+package com.sherwin.ireredux;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+
+import java.awt.Dimension;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RenderMemoryBudgetTests {
+    private static final Dimension SCENE = new Dimension(6000, 4000);
+
+    @Test
+    void estimateGrowsWithSizeAndSurfaces() {
+        Map<String, String> oneSurface = Map.of("i", "/scenes/room", "Surface1", "a~paint~255~x");
+        Map<String, String> twoSurfaces = Map.of("i", "/scenes/room", "Surface1", "a~paint~255~x",
+                "Surface2", "b~paint~255~x");
+
+        long thumbnail = RenderMemoryBudget.estimate(SCENE, false, 300, 0, oneSurface, 1);
+        long full = RenderMemoryBudget.estimate(SCENE, false, 0, 0, oneSurface, 1);
+
+        assertTrue(thumbnail < full);
+        // even a thumbnail decodes its masks at the size of the scene
+        assertTrue(thumbnail >= 6000L * 4000 * 4);
+        assertTrue(RenderMemoryBudget.estimate(SCENE, false, 0, 0, twoSurfaces, 1) > full);
+        // masks decoded at the same time are held at the same time
+        assertTrue(RenderMemoryBudget.estimate(SCENE, true, 300, 0, twoSurfaces, 4)
+                > RenderMemoryBudget.estimate(SCENE, true, 300, 0, twoSurfaces, 1) + 6000L * 4000 * 4);
+        Map<String, String> noSurfaces = Map.of("i", "/scenes/room");
+        assertTrue(RenderMemoryBudget.estimate(SCENE, true, 0, 0, noSurfaces, 1)
+                > RenderMemoryBudget.estimate(SCENE, false, 0, 0, noSurfaces, 1));
+    }
+
+    @Test
+    void rendersWaitForMemoryAndAreRejectedWhenItDoesNotFreeUp() throws Exception {
+        RenderMemoryBudget budget = new RenderMemoryBudget(1 << 20, 50, 2, new SimpleMeterRegistry());
+
+        RenderMemoryBudget.Reservation first = budget.reserve(600 << 10).getNow(null);
+        assertNotNull(first);
+        assertEquals(600 << 10, budget.reservedBytes());
+        CompletableFuture<RenderMemoryBudget.Reservation> rejected = budget.reserve(600 << 10);
+        assertFalse(rejected.isDone());
+        ExecutionException e = assertThrows(ExecutionException.class, () -> rejected.get(5, TimeUnit.SECONDS));
+        RenderRejectedException rejection = assertInstanceOf(RenderRejectedException.class, e.getCause());
+        assertEquals(HttpStatus.SERVICE_UNAVAILABLE, rejection.getStatus());
+        assertEquals(2, rejection.getRetryAfterSeconds());
+        first.close();
+
+        assertEquals(0, budget.reservedBytes());
+        RenderMemoryBudget.Reservation huge = budget.reserve(10 << 20).getNow(null);
+        // more than the whole budget runs on its own
+        assertEquals(budget.budgetBytes(), budget.reservedBytes());
+        huge.close();
+        assertEquals(0, budget.reservedBytes());
+    }
+
+    @Test
+    void memoryGoesToWaitingRendersInArrivalOrder() throws Exception {
+        RenderMemoryBudget budget = new RenderMemoryBudget(1 << 20, 5000, 1, new SimpleMeterRegistry());
+
+        RenderMemoryBudget.Reservation first = budget.reserve(800 << 10).getNow(null);
+        CompletableFuture<RenderMemoryBudget.Reservation> large = budget.reserve(600 << 10);
+        // it would fit, but a render that asked earlier is still waiting
+        CompletableFuture<RenderMemoryBudget.Reservation> small = budget.reserve(100 << 10);
+        assertFalse(large.isDone());
+        assertFalse(small.isDone());
+
+        first.close();
+        // closing twice gives nothing back twice
+        first.close();
+
+        assertEquals(700 << 10, budget.reservedBytes());
+        large.getNow(null).close();
+        small.getNow(null).close();
+        assertEquals(0, budget.reservedBytes());
+    }
+}
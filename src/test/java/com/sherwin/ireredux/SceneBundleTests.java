@@ -0,0 +1,166 @@
+package com.sherwin.ireredux;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.zip.Deflater;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SceneBundleTests {
+    private static final int WIDTH = 240;
+    private static final int HEIGHT = 160;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void bundleRendersLikeTheSceneItWasCompiledFrom() throws Exception {
+        File base = writeScene();
+        File sourceFile = new File(base + ".jpg");
+        File xmlFile = new File(base + ".xml");
+
+        SceneBundleCompiler.compile(base);
+        SceneBundle bundle = SceneBundle.open(xmlFile);
+        assertNotNull(bundle);
+
+        DecodedImage expectedImage = DecodedImage.of("jpg", ImageIO.read(sourceFile));
+        DecodedImage image = bundle.image("bundle");
+        assertArrayEquals(PixelBuffer.of(expectedImage.sharedImage()).rgbArray(),
+                PixelBuffer.of(image.sharedImage()).rgbArray());
+        assertArrayEquals(LuminancePlane.of(expectedImage.sharedImage(), BandExecutor.SEQUENTIAL).toArray(),
+                image.getLuminance().toArray());
+        assertFalse(image.hasEncodedLuminance());
+
+        Scene expected = new Scene("xml", SourceXmlFileParser.parseProject(xmlFile));
+        Scene scene = bundle.scene("bundle");
+        assertEquals(expected.getSurfaceMaskMap().keySet(), scene.getSurfaceMaskMap().keySet());
+        assertEquals(expected.getUniqueSurfaceMasks().size(), scene.getUniqueSurfaceMasks().size());
+        for (UniqueSurfaceMask usm : expected.getUniqueSurfaceMasks()) {
+            UniqueSurfaceMask compiled = find(scene, usm.getSurfaceNames().get(0));
+            assertTrue(compiled.getMask().isCompiled());
+            assertEquals(usm.getSurfaceNames().size(), compiled.getSurfaceNames().size());
+            for (int[] size : new int[][] { { WIDTH, HEIGHT }, { 120, 80 }, { 100, 67 }, { 500, 333 } }) {
+                assertSameSpans(SurfaceMasking.decodeMask(usm, WIDTH, HEIGHT, size[ 0 ], size[ 1 ]),
+                        SurfaceMasking.decodeMask(compiled, WIDTH, HEIGHT, size[ 0 ], size[ 1 ]));
+            }
+        }
+    }
+
+    @Test
+    void ignoresBundlesOfChangedScenes() throws Exception {
+        File base = writeScene();
+        SceneBundleCompiler.compile(base);
+        File xmlFile = new File(base + ".xml");
+
+        assertTrue(xmlFile.setLastModified(xmlFile.lastModified() + 10_000));
+
+        assertNull(SceneBundle.open(xmlFile));
+    }
+
+    @Test
+    void rejectsTruncatedAndCorruptBundles() throws Exception {
+        File base = writeScene();
+        File bundleFile = SceneBundleCompiler.compile(base);
+        File xmlFile = new File(base + ".xml");
+        byte[] bytes = Files.readAllBytes(bundleFile.toPath());
+
+        for (int length : new int[] { bytes.length - 1, bytes.length / 2, 100 }) {
+            Files.write(bundleFile.toPath(), Arrays.copyOf(bytes, length));
+            assertThrows(IOException.class, () -> SceneBundle.open(xmlFile), "truncated to " + length);
+        }
+
+        // a negative mask count, then a surface offset past the end of the file
+        byte[] corrupt = bytes.clone();
+        ByteBuffer.wrap(corrupt).putInt(56, -1);
+        Files.write(bundleFile.toPath(), corrupt);
+        assertThrows(IOException.class, () -> SceneBundle.open(xmlFile));
+        corrupt = bytes.clone();
+        ByteBuffer.wrap(corrupt).putLong(80, bytes.length - 2);
+        Files.write(bundleFile.toPath(), corrupt);
+        assertThrows(IOException.class, () -> SceneBundle.open(xmlFile));
+
+        Files.write(bundleFile.toPath(), bytes);
+        assertNotNull(SceneBundle.open(xmlFile));
+    }
+
+    private File writeScene() throws Exception {
+        BufferedImage image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = image.createGraphics();
+        graphics.setPaint(new GradientPaint(0, 0, Color.ORANGE, WIDTH, HEIGHT, Color.DARK_GRAY));
+        graphics.fillRect(0, 0, WIDTH, HEIGHT);
+        graphics.dispose();
+        File base = directory.resolve("room").toFile();
+        ImageIO.write(image, "jpg", new File(base + ".jpg"));
+
+        String wall = encodedMask(new Rectangle(37, 21, 90, 71));
+        String trim = encodedMask(new Rectangle(150, 100, 40, 12));
+        Files.writeString(new File(base + ".xml").toPath(), "<Project image=\"room\" width=\"240\" height=\"160\">\n"
+                + "<surfaces>\n"
+                + surface("Surface1", "minX=\"37\" minY=\"21\" maxX=\"126\" maxY=\"91\"", wall)
+                + surface("Surface2", "", trim)
+                + surface("Surface3", "", wall)
+                + "</surfaces>\n</Project>\n");
+        return base;
+    }
+
+    private static String surface(String name, String bounds, String mask) {
+        return "<Surface name=\"" + name + "\" " + bounds + ">\n"
+                + "<SurfaceMask><SurfaceMask color=\"0\" version=\"1\" string=\"" + mask + "\"/></SurfaceMask>\n"
+                + "</Surface>\n";
+    }
+
+    private static UniqueSurfaceMask find(Scene scene, String surfaceName) {
+        for (UniqueSurfaceMask usm : scene.getUniqueSurfaceMasks()) {
+            if (usm.contains(surfaceName)) {
+                return usm;
+            }
+        }
+        throw new AssertionError("no mask for " + surfaceName);
+    }
+
+    private static String encodedMask(Rectangle box) {
+        byte[] rgba = new byte[ WIDTH * HEIGHT * 4 ];
+        for (int y = box.y; y < box.y + box.height; y++) {
+            for (int x = box.x; x < box.x + box.width; x++) {
+                // a ragged edge and partly empty channels, as the masking tools write them
+                rgba[ (y * WIDTH + x) * 4 + (x + y) % 4 ] = (byte) 255;
+            }
+        }
+
+        Deflater deflater = new Deflater();
+        deflater.setInput(rgba);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[ 4096 ];
+        while (!deflater.finished()) {
+            out.write(buffer, 0, deflater.deflate(buffer));
+        }
+        deflater.end();
+        return Base64.getEncoder().encodeToString(out.toByteArray());
+    }
+
+    private static void assertSameSpans(MaskBitmap expected, MaskBitmap actual) {
+        assertEquals(expected.spanCount(), actual.spanCount());
+        for (int span = 0; span < expected.spanCount(); span++) {
+            assertEquals(expected.spanRow(span), actual.spanRow(span));
+            assertEquals(expected.spanStart(span), actual.spanStart(span));
+            assertEquals(expected.spanLength(span), actual.spanLength(span));
+            assertEquals(expected.spanCoverage(span), actual.spanCoverage(span));
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.sherwin.ireredux;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.awt.Rectangle;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Set;
+import java.util.zip.Deflater;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SceneCacheTests {
+    private static final int WIDTH = 240;
+    private static final int HEIGHT = 160;
+    private static final Rectangle WALL = new Rectangle(37, 21, 90, 71);
+    private static final Rectangle TRIM = new Rectangle(150, 100, 40, 12);
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void parsesEachVersionOfASceneOnce() throws Exception {
+        File xmlFile = writeScene(surface("Surface1", WALL) + surface("Surface2", TRIM) + surface("Surface3", WALL));
+        SceneCache cache = newCache();
+
+        Scene scene = cache.getScene(xmlFile);
+
+        assertSame(scene, cache.getScene(xmlFile));
+        assertEquals(Set.of("Surface1", "Surface2", "Surface3"), scene.getSurfaceMaskMap().keySet());
+        // surfaces drawn with the same mask are grouped once, when the scene is parsed
+        assertEquals(2, scene.getUniqueSurfaceMasks().size());
+        assertTrue(scene.getUniqueSurfaceMasks().get(0).contains("Surface1"));
+        assertTrue(scene.getUniqueSurfaceMasks().get(0).contains("Surface3"));
+    }
+
+    @Test
+    void parsesAChangedSceneAgain() throws Exception {
+        File xmlFile = writeScene(surface("Surface1", WALL) + surface("Surface2", TRIM));
+        SceneCache cache = newCache();
+        Scene scene = cache.getScene(xmlFile);
+
+        writeScene(surface("Surface1", WALL));
+        assertTrue(xmlFile.setLastModified(xmlFile.lastModified() + 10_000));
+
+        Scene changed = cache.getScene(xmlFile);
+        assertNotSame(scene, changed);
+        assertNotEquals(scene.getKey(), changed.getKey());
+        assertEquals(Set.of("Surface1"), changed.getSurfaceMaskMap().keySet());
+    }
+
+    @Test
+    void decodesEachMaskOncePerSize() throws Exception {
+        File xmlFile = writeScene(surface("Surface1", WALL));
+        SceneCache cache = newCache();
+        Scene scene = cache.getScene(xmlFile);
+        UniqueSurfaceMask usm = scene.getUniqueSurfaceMasks().get(0);
+
+        MaskBitmap mask = cache.getMask(scene, usm, WIDTH, HEIGHT, 120, 80);
+        MaskBitmap other = cache.getMask(scene, usm, WIDTH, HEIGHT, 100, 67);
+
+        assertSame(mask, cache.getMask(scene, usm, WIDTH, HEIGHT, 120, 80));
+        assertEquals(120, mask.getWidth());
+        assertEquals(80, mask.getHeight());
+        assertEquals(100, other.getWidth());
+        assertEquals(67, other.getHeight());
+    }
+
+    private static SceneCache newCache() {
+        return new SceneCache(1 << 20, 16, 1 << 20, 16, 1 << 20, false, false,
+                new SimpleMeterRegistry(), new OffHeapStore(0));
+    }
+
+    private File writeScene(String surfaces) throws IOException {
+        File xmlFile = directory.resolve("room.xml").toFile();
+        Files.writeString(xmlFile.toPath(), "<Project image=\"room\" width=\"" + WIDTH + "\" height=\"" + HEIGHT
+                + "\">\n<surfaces>\n" + surfaces + "</surfaces>\n</Project>\n");
+        return xmlFile;
+    }
+
+    private static String surface(String name, Rectangle box) {
+        return "<Surface name=\"" + name + "\">\n"
+                + "<SurfaceMask><SurfaceMask color=\"0\" version=\"1\" string=\"" + encodedMask(box) + "\"/>"
+                + "</SurfaceMask>\n</Surface>\n";
+    }
+
+    /*
+     * A zlib compressed, base64 encoded RGBA mask covering the box, as found in the scene xml
+     */
+    private static String encodedMask(Rectangle box) {
+        byte[] rgba = new byte[ WIDTH * HEIGHT * 4 ];
+        for (int y = box.y; y < box.y + box.height; y++) {
+            Arrays.fill(rgba, (y * WIDTH + box.x) * 4, (y * WIDTH + box.x + box.width) * 4, (byte) 255);
+        }
+
+        Deflater deflater = new Deflater();
+        deflater.setInput(rgba);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[ 4096 ];
+        while (!deflater.finished()) {
+            out.write(buffer, 0, deflater.deflate(buffer));
+        }
+        deflater.end();
+        return Base64.getEncoder().encodeToString(out.toByteArray());
+    }
+}
@@ -0,0 +1,92 @@
+package com.sherwin.ireredux;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Base64;
+import java.util.zip.Deflater;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SceneIndexerTests {
+    private static final String WALL = encode("wall");
+    private static final String TRIM = encode("trim");
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void indexesTheSameSceneAsTheFullParse() throws Exception {
+        File xml = write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<Project image=\"room\" width=\"1200\" height=\"800\" version=\"1\" empty=\"false\">\n"
+                + "<!-- generated -->\n<surfaces>\n"
+                + surface("Surface1", "minX=\"10\" minY=\"20\" maxX=\"29\" maxY=\"49\"", WALL)
+                + surface("Surface2", "minX=\"0\" minY=\"0\" maxX=\"0\" maxY=\"0\"", TRIM)
+                + surface("Surface3", "minX=\"40\" minY=\"20\" maxX=\"59\" maxY=\"49\"", WALL)
+                + "</surfaces>\n</Project>\n");
+
+        Scene indexed = SceneIndexer.index("key", xml);
+        Scene parsed = new Scene("key", SourceXmlFileParser.parseProject(xml));
+
+        assertNotNull(indexed);
+        assertEquals(parsed.getSurfaceMaskMap().keySet(), indexed.getSurfaceMaskMap().keySet());
+        assertEquals(parsed.getSurfaceNamingConvention(), indexed.getSurfaceNamingConvention());
+        assertEquals(parsed.getUniqueSurfaceMasks().size(), indexed.getUniqueSurfaceMasks().size());
+        for (int i = 0; i < parsed.getUniqueSurfaceMasks().size(); i++) {
+            UniqueSurfaceMask expected = parsed.getUniqueSurfaceMasks().get(i);
+            UniqueSurfaceMask actual = indexed.getUniqueSurfaceMasks().get(i);
+            assertEquals(expected.getSurfaceNames(), actual.getSurfaceNames());
+            assertEquals(expected.getBounds(), actual.getBounds());
+            assertArrayEquals(expected.getMask().open().readAllBytes(), actual.getMask().open().readAllBytes());
+        }
+    }
+
+    @Test
+    void leavesEntityReferencesToTheFullParse() throws Exception {
+        File xml = write("<Project><surfaces>\n"
+                + surface("Surface&amp;1", "", WALL)
+                + "</surfaces></Project>\n");
+
+        assertNull(SceneIndexer.index("key", xml));
+    }
+
+    @Test
+    void refusesToReadMasksOfAChangedFile() throws Exception {
+        File xml = write("<Project><surfaces>\n" + surface("Surface1", "", WALL) + "</surfaces></Project>\n");
+        Scene scene = SceneIndexer.index("key", xml);
+        Files.writeString(xml.toPath(), "<Project/>\n");
+
+        assertThrows(IOException.class, () -> scene.getUniqueSurfaceMasks().get(0).getMask().open());
+    }
+
+    private File write(String xml) throws Exception {
+        Path file = directory.resolve("scene.xml");
+        Files.writeString(file, xml, StandardCharsets.UTF_8);
+        return file.toFile();
+    }
+
+    private static String surface(String name, String bounds, String mask) {
+        return "<Surface name=\"" + name + "\" region=\"r\" " + bounds + ">\n"
+                + "<SurfaceMask><SurfaceMask color=\"0\" version=\"1\" string='" + mask + "'/></SurfaceMask>\n"
+                + "</Surface>\n";
+    }
+
+    private static String encode(String text) {
+        Deflater deflater = new Deflater();
+        deflater.setInput(text.repeat(100).getBytes(StandardCharsets.US_ASCII));
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[ 4096 ];
+        while (!deflater.finished()) {
+            out.write(buffer, 0, deflater.deflate(buffer));
+        }
+        deflater.end();
+        return Base64.getEncoder().encodeToString(out.toByteArray());
+    }
+}
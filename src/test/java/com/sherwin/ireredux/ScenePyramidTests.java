@@ -0,0 +1,64 @@
+package com.sherwin.ireredux;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ScenePyramidTests {
+
+    @Test
+    void resizedSizeIsTheSizeImgscalrResizesTo() {
+        for (int[] image : new int[][] { { 1000, 667 }, { 667, 1000 }, { 640, 640 }, { 1023, 511 } }) {
+            BufferedImage source = new BufferedImage(image[ 0 ], image[ 1 ], BufferedImage.TYPE_INT_RGB);
+            for (int[] target : new int[][] { { 300, 0 }, { 0, 300 }, { 300, 300 }, { 500, 200 }, { 200, 500 },
+                    { 640, 0 }, { 1000, 667 }, { 1200, 900 }, { 333, 222 } }) {
+                BufferedImage resized = ImageUtil.resizeImage(source, target[ 0 ], target[ 1 ]);
+                assertEquals(new Dimension(resized.getWidth(), resized.getHeight()),
+                        ImageUtil.resizedSize(image[ 0 ], image[ 1 ], target[ 0 ], target[ 1 ]));
+            }
+        }
+    }
+
+    @Test
+    void picksTheSmallestLevelAtLeastAsLargeAsTheTarget() {
+        assertEquals(0, ScenePyramid.level(4000, 3000, 2500, 1875));
+        assertEquals(1, ScenePyramid.level(4000, 3000, 1200, 900));
+        assertEquals(1, ScenePyramid.level(4000, 3000, 2000, 1500));
+        assertEquals(2, ScenePyramid.level(4000, 3000, 1000, 750));
+        assertEquals(1, ScenePyramid.level(4000, 3000, 600, 1000));
+        assertEquals(5, ScenePyramid.level(4000, 3000, 50, 40));
+        assertEquals(0, ScenePyramid.level(100, 80, 50, 40));
+    }
+
+    @Test
+    void resizingFromALevelGivesTheSameImage() {
+        BufferedImage source = new BufferedImage(1000, 667, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < source.getHeight(); y++) {
+            for (int x = 0; x < source.getWidth(); x++) {
+                source.setRGB(x, y, (x * 255 / 1000) << 16 | (y * 255 / 667) << 8 | (x * y) % 251);
+            }
+        }
+        DecodedImage image = DecodedImage.of("image", source);
+        BaseImageCache direct = newCache(false);
+        BaseImageCache pyramid = newCache(true);
+
+        for (int[] target : new int[][] { { 300, 200 }, { 319, 213 }, { 0, 150 }, { 500, 0 }, { 100, 100 } }) {
+            BufferedImage expected = direct.resize(image, target[ 0 ], target[ 1 ]);
+            BufferedImage actual = pyramid.resize(image, target[ 0 ], target[ 1 ]);
+            assertEquals(expected.getWidth(), actual.getWidth());
+            assertEquals(expected.getHeight(), actual.getHeight());
+            assertArrayEquals(expected.getRGB(0, 0, expected.getWidth(), expected.getHeight(), null, 0,
+                    expected.getWidth()), actual.getRGB(0, 0, actual.getWidth(), actual.getHeight(), null, 0,
+                    actual.getWidth()));
+        }
+    }
+
+    private static BaseImageCache newCache(boolean pyramid) {
+        return new BaseImageCache(1 << 24, 16, 1 << 20, 16, false, false, pyramid, new SimpleMeterRegistry(),
+                BandExecutor.SEQUENTIAL, new OffHeapStore(0));
+    }
+}
@@ -0,0 +1,114 @@
+package com.sherwin.ireredux;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SingleFlightTests {
+
+    @Test
+    void concurrentCallersShareOneLoad() throws Exception {
+        SingleFlight<String, String> flight = new SingleFlight<>("test");
+        AtomicInteger loads = new AtomicInteger();
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            Future<String> leader = executor.submit(() -> flight.run("scene", () -> {
+                loads.incrementAndGet();
+                loading.countDown();
+                release.await();
+                return "loaded";
+            }));
+            assertTrue(loading.await(5, TimeUnit.SECONDS));
+
+            Future<String> follower = executor.submit(() -> flight.run("scene", () -> {
+                loads.incrementAndGet();
+                return "loaded again";
+            }));
+            while (flight.coalescedCount() == 0) {
+                Thread.sleep(1);
+            }
+            release.countDown();
+
+            assertEquals("loaded", leader.get(5, TimeUnit.SECONDS));
+            assertEquals("loaded", follower.get(5, TimeUnit.SECONDS));
+            assertEquals(1, loads.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void waitersGetTheFailureAndTheNextCallLoadsAgain() throws Exception {
+        SingleFlight<String, String> flight = new SingleFlight<>("test");
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<String> leader = executor.submit(() -> flight.run("scene", () -> {
+                loading.countDown();
+                release.await();
+                throw new IOException("corrupt");
+            }));
+            assertTrue(loading.await(5, TimeUnit.SECONDS));
+            Future<String> follower = executor.submit(() -> flight.run("scene", () -> "unused"));
+            while (flight.coalescedCount() == 0) {
+                Thread.sleep(1);
+            }
+            release.countDown();
+
+            for (Future<String> caller : List.of(leader, follower)) {
+                ExecutionException e = assertThrows(ExecutionException.class, () -> caller.get(5, TimeUnit.SECONDS));
+                assertInstanceOf(IOException.class, e.getCause());
+            }
+            assertEquals("retried", flight.run("scene", () -> "retried"));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void sharedLoadGoesOnUntilEveryCallerHasGivenUp() {
+        SingleFlight<String, String> flight = new SingleFlight<>("test");
+        CompletableFuture<String> load = new CompletableFuture<>();
+        RenderDeadline deadline = RenderDeadline.after(0, 1);
+        CompletableFuture<String> leader = flight.start("render", () -> load,
+                () -> deadline.abandon(RenderDeadline.DISCONNECT));
+        CompletableFuture<String> follower = flight.start("render", () -> CompletableFuture.completedFuture("unused"),
+                () -> { });
+        assertEquals(1, flight.coalescedCount());
+
+        // the leader's client went away, the follower's is still there
+        leader.cancel(false);
+        assertNull(deadline.abandonedReason());
+        load.complete("rendered");
+        assertEquals("rendered", follower.join());
+
+        CompletableFuture<String> second = new CompletableFuture<>();
+        RenderDeadline secondDeadline = RenderDeadline.after(0, 1);
+        List<CompletableFuture<String>> callers = List.of(
+                flight.start("render", () -> second, () -> secondDeadline.abandon(RenderDeadline.DISCONNECT)),
+                flight.start("render", () -> second, () -> { }));
+        callers.get(1).cancel(false);
+        assertNull(secondDeadline.abandonedReason());
+        callers.get(0).cancel(false);
+        assertEquals(RenderDeadline.DISCONNECT, secondDeadline.abandonedReason());
+
+        // callers arriving once a load is abandoned start a new one
+        assertEquals("again", flight.start("render", () -> CompletableFuture.completedFuture("again"), () -> { })
+                .join());
+        assertEquals(3, flight.loadCount());
+    }
+}
@@ -0,0 +1,101 @@
+package com.sherwin.ireredux;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StageExecutorTests {
+
+    @Test
+    void stagesRunAtTheSameTime() throws Exception {
+        StageExecutor stages = new StageExecutor(2, 4, new SimpleMeterRegistry());
+        CountDownLatch bothStarted = new CountDownLatch(2);
+        try {
+            CompletableFuture<String> image = stages.supply(() -> {
+                bothStarted.countDown();
+                return bothStarted.await(5, TimeUnit.SECONDS) ? "image" : "alone";
+            });
+            CompletableFuture<String> scene = stages.supply(() -> {
+                bothStarted.countDown();
+                return bothStarted.await(5, TimeUnit.SECONDS) ? "scene" : "alone";
+            });
+
+            assertEquals("image", image.get(5, TimeUnit.SECONDS));
+            assertEquals("scene", scene.get(5, TimeUnit.SECONDS));
+        } finally {
+            stages.shutdown();
+        }
+    }
+
+    @Test
+    void failuresAndOverflowStayWithTheRender() throws Exception {
+        StageExecutor stages = new StageExecutor(1, 1, new SimpleMeterRegistry());
+        CountDownLatch release = new CountDownLatch(1);
+        try {
+            stages.supply(() -> release.await(5, TimeUnit.SECONDS));
+            stages.supply(() -> "queued");
+            // the queue is full, so this one runs on the calling thread
+            CompletableFuture<String> overflow = stages.supply(() -> Thread.currentThread().getName());
+            assertEquals(Thread.currentThread().getName(), overflow.getNow(null));
+
+            CompletableFuture<String> corrupt = stages.supply(() -> {
+                throw new IOException("corrupt");
+            });
+            release.countDown();
+            ExecutionException e = assertThrows(ExecutionException.class, () -> corrupt.get(5, TimeUnit.SECONDS));
+            assertInstanceOf(IOException.class, e.getCause());
+        } finally {
+            stages.shutdown();
+        }
+    }
+
+    @Test
+    void closingAGroupWaitsForItsRunningStages() throws Exception {
+        StageExecutor stages = new StageExecutor(1, 4, new SimpleMeterRegistry());
+        CountDownLatch started = new CountDownLatch(1);
+        AtomicBoolean finished = new AtomicBoolean();
+        AtomicBoolean queuedRan = new AtomicBoolean();
+        try {
+            StageExecutor.Group group = stages.group();
+            CompletableFuture<String> running = group.supply(() -> {
+                started.countDown();
+                Thread.sleep(200);
+                finished.set(true);
+                return "mask";
+            });
+            CompletableFuture<String> queued = group.supply(() -> {
+                queuedRan.set(true);
+                return "queued";
+            });
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+
+            group.close();
+
+            assertTrue(finished.get());
+            assertTrue(running.isCancelled());
+            assertThrows(CancellationException.class, queued::join);
+            assertTrue(group.supply(() -> "late").isCancelled());
+            // the pool moves on to the next stage, which finds its group closed
+            assertEquals("next", stages.supply(() -> "next").get(5, TimeUnit.SECONDS));
+            assertFalse(queuedRan.get());
+        } finally {
+            stages.shutdown();
+        }
+    }
+
+    @Test
+    void defaultPoolLeavesMostCoresToTheRenders() {
+        assertEquals(2, StageExecutor.defaultThreads(1));
+        assertEquals(2, StageExecutor.defaultThreads(8));
+        assertEquals(8, StageExecutor.defaultThreads(32));
+    }
+}
@@ -0,0 +1,250 @@
+package com.sherwin.ireredux;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.awt.Rectangle;
+import java.awt.Shape;
+import java.awt.geom.Ellipse2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SurfaceMaskingTests {
+    private static final int WIDTH = 240;
+    private static final int HEIGHT = 160;
+    private static final Rectangle WALL = new Rectangle(37, 21, 90, 71);
+    private static final int GRAY = 0xFF808080;
+
+    @Test
+    void declaredBoundsGiveTheSameMaskAsComputedBounds() throws Exception {
+        String mask = encodedMask(WALL);
+        UniqueSurfaceMask declared = new UniqueSurfaceMask(0, MaskData.of(mask), "Surface1", WALL);
+        UniqueSurfaceMask computed = new UniqueSurfaceMask(1, MaskData.of(mask), "Surface2", null);
+
+        for (int[] size : new int[][] { { WIDTH, HEIGHT }, { 120, 80 }, { 100, 67 }, { 500, 333 } }) {
+            MaskBitmap expected = SurfaceMasking.decodeMask(computed, WIDTH, HEIGHT, size[ 0 ], size[ 1 ]);
+            MaskBitmap actual = SurfaceMasking.decodeMask(declared, WIDTH, HEIGHT, size[ 0 ], size[ 1 ]);
+            assertSameSpans(expected, actual);
+        }
+    }
+
+    @Test
+    void clippedResizeMatchesResizingTheWholeMask() throws Exception {
+        int[][] sizes = { { 2048, 1365, 800, 533 }, { 1777, 1000, 640, 360 }, { 999, 666, 333, 222 },
+                { 1598, 625, 1407, 550 }, { 2400, 1800, 240, 180 }, { WIDTH, HEIGHT, 100, 67 } };
+        for (int[] size : sizes) {
+            int width = size[ 0 ];
+            int height = size[ 1 ];
+            Shape wall = new Ellipse2D.Double(width * 0.23, height * 0.31, width * 0.37, height * 0.29);
+            MaskData data = MaskData.of(encodedMask(width, height, wall));
+            MaskBitmap expected = wholeMask(data, width, height, size[ 2 ], size[ 3 ]);
+
+            for (Rectangle bounds : new Rectangle[] { wall.getBounds(), null }) {
+                UniqueSurfaceMask usm = new UniqueSurfaceMask(0, data, "Surface1", bounds);
+                assertSameSpans(expected, SurfaceMasking.decodeMask(usm, width, height, size[ 2 ], size[ 3 ]));
+            }
+        }
+    }
+
+    @Test
+    void decodesEveryPixelInsideTheBox() throws Exception {
+        UniqueSurfaceMask usm = new UniqueSurfaceMask(0, MaskData.of(encodedMask(WALL)), "Surface1", null);
+
+        MaskBitmap mask = SurfaceMasking.decodeMask(usm, WIDTH, HEIGHT, WIDTH, HEIGHT);
+
+        assertEquals(WALL.width * WALL.height, mask.pixelCount());
+        assertEquals(WALL, mask.getBounds());
+    }
+
+    @Test
+    void ignoresDeclaredBoundsOutsideTheImage() throws Exception {
+        UniqueSurfaceMask usm = new UniqueSurfaceMask(0, MaskData.of(encodedMask(WALL)), "Surface1",
+                new Rectangle(200, 100, 100, 100));
+
+        MaskBitmap mask = SurfaceMasking.decodeMask(usm, WIDTH, HEIGHT, WIDTH, HEIGHT);
+
+        assertEquals(WALL, mask.getBounds());
+    }
+
+    @Test
+    void masksWithACachedShadingAreNotDecodedAhead() throws Exception {
+        SceneCache sceneCache = new SceneCache(1 << 20, 16, 1 << 20, 16, 1 << 20, false, false,
+                new SimpleMeterRegistry(), new OffHeapStore(0));
+        Scene scene = new Scene("scene", Map.of("Surface1", MaskData.of(encodedMask(WALL)),
+                "Surface2", MaskData.of(encodedMask(new Rectangle(150, 100, 40, 12)))),
+                new HashMap<String, Rectangle>(), 2);
+        DecodedImage image = DecodedImage.of("image", new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB));
+        UniqueSurfaceMask painted = scene.getUniqueSurfaceMasks().get(0);
+        UniqueSurfaceMask unpainted = scene.getUniqueSurfaceMasks().get(1);
+        sceneCache.putShading(scene, image, painted, 100, 67,
+                ShadingLayer.empty(SurfaceMasking.decodeMask(painted, WIDTH, HEIGHT, 100, 67)));
+
+        StageExecutor stages = new StageExecutor(1, 4, new SimpleMeterRegistry());
+        try {
+            Map<UniqueSurfaceMask, ? extends Future<MaskBitmap>> prepared = SurfaceMasking.prepareMasks(scene,
+                    image, sceneCache, scene.getUniqueSurfaceMasks(), 100, 67, stages.group(),
+                    RenderDeadline.after(0, 1));
+
+            assertEquals(Set.of(unpainted), prepared.keySet());
+            assertSameSpans(SurfaceMasking.decodeMask(unpainted, WIDTH, HEIGHT, 100, 67),
+                    prepared.get(unpainted).get(5, TimeUnit.SECONDS));
+        } finally {
+            stages.shutdown();
+        }
+    }
+
+    @Test
+    void resizedRenderPaintsTheMaskAtTheOutputSize() throws Exception {
+        SceneCache sceneCache = new SceneCache(1 << 20, 16, 1 << 20, 16, 1 << 20, false, false,
+                new SimpleMeterRegistry(), new OffHeapStore(0));
+        Scene scene = new Scene("scene", Map.of("Surface1", MaskData.of(encodedMask(WALL))),
+                new HashMap<String, Rectangle>(), 1);
+        UniqueSurfaceMask usm = scene.getUniqueSurfaceMasks().get(0);
+        DecodedImage sourceImage = DecodedImage.of("image", grayImage(WIDTH, HEIGHT));
+        BufferedImage baseImage = grayImage(WIDTH / 2, HEIGHT / 2);
+
+        SurfaceMasking.maskSurfaceData(baseImage, LuminancePlane.of(baseImage, BandExecutor.SEQUENTIAL),
+                sourceImage, scene, sceneCache, Map.of(usm, String.valueOf(0xC03020)), Map.of(),
+                ColorizationEngine.FUSED, new OverlayTableCache(1 << 20, 16, new SimpleMeterRegistry()),
+                BandExecutor.SEQUENTIAL);
+
+        // the mask is expanded at the source size and resized to the output size
+        MaskBitmap mask = sceneCache.getMask(scene, usm, WIDTH, HEIGHT, WIDTH / 2, HEIGHT / 2);
+        assertEquals(WIDTH / 2, mask.getWidth());
+        assertEquals(HEIGHT / 2, mask.getHeight());
+        Rectangle inner = new Rectangle(WALL.x / 2 + 1, WALL.y / 2 + 1, WALL.width / 2 - 2, WALL.height / 2 - 2);
+        Rectangle outer = new Rectangle(WALL.x / 2 - 1, WALL.y / 2 - 1, WALL.width / 2 + 3, WALL.height / 2 + 3);
+        assertTrue(outer.contains(mask.getBounds()));
+        for (int y = 0; y < baseImage.getHeight(); y++) {
+            for (int x = 0; x < baseImage.getWidth(); x++) {
+                boolean painted = baseImage.getRGB(x, y) != GRAY;
+                if (inner.contains(x, y)) {
+                    assertTrue(painted, "unpainted at " + x + "," + y);
+                } else if (!outer.contains(x, y)) {
+                    assertFalse(painted, "painted at " + x + "," + y);
+                }
+            }
+        }
+    }
+
+    @Test
+    void anotherColorwayReusesTheShadingLayer() throws Exception {
+        Scene scene = new Scene("scene", Map.of("Surface1", MaskData.of(encodedMask(WALL))),
+                new HashMap<String, Rectangle>(), 1);
+        UniqueSurfaceMask usm = scene.getUniqueSurfaceMasks().get(0);
+        DecodedImage sourceImage = DecodedImage.of("image", shadedImage());
+        SceneCache sceneCache = newSceneCache();
+
+        paint(scene, sourceImage, sceneCache, 0xC03020);
+        ShadingLayer shading = sceneCache.getShading(scene, sourceImage, usm, WIDTH, HEIGHT);
+        assertNotNull(shading);
+        BufferedImage repainted = paint(scene, sourceImage, sceneCache, 0x2050A0);
+
+        assertSame(shading, sceneCache.getShading(scene, sourceImage, usm, WIDTH, HEIGHT));
+        BufferedImage expected = paint(scene, sourceImage, newSceneCache(), 0x2050A0);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                assertEquals(expected.getRGB(x, y), repainted.getRGB(x, y), "at " + x + "," + y);
+            }
+        }
+    }
+
+    /*
+     * The mask as decoded before masks were clipped to their box: the whole
+     * mask image expanded and resized
+     */
+    private static MaskBitmap wholeMask(MaskData data, int width, int height, int targetWidth, int targetHeight)
+            throws Exception {
+        BufferedImage maskImage = new BufferedImage(width, height, BufferedImage.TYPE_4BYTE_ABGR);
+        SurfaceMasking.expandMask(data, width, new Rectangle(width, height),
+                ((DataBufferByte) maskImage.getRaster().getDataBuffer()).getData());
+        maskImage = ImageUtil.resizeImage(maskImage, targetWidth, targetHeight);
+        return MaskBitmap.of(maskImage, targetWidth, targetHeight);
+    }
+
+    private static BufferedImage paint(Scene scene, DecodedImage sourceImage, SceneCache sceneCache, int color)
+            throws Exception {
+        BufferedImage baseImage = sourceImage.toBufferedImage();
+        SurfaceMasking.maskSurfaceData(baseImage, LuminancePlane.of(baseImage, BandExecutor.SEQUENTIAL),
+                sourceImage, scene, sceneCache, Map.of(scene.getUniqueSurfaceMasks().get(0), String.valueOf(color)),
+                Map.of(), ColorizationEngine.FUSED, new OverlayTableCache(1 << 20, 16, new SimpleMeterRegistry()),
+                BandExecutor.SEQUENTIAL);
+        return baseImage;
+    }
+
+    private static SceneCache newSceneCache() {
+        return new SceneCache(1 << 20, 16, 1 << 20, 16, 1 << 20, false, false,
+                new SimpleMeterRegistry(), new OffHeapStore(0));
+    }
+
+    // a gradient, so the shading of the painted surface is not flat
+    private static BufferedImage shadedImage() {
+        BufferedImage image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                image.setRGB(x, y, (x * 255 / WIDTH) << 16 | (y * 255 / HEIGHT) << 8 | 0x60);
+            }
+        }
+        return image;
+    }
+
+    private static BufferedImage grayImage(int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                image.setRGB(x, y, GRAY);
+            }
+        }
+        return image;
+    }
+
+    /*
+     * A zlib compressed, base64 encoded RGBA mask covering the box, as found in the scene xml
+     */
+    private static String encodedMask(Rectangle box) {
+        return encodedMask(WIDTH, HEIGHT, box);
+    }
+
+    private static String encodedMask(int width, int height, Shape shape) {
+        byte[] rgba = new byte[ width * height * 4 ];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                if (shape.contains(x + 0.5, y + 0.5)) {
+                    Arrays.fill(rgba, (y * width + x) * 4, (y * width + x) * 4 + 4, (byte) 255);
+                }
+            }
+        }
+
+        Deflater deflater = new Deflater();
+        deflater.setInput(rgba);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[ 4096 ];
+        while (!deflater.finished()) {
+            out.write(buffer, 0, deflater.deflate(buffer));
+        }
+        deflater.end();
+        return Base64.getEncoder().encodeToString(out.toByteArray());
+    }
+
+    private static void assertSameSpans(MaskBitmap expected, MaskBitmap actual) {
+        assertEquals(expected.spanCount(), actual.spanCount());
+        for (int span = 0; span < expected.spanCount(); span++) {
+            assertEquals(expected.spanRow(span), actual.spanRow(span));
+            assertEquals(expected.spanStart(span), actual.spanStart(span));
+            assertEquals(expected.spanLength(span), actual.spanLength(span));
+            assertEquals(expected.spanCoverage(span), actual.spanCoverage(span));
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package com.sherwin.ireredux;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.imageio.ImageIO;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.nio.file.Path;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class YCbCrJpegReaderTests {
+    @TempDir
+    Path directory;
+
+    @Test
+    void decodesTheSamePixelsAsImageIo() throws Exception {
+        File file = directory.resolve("scene.jpg").toFile();
+        ImageIO.write(testImage(), "jpg", file);
+
+        DecodedImage image = YCbCrJpegReader.read("scene", file, BandExecutor.SEQUENTIAL);
+
+        BufferedImage expected = ImageIO.read(file);
+        assertNotNull(image);
+        assertArrayEquals(expected.getRGB(0, 0, 90, 70, null, 0, 90),
+                PixelBuffer.readRGB(image.toBufferedImage(), new Rectangle(90, 70)));
+
+        // the Y channel is close to the luminance recomputed from RGB
+        LuminancePlane computed = LuminancePlane.of(expected, BandExecutor.SEQUENTIAL);
+        LuminancePlane decoded = image.getLuminance();
+        assertTrue(image.hasEncodedLuminance());
+        for (int y = 0; y < 70; y++) {
+            for (int x = 0; x < 90; x++) {
+                assertEquals(computed.get(x, y), decoded.get(x, y), 2);
+            }
+        }
+    }
+
+    @Test
+    void skipsOtherFormats() throws Exception {
+        File file = directory.resolve("scene.png").toFile();
+        ImageIO.write(testImage(), "png", file);
+
+        assertNull(YCbCrJpegReader.read("scene", file, BandExecutor.SEQUENTIAL));
+    }
+
+    /*
+     * Smooth, unsaturated colors, where the Y channel and the RGB luminance agree
+     */
+    private static BufferedImage testImage() {
+        Random random = new Random(17);
+        BufferedImage image = new BufferedImage(90, 70, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < 70; y++) {
+            for (int x = 0; x < 90; x++) {
+                int gray = 60 + x + y;
+                image.setRGB(x, y, (gray + random.nextInt(8)) << 16 | gray << 8 | (gray - random.nextInt(8)));
+            }
+        }
+        return image;
+    }
+}